@@ -0,0 +1,225 @@
+package connection;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import misc.Settings;
+
+/**
+ * Decides which connections the {@link Server} handles, before any cryptographic work is done.<br>
+ * A connection is rejected if
+ * <ul>
+ * <li>the maximum number of connections is being handled already,
+ * <li>its source address has no token left (every address has a token bucket that is refilled
+ * at the rate of the settings up to the burst size),
+ * <li>its frame is longer than {@link #getMaxFrameLength()} (see
+ * {@link #maxFrameLength(Settings)}),
+ * <li>its frame isn't sent within the frame timeout of the settings or
+ * <li>its frame isn't an encrypted Message.
+ * </ul>
+ * The rejected connections are counted per reason.
+ */
+public class Admission {
+
+  /** The reasons of a rejection. */
+  public enum Rejection {
+    /** The maximum number of connections is being handled already. */
+    TOO_MANY_CONNECTIONS,
+    /** The source address sent too many frames. */
+    RATE_LIMITED,
+    /** The frame is too long. */
+    OVERSIZED,
+    /** The frame hasn't been sent in time. */
+    TOO_SLOW,
+    /** The frame isn't an encrypted Message. */
+    MALFORMED
+  }
+
+  /**
+   * The maximum number of source addresses whose buckets are kept. If there are more, the bucket
+   * of the address that hasn't sent anything for the longest time is removed.
+   */
+  static final int MAX_SOURCES = 4096;
+
+  /** The tokens of a source address. Only used while the buckets are locked. */
+  private static class TokenBucket {
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double tokens, long now) {
+      this.tokens = tokens;
+      this.lastRefill = now;
+    }
+
+    boolean take(double rate, double burst, long now) {
+      refill(rate, burst, now);
+      if (tokens < 1)
+        return false;
+      tokens--;
+      return true;
+    }
+
+    private void refill(double rate, double burst, long now) {
+      tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000.0);
+      lastRefill = now;
+    }
+  }
+
+  private final int maxConnections;
+  private final double rate;
+  private final double burst;
+  private final int maxFrameLength;
+
+  private final AtomicInteger connections = new AtomicInteger();
+  /** The buckets by source address, the least recently used first. */
+  private final Map<InetAddress, TokenBucket> buckets = new LinkedHashMap<InetAddress, TokenBucket>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+      return size() > MAX_SOURCES;
+    }
+  };
+
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong[] rejected = new AtomicLong[Rejection.values().length];
+
+  /**
+   * Constructs the admission control with the limits of the settings.
+   *
+   * @param settings The settings.
+   */
+  public Admission(Settings settings) {
+    this(settings.getMaxConnections(), settings.getRateLimit(), settings.getRateBurst(),
+        maxFrameLength(settings));
+  }
+
+  /**
+   * Constructs the admission control.
+   *
+   * @param maxConnections The maximum number of connections that are handled at once.
+   * @param rate The number of frames per second a source address may send.
+   * @param burst The number of frames a source address may send at once.
+   * @param maxFrameLength The maximum length of a frame in characters.
+   * @throws IllegalArgumentException if a limit <= 0
+   */
+  public Admission(int maxConnections, int rate, int burst, int maxFrameLength) {
+    if (maxConnections <= 0 || rate <= 0 || burst <= 0 || maxFrameLength <= 0)
+      throw new IllegalArgumentException("The limits must be positive.");
+    this.maxConnections = maxConnections;
+    this.rate = rate;
+    this.burst = burst;
+    this.maxFrameLength = maxFrameLength;
+    for (int i = 0; i < rejected.length; i++)
+      rejected[i] = new AtomicLong();
+  }
+
+  /**
+   * Calculates the length of the longest frame a peer sends: a {@link exchange.BatchMessage} with
+   * the maximal number of Messages whose header and content have the maximal length, encrypted as
+   * an {@link exchange.EncryptedMessage}.
+   *
+   * @param settings The settings with the length limits.
+   * @return the length in characters.
+   */
+  public static int maxFrameLength(Settings settings) {
+    // A Message: its length (hex) + delimiter + header + delimiter + content.
+    long message = 8 + 1 + settings.getHeaderLenLimit() + 1 + settings.getMsgLenLimit();
+    long plain = 16 + Settings.MAX_BATCH_SIZE * message;
+    // UTF-8 (at most 3 bytes per character), Base64, AES (padding), Base64.
+    long aes = (base64(3 * plain) / 16 + 1) * 16;
+    // RSA encrypted session key (Base64 of at most 4096 bits) + delimiter + content.
+    long frame = base64(512) + 1 + base64(aes);
+    return (int) Math.min(Integer.MAX_VALUE, frame);
+  }
+
+  private static long base64(long bytes) {
+    return (bytes + 2) / 3 * 4;
+  }
+
+  /**
+   * Admits a connection if the maximum number of connections isn't reached and its source address
+   * has a token left. An admitted connection has to be {@link #release() released}.
+   *
+   * @param source The source address of the connection.
+   * @return <code>null</code> if the connection is admitted; the reason otherwise.
+   */
+  public Rejection admit(InetAddress source) {
+    if (connections.incrementAndGet() > maxConnections) {
+      connections.decrementAndGet();
+      return reject(Rejection.TOO_MANY_CONNECTIONS);
+    }
+    long now = System.currentTimeMillis();
+    boolean taken;
+    synchronized (buckets) {
+      TokenBucket bucket = buckets.get(source);
+      if (bucket == null) {
+        bucket = new TokenBucket(burst, now);
+        buckets.put(source, bucket);
+      }
+      taken = bucket.take(rate, burst, now);
+    }
+    if (!taken) {
+      connections.decrementAndGet();
+      return reject(Rejection.RATE_LIMITED);
+    }
+    admitted.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Releases an admitted connection.
+   */
+  public void release() {
+    connections.decrementAndGet();
+  }
+
+  /**
+   * Counts a connection that has been rejected after it was admitted (e.g. because of its frame).
+   * The connection still has to be released.
+   *
+   * @param reason The reason.
+   * @return the reason.
+   */
+  public Rejection reject(Rejection reason) {
+    rejected[reason.ordinal()].incrementAndGet();
+    return reason;
+  }
+
+  /** @return the maximum length of a frame in characters. */
+  public int getMaxFrameLength() {
+    return maxFrameLength;
+  }
+
+  /** @return the number of connections that are being handled. */
+  public int getConnections() {
+    return connections.get();
+  }
+
+  /** @return the number of admitted connections. */
+  public long getAdmitted() {
+    return admitted.get();
+  }
+
+  /**
+   * @param reason The reason.
+   * @return the number of connections that have been rejected for the reason.
+   */
+  public long getRejected(Rejection reason) {
+    return rejected[reason.ordinal()].get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Admission: connections ").append(getConnections())
+        .append(", admitted ").append(getAdmitted());
+    for (Rejection r : Rejection.values())
+      sb.append(", ").append(r.name().toLowerCase().replace('_', ' ')).append(' ')
+          .append(getRejected(r));
+    return sb.toString();
+  }
+}
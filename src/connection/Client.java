@@ -5,21 +5,47 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import main.Core;
 import exchange.EncryptedMessage;
 
+/**
+ * Sends Messages to other peers.<br>
+ * The receiving {@link Server} answers a Message with whether it has been queued and with the
+ * window it grants (see {@link Server#WINDOW_PREFIX}). The window is kept per peer in a
+ * {@link PeerWindow}; a Message to a peer whose window is closed isn't sent at all.
+ */
 public class Client {
+
+  /** The flow control state per peer ("host:port"). */
+  private final Map<String, PeerWindow> windows = new ConcurrentHashMap<String, PeerWindow>();
+
   public boolean sendMessage(EncryptedMessage msg, InetSocketAddress address) {
     if (address.isUnresolved())
       return false;
+    PeerWindow window = getWindow(address);
+    if (!window.acquire())
+      return false;
     try (Socket sock = new Socket(address.getAddress(), address.getPort());) {
       sock.setSoTimeout(Core.getInstance().getSettings().getConnectionTimeout());
 
+      // The streams are closed together with the socket; closing one of them earlier would close
+      // the socket before the answer has been read.
       if (!sendData(msg.getFormatted(), sock))
         return false;
 
-      String parsingFeedback = readLine(sock);
+      BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+      String parsingFeedback = readLine(in);
+      String advertised = readLine(in);
+      if (advertised != null && advertised.startsWith(Server.WINDOW_PREFIX))
+        try {
+          window.update(Integer.parseInt(advertised.substring(Server.WINDOW_PREFIX.length())));
+        } catch (NumberFormatException e) {
+          // Not limited by an invalid window.
+        }
       if (parsingFeedback != null && Boolean.parseBoolean(parsingFeedback)) {
         return true;
       }
@@ -29,8 +55,30 @@ public class Client {
     return false;
   }
 
+  /**
+   * Gets the flow control state of a peer.
+   *
+   * @param address The address of the peer.
+   * @return the state; a new one if nothing has been sent to the peer yet.
+   */
+  public PeerWindow getWindow(InetSocketAddress address) {
+    return windows.computeIfAbsent(key(address), k -> new PeerWindow());
+  }
+
+  /**
+   * @return the flow control states by the peers ("host:port") Messages have been sent to.
+   */
+  public Map<String, PeerWindow> getWindows() {
+    return new HashMap<String, PeerWindow>(windows);
+  }
+
+  private static String key(InetSocketAddress address) {
+    return address.getHostString().toLowerCase() + ":" + address.getPort();
+  }
+
   private boolean sendData(String data, Socket sock) {
-    try (PrintWriter out = new PrintWriter(sock.getOutputStream());) {
+    try {
+      PrintWriter out = new PrintWriter(sock.getOutputStream());
       if (!data.endsWith("\n"))
         data += '\n';
       out.print(data);
@@ -41,8 +89,8 @@ public class Client {
     return true;
   }
 
-  private String readLine(Socket sock) {
-    try (BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));) {
+  private String readLine(BufferedReader in) {
+    try {
       return in.readLine();
     } catch (Throwable t) {
       return null;
@@ -0,0 +1,110 @@
+package connection;
+
+/**
+ * The flow control state of the connection to one peer.<br>
+ * After every Message the receiver advertises a window: the number of Messages it can take
+ * without waiting. Every sent Message uses one credit of the window; if there are none left, the
+ * sender holds its Messages back instead of sending them into a full queue. While the window is
+ * closed, one Message is let through every {@value #PROBE_INTERVAL} milliseconds to learn when it
+ * opens again (like the persist timer of TCP).<br>
+ * A peer that never advertised a window (an older version) isn't limited.
+ */
+public class PeerWindow {
+
+  /** The time (in milliseconds) between two Messages to a peer whose window is closed. */
+  public static final long PROBE_INTERVAL = 500;
+
+  /** The credits before the peer advertised a window. */
+  static final int UNKNOWN = -1;
+
+  private int credits = UNKNOWN;
+  /** The time (in milliseconds) the next probe may be sent. */
+  private long nextProbe;
+  private int lastAdvertised = UNKNOWN;
+
+  private long sent;
+  private long blocked;
+  private long probes;
+
+  /**
+   * Takes a credit for sending a Message.
+   *
+   * @return whether the Message may be sent.
+   */
+  synchronized boolean acquire() {
+    if (credits == UNKNOWN || credits > 0) {
+      if (credits > 0)
+        credits--;
+      sent++;
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (now >= nextProbe) {
+      nextProbe = now + PROBE_INTERVAL;
+      sent++;
+      probes++;
+      return true;
+    }
+    blocked++;
+    return false;
+  }
+
+  /**
+   * Sets the window the peer advertised. It replaces the remaining credits, because the peer
+   * already counted the Messages that have been sent before.
+   *
+   * @param window The number of Messages the peer can take.
+   */
+  synchronized void update(int window) {
+    credits = Math.max(0, window);
+    lastAdvertised = credits;
+    if (credits == 0)
+      nextProbe = System.currentTimeMillis() + PROBE_INTERVAL;
+  }
+
+  /**
+   * @return whether a Message may be sent now.
+   */
+  public synchronized boolean isOpen() {
+    return credits != 0 || System.currentTimeMillis() >= nextProbe;
+  }
+
+  /**
+   * @return the time (in milliseconds) until a Message may be sent; <code>0</code> if the window
+   *         is open.
+   */
+  public synchronized long getDelay() {
+    return credits != 0 ? 0 : Math.max(0, nextProbe - System.currentTimeMillis());
+  }
+
+  /** @return the remaining credits or <code>-1</code> if the peer never advertised a window. */
+  public synchronized int getCredits() {
+    return credits;
+  }
+
+  /** @return the last advertised window or <code>-1</code> if there was none. */
+  public synchronized int getLastAdvertised() {
+    return lastAdvertised;
+  }
+
+  /** @return the number of sent Messages (including the probes). */
+  public synchronized long getSent() {
+    return sent;
+  }
+
+  /** @return the number of Messages that were held back because the window was closed. */
+  public synchronized long getBlocked() {
+    return blocked;
+  }
+
+  /** @return the number of Messages that were sent while the window was closed. */
+  public synchronized long getProbes() {
+    return probes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("credits %d (advertised %d), sent %d, blocked %d, probes %d", credits,
+        lastAdvertised, sent, blocked, probes);
+  }
+}
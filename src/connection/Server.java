@@ -6,14 +6,42 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 // import java.nio.CharBuffer;
 
 
 import main.Core;
+import misc.Settings;
+import connection.Admission.Rejection;
+import exceptions.FormatException;
 import exchange.EncryptedMessage;
 
+/**
+ * Receives the Messages of other peers.<br>
+ * Every Message is answered with a line that tells whether it has been queued and a line with the
+ * window: the number of further Messages the sender may send without waiting (see
+ * {@link PeerWindow}). Senders that don't know about the window ignore the second line.<br>
+ * Connections are admitted by an {@link Admission} first, so a flooding peer is rejected before
+ * its frames are decrypted.<br>
+ * Depending on the server mode of the settings, the connections are handled one after the other
+ * by the Server's thread or each by its own virtual thread, so many peers can be served at once
+ * without a platform thread each. The handling of a connection is the same blocking code in both
+ * modes.
+ */
 public class Server implements Runnable, AutoCloseable {
+
+  /** The beginning of the line that advertises the window. */
+  public static final String WINDOW_PREFIX = "window ";
+
   private ServerSocket serverSock;
+  private final Admission admission = new Admission(Core.instance.getSettings());
+  /** Handles the connections; <code>null</code> in the single-threaded mode. */
+  private final ExecutorService connections;
 
   public Server() throws Exception {
     try {
@@ -22,15 +50,38 @@ public class Server implements Runnable, AutoCloseable {
       Core.instance.printError("[Server] Error in constructor. Not able to bind to port.\n"
           + e.getMessage(), e, true);
     }
+    if ("virtual".equals(Core.instance.getSettings().getServerMode())) {
+      if (!hasVirtualThreads())
+        Core.instance.printError("[Server] Virtual threads need Java 21; the connections are "
+            + "handled by platform threads.", null, false);
+      connections = newConnectionExecutor();
+    } else
+      connections = null;
   }
 
   @Override
   public void run() {
 
-    while (true) {
-      if (serverSock == null || Core.instance == null || !serverSock.isBound())
-        throw new IllegalStateException("Unbound ServerSocket in Server class");
-      if (Thread.interrupted() && serverSock != null) {
+    if (serverSock == null || Core.instance == null || !serverSock.isBound())
+      throw new IllegalStateException("Unbound ServerSocket in Server class");
+    serve(serverSock, connections, admission, this::handle);
+  }
+
+  /**
+   * Accepts connections until the socket is closed or the thread is interrupted.<br>
+   * A connection is admitted on the accepting thread, so a rejected connection never gets a thread
+   * of the executor and the number of threads is bounded by the maximum number of connections.
+   *
+   * @param serverSock The socket.
+   * @param connections The executor the connections are handled by; <code>null</code> to handle
+   *        them one after the other on the calling thread.
+   * @param admission Admits the connections; <code>null</code> to admit all of them.
+   * @param handler Handles an admitted connection, closes it and releases it from the admission.
+   */
+  static void serve(ServerSocket serverSock, ExecutorService connections, Admission admission,
+      Consumer<Socket> handler) {
+    while (!serverSock.isClosed()) {
+      if (Thread.interrupted()) {
         try {
           serverSock.close();
         } catch (Throwable t) {
@@ -38,33 +89,180 @@ public class Server implements Runnable, AutoCloseable {
         }
         return;
       }
-      try (Socket clientSock = serverSock.accept();
-          BufferedReader in =
-              new BufferedReader(new InputStreamReader(clientSock.getInputStream()));
-          PrintWriter out = new PrintWriter(clientSock.getOutputStream());) {
-        clientSock.setSoTimeout(Core.instance.getSettings().getConnectionTimeout());
-        // CharBuffer input =
-        // CharBuffer.allocate(Defaults.headerLenLimit+Defaults.msgLenLimit+2);
-        // in.read(input);
-        // String formattedMsg = input.toString();
-        String formattedMsg = in.readLine();
-        System.out.println("[Server] Received data: " + formattedMsg);
+      Socket clientSock;
+      try {
+        clientSock = serverSock.accept();
+      } catch (IOException e) {
+        if (!serverSock.isClosed())
+          Core.instance.printError("[Server] Error while accepting connection: " + e.getMessage(),
+              null, false);
+        continue;
+      }
+      if (admission != null && admission.admit(clientSock.getInetAddress()) != null) {
+        reject(clientSock);
+        continue;
+      }
+      if (connections == null)
+        handler.accept(clientSock);
+      else
         try {
-          EncryptedMessage msg = new EncryptedMessage(formattedMsg);
-          Core.instance.getMessageManager().interpreteIncomingMessage(msg);
-          out.write("true\n"); // Message was received and parsed
-          // successfully
-          out.flush();
-        } catch (Exception e) {
-          out.write("false\n"); // There was a parsing error
-          out.flush();
-          Core.instance.getUserInterface().printError(e);
+          connections.execute(() -> handler.accept(clientSock));
+        } catch (RejectedExecutionException e) {
+          // Closed.
+          if (admission != null)
+            admission.release();
+          try {
+            clientSock.close();
+          } catch (IOException e1) {
+          }
+          return;
         }
-      } catch (Throwable t) {
-        Core.instance.getUserInterface()
-            .printError("[Server] Error while handling connection: " + t.getMessage());
+    }
+  }
+
+  /**
+   * Answers a rejected connection with a closed window (the sender holds its Messages back and
+   * tries again later) and closes it. Its frame isn't read.
+   */
+  private static void reject(Socket clientSock) {
+    try (Socket sock = clientSock; PrintWriter out = new PrintWriter(sock.getOutputStream());) {
+      answer(out, false, 0);
+    } catch (IOException e) {
+      // The sender tries again later anyway.
+    }
+  }
+
+  /**
+   * Creates the executor that handles every connection on its own virtual thread. Virtual threads
+   * need Java 21; on older versions the connections are handled by a pool of platform threads.
+   *
+   * @return the executor.
+   */
+  static ExecutorService newConnectionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger n = new AtomicInteger();
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Server-" + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /**
+   * @return whether the connections are handled by virtual threads.
+   */
+  static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Handles an admitted connection: its frame is read and queued. A frame that is too long or
+   * isn't an encrypted Message is rejected before it is decrypted. The connection is released
+   * from the {@link Admission} at the end.
+   *
+   * @param clientSock The connection.
+   */
+  void handle(Socket clientSock) {
+    try (Socket sock = clientSock;
+        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+        PrintWriter out = new PrintWriter(sock.getOutputStream());) {
+      Settings settings = Core.instance.getSettings();
+      sock.setSoTimeout(Math.min(settings.getConnectionTimeout(), settings.getFrameTimeout()));
+      String formattedMsg;
+      try {
+        formattedMsg = readFrame(in, admission.getMaxFrameLength(), System.currentTimeMillis()
+            + settings.getFrameTimeout());
+      } catch (SocketTimeoutException e) {
+        admission.reject(Rejection.TOO_SLOW);
+        return;
+      }
+      if (formattedMsg == null) {
+        admission.reject(Rejection.OVERSIZED);
+        answer(out, false, getWindow());
+        return;
       }
+      Core.instance.getUserInterface().printDebugMessage(
+          "[Server] Received a frame of " + formattedMsg.length() + " characters.");
+      EncryptedMessage msg;
+      try {
+        msg = new EncryptedMessage(formattedMsg);
+      } catch (FormatException e) {
+        admission.reject(Rejection.MALFORMED);
+        answer(out, false, getWindow()); // There was a parsing error
+        Core.instance.getUserInterface().printError(e);
+        return;
+      }
+      // Only queued, so a slow processing doesn't block the accepting of connections. If
+      // the queue is full the sender gets "false" and tries again later.
+      boolean queued = Core.instance.getMessageManager().interpreteIncomingMessage(msg);
+      answer(out, queued, getWindow());
+    } catch (Throwable t) {
+      Core.instance.getUserInterface()
+          .printError("[Server] Error while handling connection: " + t.getMessage());
+    } finally {
+      admission.release();
+    }
+  }
+
+  /**
+   * Writes the answer to a frame: whether it has been queued and the window.
+   */
+  static void answer(PrintWriter out, boolean queued, int window) {
+    out.write(queued + "\n");
+    out.write(WINDOW_PREFIX + window + "\n");
+    out.flush();
+  }
+
+  /**
+   * Reads a frame (a line) unless it is longer than the given length or isn't complete at the
+   * deadline. A single read waits at most for the timeout of the socket, so a peer that sends a
+   * character now and then is disconnected at the latest this timeout after the deadline.
+   *
+   * @param deadline The time (in milliseconds) the frame has to be complete.
+   * @return the frame without the line break or <code>null</code> if it is too long. The frame is
+   *         empty if the connection has been closed before anything has been sent.
+   * @throws SocketTimeoutException if the frame isn't complete at the deadline or a read timed
+   *         out.
+   */
+  static String readFrame(BufferedReader in, int maxLength, long deadline) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0 && c != '\n') {
+      if (sb.length() == maxLength)
+        return null;
+      if (System.currentTimeMillis() > deadline)
+        throw new SocketTimeoutException("The frame hasn't been sent in time.");
+      sb.append((char) c);
     }
+    int end = sb.length();
+    if (end > 0 && sb.charAt(end - 1) == '\r')
+      sb.setLength(end - 1);
+    return sb.toString();
+  }
+
+  /**
+   * @return the admission control with the counters of the rejected connections.
+   */
+  public Admission getAdmission() {
+    return admission;
+  }
+
+  /**
+   * @return the number of Messages a peer may send without waiting: the free space of the queue
+   *         of the incoming Messages, but at most the receive window of the settings.
+   */
+  static int getWindow() {
+    return Math.min(Core.instance.getSettings().getReceiveWindow(), Core.instance
+        .getMessageManager().getIncomingCapacity());
   }
 
   /**
@@ -75,6 +273,8 @@ public class Server implements Runnable, AutoCloseable {
 
     if (serverSock != null && !serverSock.isClosed())
       serverSock.close();
+    if (connections != null)
+      connections.shutdown();
 
   }
 
@@ -0,0 +1,127 @@
+package connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the modes of the {@link Server}: the single-threaded loop and a virtual thread per
+ * connection.<br>
+ * Both modes run the accept loop of the Server ({@link Server#serve}) on the loopback interface.
+ * A connection is handled like a Message: its frame is read, the handler blocks for the given time
+ * (standing for the work that waits on I/O) and the answer is written. Several clients open
+ * connections at once; the number of connections per second and the 50th and 99th percentile of
+ * the time per connection are printed.<br>
+ * <br>
+ * Usage: <code>ServerBenchmark [connections] [clients] [blocking time in ms]</code> (default:
+ * <code>2000 64 2</code>)
+ */
+public class ServerBenchmark {
+
+  /** The number of connections before the measurement. */
+  static final int WARMUP = 200;
+  /** The length of a frame in characters (about an encrypted short Message). */
+  static final int FRAME_LENGTH = 512;
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    long blocking = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+    System.out.println("connections " + connections + ", clients " + clients + ", blocking "
+        + blocking + " ms, virtual threads: " + Server.hasVirtualThreads());
+    System.out.println(String.format("%-8s %12s %10s %10s", "mode", "conn/s", "p50 ms", "p99 ms"));
+    for (String mode : new String[] {"single", "virtual"}) {
+      ExecutorService executor = "virtual".equals(mode) ? Server.newConnectionExecutor() : null;
+      try (ServerSocket serverSock = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress())) {
+        Thread server = new Thread(() -> Server.serve(serverSock, executor, null,
+            sock -> handle(sock, blocking)), "Server");
+        server.setDaemon(true);
+        server.start();
+
+        run(serverSock.getLocalPort(), WARMUP, clients);
+        long start = System.nanoTime();
+        long[] latencies = run(serverSock.getLocalPort(), connections, clients);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-8s %12.0f %10.2f %10.2f", mode, connections / seconds,
+            percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6));
+      } finally {
+        if (executor != null)
+          executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Handles a connection like {@link Server#handle(Socket)} does, but instead of queuing the frame
+   * it blocks for the given time.
+   */
+  private static void handle(Socket clientSock, long blocking) {
+    try (Socket sock = clientSock;
+        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+        PrintWriter out = new PrintWriter(sock.getOutputStream());) {
+      String frame = Server.readFrame(in, FRAME_LENGTH * 2, System.currentTimeMillis() + 10000);
+      Thread.sleep(blocking);
+      Server.answer(out, frame != null, 1);
+    } catch (IOException | InterruptedException e) {
+      // Counted by the client.
+    }
+  }
+
+  /**
+   * Opens the given number of connections with the given number of clients at once.
+   *
+   * @return the time (in nanoseconds) of every connection.
+   */
+  private static long[] run(int port, int connections, int clients) throws Exception {
+    char[] frame = new char[FRAME_LENGTH];
+    Arrays.fill(frame, 'x');
+    String data = new String(frame) + "\n";
+    long[] latencies = new long[connections];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    try {
+      Future<?>[] futures = new Future<?>[clients];
+      for (int c = 0; c < clients; c++)
+        futures[c] = pool.submit(() -> {
+          for (int i; (i = next.getAndIncrement()) < connections;) {
+            long start = System.nanoTime();
+            try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+              sock.getOutputStream().write(data.getBytes("UTF-8"));
+              sock.getOutputStream().flush();
+              BufferedReader in =
+                  new BufferedReader(new InputStreamReader(sock.getInputStream()));
+              if (!Boolean.parseBoolean(in.readLine()))
+                failed.incrementAndGet();
+            } catch (IOException e) {
+              failed.incrementAndGet();
+            }
+            latencies[i] = System.nanoTime() - start;
+          }
+        });
+      for (Future<?> f : futures)
+        f.get();
+    } finally {
+      pool.shutdown();
+    }
+    if (failed.get() > 0)
+      System.out.println(failed.get() + " connections failed.");
+    return latencies;
+  }
+
+  private static long percentile(long[] sorted, int p) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * p / 100.0) - 1)];
+  }
+}
@@ -2,6 +2,8 @@ package coversations;
 
 import java.util.List;
 
+import main.Core;
+import exceptions.DBException;
 import exceptions.FormatException;
 import exchange.InternalMessage;
 
@@ -14,6 +16,10 @@ public abstract class Conversation {
   protected String name;
   /** The UUID. */
   protected String uuid;
+  /** Timestamp of the oldest message loaded by {@link #loadFromDatabase(int)}. */
+  private long historyTimestamp = Long.MAX_VALUE;
+  /** Database ID of the oldest message loaded by {@link #loadFromDatabase(int)}. */
+  private int historyId = Integer.MAX_VALUE;
   
   
   /**
@@ -46,8 +52,37 @@ public abstract class Conversation {
    */
   abstract public boolean sendMessage(InternalMessage internalMessage) throws FormatException;
 
-  public void loadFromDatabase(int count) {
-    // TODO Database Logic.
+  /**
+   * Loads the next older messages of this Conversation from the database.<br>
+   * Every call continues where the last one stopped, so the history can be paged backwards
+   * without keeping the already loaded messages in memory. Loading the newest messages marks the
+   * Conversation as read.
+   * 
+   * @param count The maximum number of messages to be loaded.
+   * @return the loaded messages (newest first). Empty if the whole history has been loaded.
+   * @throws DBException if the database couldn't be read.
+   * @see #resetHistory()
+   */
+  public List<InternalMessage> loadFromDatabase(int count) throws DBException {
+    if (historyId == Integer.MAX_VALUE)
+      Core.getInstance().getDatabase().markRead(this);
+    List<InternalMessage> page =
+        Core.getInstance().getMessageStore().getHistoryPage(this, historyTimestamp, historyId,
+            count);
+    if (!page.isEmpty()) {
+      InternalMessage oldest = page.get(page.size() - 1);
+      historyTimestamp = oldest.getTimeStamp().getTimeInMillis();
+      historyId = oldest.getDatabaseId();
+    }
+    return page;
+  }
+
+  /**
+   * Lets the next call of {@link #loadFromDatabase(int)} start with the newest message again.
+   */
+  public void resetHistory() {
+    historyTimestamp = Long.MAX_VALUE;
+    historyId = Integer.MAX_VALUE;
   }
 
   /**
@@ -1,5 +1,6 @@
 package coversations;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -35,10 +36,14 @@ public class GuestConversation extends Conversation {
         .getUuid()));
   }
 
+  /**
+   * Sends a Message to the host of the Conversation.<br>
+   * The Message is stored and will be retried until the host received it.
+   */
   @Override
   public boolean sendMessage(InternalMessage internalMessage) throws FormatException {
-    // TODO Auto-generated method stub
-    return false;
+    return Core.instance.getMessageManager().queueOutgoingMessage(internalMessage,
+        Collections.singletonList(host));
   }
 
   @Override
@@ -51,7 +56,7 @@ public class GuestConversation extends Conversation {
   @Override
   public void saveMessage(InternalMessage im) {
     try {
-      Core.instance.getDatabase().addMessage(im);
+      Core.instance.getMessageStore().addMessage(im);
     } catch (DBException e) {
       Core.instance.getUserInterface(); //TODO Do Stuff!!!!11!
     }
@@ -1,6 +1,7 @@
 package coversations;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import main.Core;
@@ -28,15 +29,18 @@ public class HostConversation extends Conversation {
     this.participants = participants;
   }
   
+  /**
+   * Constructs a new Host Conversation and loads its participants from the database.
+   * @param uuid The UUID of this Conversation.
+   * @param name The name of this Conversation
+   * @param participants The UUIDs of the participants. Unknown UUIDs are ignored.
+   * @throws DBException if the participants couldn't be loaded.
+   */
   public HostConversation(String uuid, String name, List<String> participants) throws DBException {
     super(uuid, name);
     
-    this.participants = new ArrayList<Contact>();
-    
-    for (Contact c: Core.instance.getDatabase().getContacts())
-      for (String s : participants)
-        if (c.getUuid().equals(s) && !this.participants.contains(c))
-          this.participants.add(c);
+    this.participants = new ArrayList<Contact>(
+        Core.instance.getDatabase().getContacts(new LinkedHashSet<String>(participants)));
   }
 
   public HostConversation(Contact c, String name) {
@@ -90,29 +94,22 @@ public class HostConversation extends Conversation {
   }
 
   /**
-   * Sends a Message to all participants of a Conversation.
+   * Sends a Message to all participants of a Conversation.<br>
+   * The Message is stored and will be retried until every participant received it.
    * 
    * @param message Message to send.
-   * @return whether the sending has suicided (all participants).
-   * @throws FormatException if the message is invalid.
+   * @return whether the Message has been queued for all participants.
    */
   public boolean sendMessage(InternalMessage m) {
-    boolean result = true;
-
-    for (Contact c : participants)
-      if (!Core.instance.getMessageManager().interpreteOutgoingMessage(m, c)) {
-        result = false;
-        Core.getInstance().getUserInterface()
-            .printError("Sending to '" + c.getNickname() + "' failed.");
-      }
-
-    return result;
+    return Core.instance.getMessageManager().queueOutgoingMessage(m, participants);
   }
 
   @Override
   public List<String> getParticipantsUuids() {
-    // TODO Auto-generated method stub
-    return null;
+    List<String> participantsUuids = new ArrayList<String>(participants.size());
+    for (Contact c : participants)
+      participantsUuids.add(c.getUuid());
+    return participantsUuids;
   }
   
   @Override
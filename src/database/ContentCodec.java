@@ -0,0 +1,112 @@
+package database;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the content of messages (Deflate, UTF-8).<br>
+ * Chat messages are short, so plain Deflate hardly finds repetitions in them. The content can be
+ * compressed with a preset dictionary of frequent words and phrases instead; Deflate then refers
+ * to the dictionary as if it preceded the message. The compressed data contains the checksum of
+ * the dictionary, so {@link #inflate(byte[])} can decompress data with and without it.
+ */
+class ContentCodec {
+
+  /**
+   * The preset dictionary. Deflate encodes references to the end of the dictionary with fewer
+   * bits, so the most frequent strings are at the end. Must never be changed: the stored messages
+   * can only be decompressed with exactly this dictionary.
+   */
+  private static final byte[] DICTIONARY = (
+      "https://www. .com .org .net .de http:// Thank you very much! Sorry, I don't know. "
+      + "Good morning Good night Happy birthday! Congratulations! See you tomorrow. "
+      + "What do you think about it? Let me know when you are ready. I will be there in "
+      + "minutes. Could you please send me the file? Did you get my message? "
+      + "Yes, of course. No problem. Maybe later. I'm not sure. Where are you? "
+      + "What are you doing? How are you? I'm fine, thanks. And you? "
+      + "because about would should could there their they them then than this that these "
+      + "those with from have has had been were was will just also only some what when where "
+      + "which who why how here now today tomorrow yesterday tonight time right really "
+      + "something anything nothing everything think know want need like good great nice "
+      + "thanks please sorry okay ok yes no not the and for you are is it in to of a I "
+      + "can't don't I'm it's that's you're we're I'll I've let's haha lol :) :D ;) :( ")
+      .getBytes(StandardCharsets.UTF_8);
+
+  /** The Adler-32 checksum of the dictionary, as stored in the compressed data. */
+  private static final int DICTIONARY_ID;
+
+  static {
+    Adler32 adler = new Adler32();
+    adler.update(DICTIONARY);
+    DICTIONARY_ID = (int) adler.getValue();
+  }
+
+  private ContentCodec() {}
+
+  /**
+   * Compresses a text with the preset dictionary and the best compression.
+   *
+   * @param s the text.
+   * @return the compressed bytes.
+   */
+  static byte[] deflate(String s) {
+    return deflate(s.getBytes(StandardCharsets.UTF_8), Deflater.BEST_COMPRESSION);
+  }
+
+  /**
+   * Compresses UTF-8 bytes with the preset dictionary.
+   *
+   * @param in the bytes.
+   * @param level the compression level of the {@link Deflater}.
+   * @return the compressed bytes.
+   */
+  static byte[] deflate(byte[] in, int level) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(in);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 16);
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished())
+        out.write(buffer, 0, deflater.deflate(buffer));
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decompresses a text compressed by {@link #deflate(String)} (or without a dictionary).
+   *
+   * @param b the compressed bytes.
+   * @return the text.
+   * @throws DataFormatException if the bytes are corrupt.
+   */
+  static String inflate(byte[] b) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(b);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(b.length * 3);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (n == 0 && inflater.needsDictionary()) {
+          if (inflater.getAdler() != DICTIONARY_ID)
+            throw new DataFormatException("Unknown dictionary.");
+          inflater.setDictionary(DICTIONARY);
+        } else if (n == 0 && inflater.needsInput()) {
+          throw new DataFormatException("Truncated content.");
+        }
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package database;
+
+/**
+ * An entry of the conversation overview: the counters and the last message of a conversation.
+ *
+ * @see Database#getConversationOverview()
+ */
+public class ConversationSummary {
+  /** The UUID of the conversation. */
+  private final String uuid;
+  /** The name of the conversation. */
+  private final String name;
+  /** Whether the user is the host of the conversation. */
+  private final boolean host;
+  /** The number of messages (including archived ones). */
+  private final long messageCount;
+  /** The number of messages that haven't been read. */
+  private final long unreadCount;
+  /** The database ID of the newest message; -1 if there is none. */
+  private final int lastMessageId;
+  /** The timestamp of the newest message; -1 if there is none. */
+  private final long lastTimestamp;
+  /** The content of the newest message; <code>null</code> if there is none. */
+  private final String lastContent;
+
+  ConversationSummary(String uuid, String name, boolean host, long messageCount, long unreadCount,
+      int lastMessageId, long lastTimestamp, String lastContent) {
+    this.uuid = uuid;
+    this.name = name;
+    this.host = host;
+    this.messageCount = messageCount;
+    this.unreadCount = unreadCount;
+    this.lastMessageId = lastMessageId;
+    this.lastTimestamp = lastTimestamp;
+    this.lastContent = lastContent;
+  }
+
+  /**
+   * @return the UUID of the conversation.
+   */
+  public String getUuid() {
+    return uuid;
+  }
+
+  /**
+   * @return the name of the conversation.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return whether the user is the host of the conversation.
+   */
+  public boolean isHost() {
+    return host;
+  }
+
+  /**
+   * @return the number of messages (including archived ones).
+   */
+  public long getMessageCount() {
+    return messageCount;
+  }
+
+  /**
+   * @return the number of messages of other contacts that haven't been read.
+   */
+  public long getUnreadCount() {
+    return unreadCount;
+  }
+
+  /**
+   * @return the database ID of the newest message or -1 if there is none.
+   */
+  public int getLastMessageId() {
+    return lastMessageId;
+  }
+
+  /**
+   * @return the timestamp (in milliseconds) of the newest message or -1 if there is none.
+   */
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  /**
+   * @return the content of the newest message or <code>null</code> if there is none.
+   */
+  public String getLastContent() {
+    return lastContent;
+  }
+}
@@ -1,27 +1,48 @@
 package database;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.Serializable;
 import java.net.InetSocketAddress;
-import java.sql.Blob;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import persons.Contact;
 import coversations.Conversation;
 import coversations.GuestConversation;
 import coversations.HostConversation;
+import database.ReaderPool.Reader;
 import exceptions.DBException;
 import exceptions.FormatException;
 import exchange.InternalMessage;
@@ -30,18 +51,29 @@ import exchange.Message;
 /**
  * This class can be provides access to the Messenger's database.
  * The database consists of the following tables:
- * Messages:
- * | id | content | sender_id | conversation_id | timestamp | sent |
+ * Messages (if flags contains {@link #FLAG_COMPRESSED}, content is compressed):
+ * | id | content | sender_id | conversation_id | timestamp | sent | flags |
  * Contacts:
- * | id | name | uuid | public_key | address |
+ * | id | name | uuid | public_key | host | port |
  * Conversations:
  * | id | name | uuid | participants_uuids | host |
- * (If the Conversation is a HostConversation, participants_uuids contains a list of the 
- * participants' UUIDs and host is 1 (->true). If it is a GuestConversation, it contains the UUID
- * of the host and host is 0 (->false).)
+ * (If the Conversation is a HostConversation, host is 1 (->true) and participants_uuids is empty.
+ * If it is a GuestConversation, participants_uuids contains the UUID of the host and host is
+ * 0 (->false).)
+ * Conversation_participants (the host of a GuestConversation is its only participant):
+ * | conversation_id | contact_id |
+ * Outbox (messages that haven't been acknowledged by a recipient yet):
+ * | message_id | contact_id | attempts | next_attempt |
+ * Messages_search (FTS4 index of the messages' content, docid = id of the message):
+ * | docid | content |
+ * Conversation_stats (counters of a conversation, maintained whenever a message is added):
+ * | conversation_id | message_count | unread_count | last_message_id | last_timestamp |
+ * Messages_archive (old messages moved out of the messages table, content is compressed; they
+ * stay in the search index with the same docid):
+ * | id | content | sender_id | conversation_id | timestamp | sent |
  * @author G.
  */
-public class Database implements AutoCloseable {
+public class Database implements MessageStore {
   static { assert_constants(); }
 //public
   /**
@@ -58,20 +90,37 @@ public class Database implements AutoCloseable {
    *   If this is true, the database will be created if the file does not exist yet.
    */
   public Database(boolean createTables, String dbLocation) throws DBException {
+    this(createTables, dbLocation, DEFAULT_READERS);
+  }
+  
+  /**
+   * Connects to the database.
+   * @param createTables
+   *   If this is true, the database will be created if the file does not exist yet.
+   * @param readerCount
+   *   The number of read-only connections. Reading methods use them, so that concurrent reads
+   *   neither wait for each other nor for writes.
+   */
+  public Database(boolean createTables, String dbLocation, int readerCount) throws DBException {
+    if (readerCount <= 0)
+      throw new IllegalArgumentException("readerCount must be greater than 0. readerCount = "
+          + readerCount);
     try {
       Class.forName("org.sqlite.JDBC");
       File dbFile = new File(dbLocation);
       if (dbFile.exists() && (dbFile.isDirectory() || !dbFile.canRead() || !dbFile.canWrite()))
         throw new DBException("Database file is directory or not readable/writeable.");
-      if (!dbFile.exists()) {
-        if (createTables) {
-          connect(dbFile.getPath());
-          createTables();
-        } else {
-          throw new DBException("Database file at "+dbFile.getPath()+" doesn't exist.");
-        }
-      }
+      boolean create = !dbFile.exists();
+      if (create && !createTables)
+        throw new DBException("Database file at "+dbFile.getPath()+" doesn't exist.");
       connect(dbFile.getPath());
+      if (create)
+        createTables();
+      migrate();
+      createIndices();
+      if (createSearchTable())
+        rebuildSearchIndex();
+      readers = new ReaderPool(dbFile.getPath(), readerCount);
     } catch (ClassNotFoundException e) {
       throw new DBException("The SQLite database driver isn't accessible.\n", e);
     } catch (SQLException e) {
@@ -86,25 +135,421 @@ public class Database implements AutoCloseable {
    *   <code>InternalMessage</code>
    * @throws DBException
    */
-  public void addMessage(InternalMessage m) throws DBException {
+  public synchronized void addMessage(InternalMessage m) throws DBException {
+    addMessages(Collections.singletonList(m));
+  }
+  
+  /**
+   * Add messages to the database in one transaction: either all of them are stored or none.
+   * @param messages
+   *   The messages.
+   * @throws DBException
+   *   If a database exception occurs, e.g. the sender or the conversation of a message is
+   *   unknown.
+   */
+  @Override
+  public synchronized void addMessages(List<InternalMessage> messages) throws DBException {
     //Messages:
     //| id | content | sender_id | conversation_id | timestamp | sent |
-    try (Statement stmt = conn.createStatement();) {
-      EscapedString content = new EscapedString(m.getContent());
-      int sender_id = getContactId(new EscapedString(m.getUuidSender()));
-      int conversation_id = getConversationId(new EscapedString(m.getUuidConversation()));
-      boolean sent = m.isSent();
-      long timestamp = m.getTimeStamp().getTimeInMillis();
-      String sql = "INSERT INTO "+MESSAGES_TABLE
-          + "(content,sender_id,conversation_id,timestamp,sent) "
-          + "VALUES ("+content.toQuotedString()+","+sender_id+","+conversation_id
-          + ","+timestamp+","+(sent?1:0)+");";
-      stmt.executeUpdate(sql);
+    int[] sender_ids = new int[messages.size()];
+    int[] conversation_ids = new int[messages.size()];
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for (int i = 0; i < messages.size(); i++) {
+      InternalMessage m = messages.get(i);
+      Integer id = ids.get(m.getUuidSender());
+      if (id == null)
+        ids.put(m.getUuidSender(), id = getContactId(new EscapedString(m.getUuidSender())));
+      sender_ids[i] = id;
+      //Conversations and contacts have different UUIDs.
+      id = ids.get(m.getUuidConversation());
+      if (id == null)
+        ids.put(m.getUuidConversation(),
+            id = getConversationId(new EscapedString(m.getUuidConversation())));
+      conversation_ids[i] = id;
+    }
+    boolean[] numbered = new boolean[messages.size()];
+    try {
+      inTransaction(() -> {
+        for (int i = 0; i < messages.size(); i++) {
+          InternalMessage m = messages.get(i);
+          //Messages of the user are read and mean that the user has read the conversation.
+          boolean own = m.getUuidSender().equals(userUuid);
+          //The user's messages are numbered when they are stored (before they are sent).
+          if (own && m.getSequence() == 0) {
+            m.setSequence(nextSequence(m.getUuidConversation(), m.getUuidSender()));
+            numbered[i] = true;
+          }
+          int id = insertMessage(m.getContent(), m.getUuidSender(), sender_ids[i],
+              conversation_ids[i], m.getTimeStamp().getTimeInMillis(), m.isSent() ? 1 : 0,
+              m.getSequence(), !own, own);
+          m.setDatabaseId(id);
+        }
+      });
     } catch (SQLException e) {
+      //Rolled back: the numbers are given again when the messages are stored.
+      for (int i = 0; i < messages.size(); i++)
+        if (numbered[i])
+          messages.get(i).setSequence(0);
       throw new DBException(e.getMessage());
     }
   }
   
+  /**
+   * Searches the content of the messages in the database, including the archived ones.<br>
+   * Every word of the query has to appear in a message for it to be found. A word that ends with
+   * a '*' matches every word that starts with it. The hits are ranked by how often the words
+   * appear in the message compared to the rest of the history; hits with the same rank are
+   * ordered newest first.
+   * 
+   * @param query
+   *    The words to search for.
+   * @param conv
+   *    Only messages in this conversation will be returned. Can be <code>null</code>.
+   * @param sender
+   *    Only messages sent by this contact will be returned. Can be <code>null</code>.
+   * @param offset
+   *    The number of hits to skip (for pagination).
+   * @param maxNumberOfMessages
+   *    The maximum number of hits that will be returned.
+   * @return
+   *    A <code>List</code> of the found {@link Message}s, best hit first.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @throws IllegalArgumentException
+   *    If the query contains no words, <code>offset</code> is smaller than <code>0</code> or
+   *    <code>maxNumberOfMessages</code> is equal to or smaller than <code>0</code>.
+   * @throws DBException
+   *    If the history is stored in another {@link MessageStore} (see
+   *    {@link #setExternalHistory(boolean)}).
+   */
+  public List<Message> searchMessages(String query, Conversation conv, Contact sender, int offset,
+      int maxNumberOfMessages) throws DBException, IllegalArgumentException {
+    checkHistory("The search");
+    if (maxNumberOfMessages <= 0)
+      throw new IllegalArgumentException("maxNumberOfMessages must be greater than 0. "
+          + "maxNumberOfMessages = "+maxNumberOfMessages);
+    if (offset < 0)
+      throw new IllegalArgumentException("offset must be positive. offset = "+offset);
+    String match = toMatchExpression(query);
+    
+    StringBuilder filter = new StringBuilder();
+    if (conv != null)
+      filter.append(" AND c.uuid = ?");
+    if (sender != null)
+      filter.append(" AND s.uuid = ?");
+    //The hits are joined with the messages table and with the archive.
+    StringBuilder sql = new StringBuilder(1024);
+    sql.append("WITH f AS (SELECT docid, ").append(SearchRank.NAME)
+        .append("(matchinfo(").append(SEARCH_TABLE).append(", 'pcx')) AS rank FROM ")
+        .append(SEARCH_TABLE).append(" WHERE ").append(SEARCH_TABLE).append(" MATCH ?) ")
+        .append("SELECT * FROM (SELECT ").append(HISTORY_COLUMNS).append(", f.rank AS rank ")
+        .append(HISTORY_FROM).append("JOIN f ON f.docid = m.id WHERE 1").append(filter)
+        .append(" UNION ALL SELECT ").append(ARCHIVE_COLUMNS).append(", f.rank AS rank ")
+        .append(ARCHIVE_FROM).append("JOIN f ON f.docid = m.id WHERE 1").append(filter)
+        .append(") ORDER BY rank DESC, timestamp DESC, id DESC LIMIT ? OFFSET ?;");
+    
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement(sql.toString());) {
+      int i = 1;
+      pstmt.setString(i++, match);
+      for (int table = 0; table < 2; table++) {
+        if (conv != null)
+          pstmt.setString(i++, conv.getUuid());
+        if (sender != null)
+          pstmt.setString(i++, sender.getUuid());
+      }
+      pstmt.setInt(i++, maxNumberOfMessages);
+      pstmt.setInt(i++, offset);
+      
+      ResultSet rs = pstmt.executeQuery();
+      List<Message> results = new ArrayList<Message>(Math.min(maxNumberOfMessages, 1024));
+      while (rs.next())
+        results.add(readHistoryRow(rs));
+      return results;
+    } catch (FormatException|SQLException e) {
+      throw new DBException("Searching messages failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Rebuilds the search index from the messages table and the archive.<br>
+   * Has to be used for databases whose messages were added without the index (it is done
+   * automatically when such a database is opened for the first time).
+   * 
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void rebuildSearchIndex() throws DBException {
+    try {
+      inTransaction(() -> {
+        try (Statement stmt = conn.createStatement();) {
+          stmt.executeUpdate("DELETE FROM "+SEARCH_TABLE+";");
+        }
+        indexMessages("SELECT id, content, flags, 0 AS archived FROM "+MESSAGES_TABLE
+            + " UNION ALL SELECT id, content, 0 AS flags, 1 AS archived FROM "+ARCHIVE_TABLE+";");
+      });
+      try (Statement stmt = conn.createStatement();) {
+        stmt.executeUpdate("INSERT INTO "+SEARCH_TABLE+"("+SEARCH_TABLE+") VALUES ('optimize');");
+      }
+    } catch (SQLException e) {
+      throw new DBException("Rebuilding the search index failed: "+e.getMessage());
+    }
+  }
+
+  /**
+   * Moves the oldest messages that were sent before the given time to the archive.<br>
+   * Archived messages are stored compressed and are still returned by the history methods (e.g.
+   * {@link #getLastNMessages(Conversation, long, int, boolean)}) and found by
+   * {@link #searchMessages(String, Conversation, Contact, int, int)}. Messages that still have to
+   * be delivered (outbox) aren't archived. The digests of received messages (see
+   * {@link #addMessageDigests(Map)}) that are older than the archived messages are deleted.
+   *
+   * @param olderThan
+   *   The time (in milliseconds). Messages with a smaller timestamp are archived.
+   * @param maxNumberOfMessages
+   *   The maximum number of messages that are moved (in one transaction).
+   * @return the number of archived messages.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized int archiveMessages(long olderThan, int maxNumberOfMessages)
+      throws DBException {
+    if (maxNumberOfMessages <= 0)
+      throw new IllegalArgumentException("maxNumberOfMessages must be greater than 0. "
+          + "maxNumberOfMessages = "+maxNumberOfMessages);
+    List<Object> params = new ArrayList<Object>(1);
+    params.add(olderThan);
+    try {
+      return moveToArchive("timestamp < ?", params, maxNumberOfMessages);
+    } catch (SQLException e) {
+      throw new DBException("Archiving messages failed: "+e.getMessage());
+    }
+  }
+
+  /**
+   * Limits the number of messages per conversation in the messages table: the oldest messages of
+   * every conversation that has more than <code>maxPerConversation</code> messages are moved to
+   * the archive (see {@link #archiveMessages(long, int)}).
+   *
+   * @param maxPerConversation
+   *   The number of messages that are kept per conversation.
+   * @param maxNumberOfMessages
+   *   The maximum number of messages that are moved.
+   * @return the number of archived messages.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized int archiveOverflow(int maxPerConversation, int maxNumberOfMessages)
+      throws DBException {
+    if (maxPerConversation <= 0)
+      throw new IllegalArgumentException("maxPerConversation must be greater than 0. "
+          + "maxPerConversation = "+maxPerConversation);
+    if (maxNumberOfMessages <= 0)
+      throw new IllegalArgumentException("maxNumberOfMessages must be greater than 0. "
+          + "maxNumberOfMessages = "+maxNumberOfMessages);
+    int moved = 0;
+    try (Statement stmt = conn.createStatement();
+        PreparedStatement boundary = conn.prepareStatement("SELECT timestamp, id FROM "
+            + MESSAGES_TABLE+" WHERE conversation_id = ? "
+            + "ORDER BY timestamp DESC, id DESC LIMIT 1 OFFSET ?;");) {
+      List<Integer> conversations = new ArrayList<Integer>();
+      ResultSet rs = stmt.executeQuery("SELECT id FROM "+CONVERSATIONS_TABLE+";");
+      while (rs.next())
+        conversations.add(rs.getInt(1));
+      rs.close();
+
+      for (int conversation_id : conversations) {
+        if (moved >= maxNumberOfMessages)
+          break;
+        //The newest message that is over the limit; it and all older ones are archived.
+        boundary.setInt(1, conversation_id);
+        boundary.setInt(2, maxPerConversation);
+        long timestamp;
+        int id;
+        try (ResultSet b = boundary.executeQuery();) {
+          if (!b.next())
+            continue;
+          timestamp = b.getLong(1);
+          id = b.getInt(2);
+        }
+        List<Object> params = new ArrayList<Object>(4);
+        params.add(conversation_id);
+        params.add(timestamp);
+        params.add(timestamp);
+        params.add(id);
+        moved += moveToArchive("conversation_id = ? AND (timestamp < ? OR (timestamp = ? AND "
+            + "id <= ?))", params, maxNumberOfMessages - moved);
+      }
+      return moved;
+    } catch (SQLException e) {
+      throw new DBException("Archiving messages failed: "+e.getMessage());
+    }
+  }
+
+  /**
+   * Gives up to <code>pages</code> free pages of the database file back to the file system.
+   * (Pages become free when messages are archived.)
+   *
+   * @param pages
+   *   The maximum number of pages to be freed.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void incrementalVacuum(int pages) throws DBException {
+    if (pages <= 0)
+      throw new IllegalArgumentException("pages must be greater than 0. pages = "+pages);
+    try (Statement stmt = conn.createStatement();) {
+      stmt.executeUpdate("PRAGMA incremental_vacuum("+pages+");");
+    } catch (SQLException e) {
+      throw new DBException("Vacuuming the database failed: "+e.getMessage());
+    }
+  }
+
+  /**
+   * Sets the minimal size of a message's content to be stored compressed.<br>
+   * Contents that are at least this long (in UTF-8 bytes) are compressed with a dictionary of
+   * frequent words (see {@link ContentCodec}) when they are added, if that makes them smaller. Every
+   * row is flagged, so the compression can be changed at any time; the search index always stores
+   * the plain text.
+   * 
+   * @param bytes
+   *   The size in bytes; 0 disables the compression. The default is
+   *   {@link #DEFAULT_COMPRESSION_THRESHOLD}.
+   * @throws IllegalArgumentException
+   *   If <code>bytes</code> is smaller than <code>0</code>.
+   */
+  public void setCompressionThreshold(int bytes) {
+    if (bytes < 0)
+      throw new IllegalArgumentException("bytes must not be negative. bytes = "+bytes);
+    compressionThreshold = bytes;
+  }
+
+  /**
+   * Writes the history of one or all conversations to a stream (see {@link HistoryFormat}).<br>
+   * The export contains the conversations, their participants, the senders of their messages and
+   * all their messages (including archived ones). It is read from one snapshot of the database
+   * and written row by row, so the memory used doesn't depend on the size of the history.
+   *
+   * @param conv
+   *   The conversation to be exported. If it is <code>null</code>, all conversations and contacts
+   *   are exported.
+   * @param out
+   *   The stream the export is written to. It is flushed, but not closed.
+   * @return the numbers of the exported records (see {@link TransferStats}).
+   * @throws DBException
+   *   If a database exception occurs.
+   * @throws IOException
+   *   If writing to the stream fails.
+   */
+  public TransferStats exportHistory(Conversation conv, OutputStream out)
+      throws DBException, IOException {
+    TransferStats stats = new TransferStats();
+    long start = System.nanoTime();
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    try (Reader reader = readers.acquire();) {
+      //One read transaction, so the export is consistent even if messages are added meanwhile.
+      reader.conn.setAutoCommit(false);
+      try {
+        dos.writeInt(HistoryFormat.MAGIC);
+        dos.writeInt(HistoryFormat.VERSION);
+        exportContacts(reader.conn, conv, dos, stats);
+        exportConversations(reader.conn, conv, dos, stats);
+        String where = conv == null ? "" : "WHERE c.uuid = ? ";
+        exportMessages(reader.conn, "SELECT "+HISTORY_COLUMNS+HISTORY_FROM+where, conv, dos, stats);
+        exportMessages(reader.conn, "SELECT "+ARCHIVE_COLUMNS+ARCHIVE_FROM+where, conv, dos, stats);
+        dos.writeByte(HistoryFormat.END);
+        dos.flush();
+      } finally {
+        reader.conn.commit();
+        reader.conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new DBException("Exporting the history failed: "+e.getMessage());
+    }
+    stats.elapsedNanos = System.nanoTime() - start;
+    return stats;
+  }
+
+  /**
+   * Adds the contacts, conversations and messages of an export (see
+   * {@link #exportHistory(Conversation, OutputStream)}) to the database.<br>
+   * Records that are already in the database are skipped: contacts and conversations are
+   * identified by their UUID, messages by their conversation, sender, timestamp and content. The
+   * records are read in batches of {@link #IMPORT_BATCH_SIZE} and every batch is written in one
+   * transaction; the database is only locked while a batch is written, not while the stream is
+   * read. If the import fails, the batches that were committed before stay in the database
+   * (importing the same export again completes it).
+   *
+   * @param in
+   *   The stream the export is read from. It isn't closed.
+   * @return the number of added and skipped records.
+   * @throws DBException
+   *   If a database exception occurs.
+   * @throws IOException
+   *   If reading the stream fails or it isn't a valid export.
+   */
+  public TransferStats importHistory(InputStream in) throws DBException, IOException {
+    TransferStats stats = new TransferStats();
+    long start = System.nanoTime();
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    if (dis.readInt() != HistoryFormat.MAGIC)
+      throw new IOException("The stream isn't a history export.");
+    int version = dis.readInt();
+    if (version != HistoryFormat.VERSION)
+      throw new IOException("Unsupported version of the history export: "+version);
+
+    //Only the IDs of contacts and conversations are cached, so the memory used doesn't depend on
+    //the number of messages.
+    Map<String, Integer> contactIds = new HashMap<String, Integer>();
+    Map<String, Integer> conversationIds = new HashMap<String, Integer>();
+    boolean end = false;
+    List<ImportRecord> batch = new ArrayList<ImportRecord>(IMPORT_BATCH_SIZE);
+    while (!end) {
+      batch.clear();
+      while (batch.size() < IMPORT_BATCH_SIZE && !end) {
+        byte tag = dis.readByte();
+        switch (tag) {
+          case HistoryFormat.END:
+            end = true;
+            break;
+          case HistoryFormat.CONTACT:
+            batch.add(readContact(dis, stats));
+            break;
+          case HistoryFormat.CONVERSATION:
+            batch.add(readConversation(dis, stats));
+            break;
+          case HistoryFormat.MESSAGE:
+            batch.add(readMessage(dis, contactIds, conversationIds, stats));
+            break;
+          default:
+            throw new IOException("Corrupt history export: unknown record "+tag);
+        }
+      }
+      if (batch.isEmpty())
+        continue;
+      //Only the writing of a batch locks the database.
+      synchronized (this) {
+        try {
+          inTransaction(() -> {
+            try (PreparedStatement live = conn.prepareStatement("SELECT id, content, flags, "
+                    + "0 AS archived FROM "+MESSAGES_TABLE
+                    + " WHERE conversation_id = ? AND timestamp = ? AND sender_id = ?;");
+                PreparedStatement archived = conn.prepareStatement("SELECT id, content, "
+                    + "0 AS flags, 1 AS archived FROM "+ARCHIVE_TABLE
+                    + " WHERE conversation_id = ? AND timestamp = ? AND sender_id = ?;");) {
+              for (ImportRecord r : batch)
+                r.write(live, archived);
+            }
+          });
+        } catch (SQLException e) {
+          throw new DBException("Importing the history failed: "+e.getMessage());
+        }
+      }
+    }
+    stats.elapsedNanos = System.nanoTime() - start;
+    return stats;
+  }
+
   /**
    * Increment the column 'sent' of a message.
    * @param id
@@ -112,25 +557,227 @@ public class Database implements AutoCloseable {
    * @throws IllegalArgumentException
    *   if <code>id</code> < 0
    */
-  public void incrementSent(int id) throws DBException {
+  public synchronized void incrementSent(int id) throws DBException {
     if (id < 0) {
       throw new IllegalArgumentException("id smaller than 0. id = "+id);
     }
-    String sql = "UPDATE "+MESSAGES_TABLE+" WHERE id = "+id+" SET id = id + 1;";
-    try (Statement stmt = conn.createStatement()) {
-      stmt.executeUpdate(sql);
+    try (PreparedStatement pstmt = conn.prepareStatement("UPDATE "+MESSAGES_TABLE
+        + " SET sent = sent + 1 WHERE id = ?;")) {
+      pstmt.setInt(1, id);
+      pstmt.executeUpdate();
     } catch (SQLException e) {
       throw new DBException(e.getMessage());
     }
   }
   
+  /**
+   * Stores a message that has to be sent and puts it into the outbox of every recipient.
+   * Both happens in one transaction, so a message is never lost between storing and sending.
+   * If the message already has a database ID it isn't stored again.
+   * 
+   * @param m
+   *    The message. Its database ID will be set.
+   * @param recipients
+   *    The UUIDs of the recipients.
+   * @param nextAttempt
+   *    The time (in milliseconds) of the first delivery attempt.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void enqueueMessage(InternalMessage m, Collection<String> recipients, long nextAttempt)
+      throws DBException {
+    try {
+      inTransaction(() -> {
+        if (!m.hasDatabaseId())
+          try {
+            addMessage(m);
+          } catch (DBException e) {
+            throw new SQLException(e.getMessage());
+          }
+        try (PreparedStatement pstmt = conn.prepareStatement("INSERT OR IGNORE INTO "
+            + OUTBOX_TABLE+"(message_id,contact_id,attempts,next_attempt) "
+            + "SELECT ?, id, 0, ? FROM "+CONTACTS_TABLE+" WHERE uuid = ?;");) {
+          for (String uuid : recipients) {
+            pstmt.setInt(1, m.getDatabaseId());
+            pstmt.setLong(2, nextAttempt);
+            pstmt.setString(3, uuid);
+            pstmt.addBatch();
+          }
+          pstmt.executeBatch();
+        }
+      });
+    } catch (SQLException e) {
+      throw new DBException("Enqueueing message failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Get the outbox entries whose next delivery attempt is due.
+   * 
+   * @param until
+   *    Only entries due before or at this time (in milliseconds) are returned.
+   * @param maxNumberOfEntries
+   *    The maximum number of entries that will be returned.
+   * @return
+   *    A <code>List</code> of {@link OutboxEntry}s, the most overdue first.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public List<OutboxEntry> getDueOutboxEntries(long until, int maxNumberOfEntries)
+      throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT "+HISTORY_COLUMNS
+        + ", r.uuid AS recipient_uuid, o.attempts AS attempts, o.next_attempt AS next_attempt "
+        + HISTORY_FROM+"JOIN "+OUTBOX_TABLE+" o ON o.message_id = m.id "
+        + "JOIN "+CONTACTS_TABLE+" r ON r.id = o.contact_id "
+        + "WHERE o.next_attempt <= ? ORDER BY o.next_attempt ASC LIMIT ?;")) {
+      pstmt.setLong(1, until);
+      pstmt.setInt(2, maxNumberOfEntries);
+      ResultSet rs = pstmt.executeQuery();
+      List<OutboxEntry> results = new ArrayList<OutboxEntry>();
+      while (rs.next())
+        results.add(new OutboxEntry(readHistoryRow(rs),
+            EscapedString.unescape(rs.getString("recipient_uuid")),
+            rs.getInt("attempts"), rs.getLong("next_attempt")));
+      return results;
+    } catch (FormatException|SQLException e) {
+      throw new DBException("Reading the outbox failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * @return the time (in milliseconds) of the next due delivery attempt or <code>-1</code> if the
+   *         outbox is empty.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public long getNextOutboxAttempt() throws DBException {
+    try (Reader reader = readers.acquire(); Statement stmt = reader.conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("SELECT MIN(next_attempt) FROM "+OUTBOX_TABLE+";");
+      long next = rs.next() ? rs.getLong(1) : 0;
+      return rs.wasNull() ? -1 : next;
+    } catch (SQLException e) {
+      throw new DBException("Reading the outbox failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * @return the number of outbox entries per recipient UUID (only recipients with entries).
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public Map<String, Integer> getOutboxSizes() throws DBException {
+    try (Reader reader = readers.acquire(); Statement stmt = reader.conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("SELECT r.uuid, COUNT(*) FROM "+OUTBOX_TABLE+" o JOIN "
+          + CONTACTS_TABLE+" r ON r.id = o.contact_id GROUP BY o.contact_id;");
+      Map<String, Integer> sizes = new HashMap<String, Integer>();
+      while (rs.next())
+        sizes.put(EscapedString.unescape(rs.getString(1)), rs.getInt(2));
+      return sizes;
+    } catch (SQLException e) {
+      throw new DBException("Reading the outbox failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Removes a message from the outbox of a recipient and increments its 'sent' column.
+   * Has to be called when the recipient acknowledged the message.
+   * 
+   * @param messageId
+   *    The message's ID.
+   * @param recipientUuid
+   *    The UUID of the recipient.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void markDelivered(int messageId, String recipientUuid) throws DBException {
+    try {
+      inTransaction(() -> {
+        try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM "+OUTBOX_TABLE
+            + " WHERE message_id = ? AND contact_id = (SELECT id FROM "+CONTACTS_TABLE
+            + " WHERE uuid = ?);");) {
+          pstmt.setInt(1, messageId);
+          pstmt.setString(2, recipientUuid);
+          if (pstmt.executeUpdate() == 0)
+            return;
+        }
+        try {
+          incrementSent(messageId);
+        } catch (DBException e) {
+          throw new SQLException(e.getMessage());
+        }
+      });
+    } catch (SQLException e) {
+      throw new DBException("Marking message as delivered failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Reschedules the outbox entries of a recipient after a failed delivery attempt.<br>
+   * The failed message's attempts are incremented and all messages for the recipient that would be
+   * due earlier are postponed to <code>nextAttempt</code>, so an unreachable recipient isn't tried
+   * once per queued message.
+   * 
+   * @param messageId
+   *    The ID of the message whose delivery failed.
+   * @param recipientUuid
+   *    The UUID of the recipient.
+   * @param nextAttempt
+   *    The time (in milliseconds) of the next delivery attempt.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void postponeOutbox(int messageId, String recipientUuid, long nextAttempt)
+      throws DBException {
+    try {
+      inTransaction(() -> {
+        try (PreparedStatement pstmt = conn.prepareStatement("UPDATE "+OUTBOX_TABLE
+            + " SET attempts = attempts + (CASE WHEN message_id = ? THEN 1 ELSE 0 END), "
+            + "next_attempt = MAX(next_attempt, ?) WHERE contact_id = (SELECT id FROM "
+            + CONTACTS_TABLE+" WHERE uuid = ?);");) {
+          pstmt.setInt(1, messageId);
+          pstmt.setLong(2, nextAttempt);
+          pstmt.setString(3, recipientUuid);
+          pstmt.executeUpdate();
+        }
+      });
+    } catch (SQLException e) {
+      throw new DBException("Postponing outbox failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Spreads the overdue outbox entries randomly over a time window. Used after a restart, so the
+   * whole backlog isn't sent at once.
+   * 
+   * @param now
+   *    The current time (in milliseconds).
+   * @param window
+   *    The length of the time window (in milliseconds).
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void spreadOverdueOutbox(long now, long window) throws DBException {
+    if (window <= 0)
+      throw new IllegalArgumentException("window must be greater than 0. window = "+window);
+    try (PreparedStatement pstmt = conn.prepareStatement("UPDATE "+OUTBOX_TABLE
+        + " SET next_attempt = ? + (ABS(RANDOM()) % ?) WHERE next_attempt < ?;")) {
+      pstmt.setLong(1, now);
+      pstmt.setLong(2, window);
+      pstmt.setLong(3, now);
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      throw new DBException("Spreading outbox failed: "+e.getMessage());
+    }
+  }
+  
   /**
    * Get a specific amount of the last messages in the database.
    * @param numberOfMessages
    * @param onlyUnsent
    *   Only return messages which haven't been sent yet.
    * @return
-   *   A <code>List</code> of <code>Message</code>s
+   *   A <code>List</code> of <code>Message</code>s (newest first)
    * @throws DBException 
    * 
    * @throws IllegaArgumentException
@@ -169,7 +816,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -214,7 +861,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -257,7 +904,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -300,7 +947,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -340,7 +987,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -378,7 +1025,7 @@ public class Database implements AutoCloseable {
    * 
    * @return 
    *    A <code>List</code> of {@link Message}s that fit
-   *    the given criteria.
+   *    the given criteria (newest first).
    *    
    * @throws DBException
    *    If a database exception occurs.
@@ -398,6 +1045,103 @@ public class Database implements AutoCloseable {
         maxNumberOfMessages, onlyUnsent);
   }
   
+  /**
+   * Opens a cursor over the history of a conversation, starting with the newest message.
+   * 
+   * @param conv
+   *    The conversation whose history will be read.
+   * @param pageSize
+   *    The number of rows that are fetched per query.
+   * @return
+   *    A {@link MessageCursor} that has to be closed after use.
+   * @throws IllegalArgumentException
+   *    If <code>pageSize</code> is equal to or smaller than <code>0</code>.
+   * @throws NullPointerException
+   *    If <code>conv</code> is <code>null</code>.
+   */
+  public MessageCursor getHistoryCursor(Conversation conv, int pageSize)
+      throws IllegalArgumentException, NullPointerException {
+    return getHistoryCursor(conv, Long.MAX_VALUE, Integer.MAX_VALUE, pageSize);
+  }
+  
+  /**
+   * Opens a cursor over the history of a conversation, starting with the newest message that is
+   * older than the given position. The position of a message is its (timestamp, id) pair, so a
+   * cursor can be continued later with the values of {@link MessageCursor#getTimestamp()} and
+   * {@link MessageCursor#getId()}.
+   * 
+   * @param conv
+   *    The conversation whose history will be read.
+   * @param beforeTimestamp
+   *    The timestamp of the position.
+   * @param beforeId
+   *    The database ID of the position.
+   * @param pageSize
+   *    The number of rows that are fetched per query.
+   * @return
+   *    A {@link MessageCursor} that has to be closed after use.
+   * @throws IllegalArgumentException
+   *    If <code>pageSize</code> is equal to or smaller than <code>0</code>.
+   * @throws NullPointerException
+   *    If <code>conv</code> is <code>null</code>.
+   */
+  public MessageCursor getHistoryCursor(Conversation conv, long beforeTimestamp, int beforeId,
+      int pageSize) throws IllegalArgumentException, NullPointerException {
+    Objects.requireNonNull(conv, "conv must not be null");
+    if (pageSize <= 0)
+      throw new IllegalArgumentException("pageSize must be greater than 0. pageSize = "+pageSize);
+    return new MessageCursor(this, conv.getUuid(), beforeTimestamp, beforeId, pageSize);
+  }
+  
+  /**
+   * Get a page of the history of a conversation (see
+   * {@link #getHistoryCursor(Conversation, long, int, int)}).
+   * 
+   * @param conv
+   *    The conversation whose history will be read.
+   * @param beforeTimestamp
+   *    The timestamp of the position.
+   * @param beforeId
+   *    The database ID of the position.
+   * @param pageSize
+   *    The maximum number of messages.
+   * @return
+   *    The messages (newest first).
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public List<InternalMessage> getHistoryPage(Conversation conv, long beforeTimestamp,
+      int beforeId, int pageSize) throws DBException {
+    List<InternalMessage> page = new ArrayList<InternalMessage>(Math.min(pageSize, 1024));
+    try (MessageCursor cursor = getHistoryCursor(conv, beforeTimestamp, beforeId, pageSize)) {
+      while (page.size() < pageSize && cursor.hasNext())
+        page.add(cursor.next());
+    } catch (IllegalStateException e) {
+      throw new DBException(e.getMessage());
+    }
+    return page;
+  }
+  
+  /**
+   * Streams the history of a conversation, newest message first. The rows are read lazily page
+   * by page, so the stream can be used for histories of any size. The stream has to be closed
+   * after use.
+   * 
+   * @param conv
+   *    The conversation whose history will be read.
+   * @param pageSize
+   *    The number of rows that are fetched per query.
+   * @return
+   *    A <code>Stream</code> of the conversation's messages.
+   * @see #getHistoryCursor(Conversation, int)
+   */
+  public Stream<InternalMessage> streamHistory(Conversation conv, int pageSize)
+      throws IllegalArgumentException, NullPointerException {
+    MessageCursor cursor = getHistoryCursor(conv, pageSize);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor,
+        Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+  }
+  
   /**
    * Add a <code>Contact</code> to the database,
    * @param c
@@ -406,29 +1150,25 @@ public class Database implements AutoCloseable {
    * @throws DBException
    *   If the <code>Contact</code>'s UUID already exists in the database.
    */
-  public void addContact(Contact c) throws DBException {
+  public synchronized void addContact(Contact c) throws DBException {
     //Contacts:
-    //| id | name | uuid | public_key | address |
-    EscapedString name = new EscapedString(c.getNickname());
-    EscapedString uuid = new EscapedString(c.getUuid());
-    EscapedString public_key = new EscapedString(c.getPublicKey());
-    Blob address;
-    try {
-      address = getSerializedBlob(c.getAddress());
-    } catch (SQLException e) {
-      throw new DBException("Adding contact failed (failed to serialize address):"+e.getMessage());
-    }
-    String sql = "INSERT INTO "+CONTACTS_TABLE+"(name,uuid,public_key,address) VALUES ("
-        + name.toQuotedString() + "," + uuid.toQuotedString()+ ","+public_key.toQuotedString()
-        + ",?);";
-    try (PreparedStatement pstmt = conn.prepareStatement(sql);) {
-      pstmt.setBlob(1, address);
-      ResultSet rs = pstmt.executeQuery("SELECT id FROM "+CONTACTS_TABLE+" WHERE uuid = "
-          + uuid.toQuotedString()+";");
-      if (rs.next()) {
+    //| id | name | uuid | public_key | host | port |
+    try (PreparedStatement pstmt = conn.prepareStatement("SELECT id FROM "+CONTACTS_TABLE
+        + " WHERE uuid = ?;");) {
+      pstmt.setString(1, c.getUuid());
+      if (pstmt.executeQuery().next()) {
         throw new DBException("The UUID already exists within the database.");
       }
-      rs.close();
+    } catch (SQLException e) {
+      throw new DBException("Adding contact failed: "+e.getMessage());
+    }
+    try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+CONTACTS_TABLE
+        + "(name,uuid,public_key,host,port) VALUES (?,?,?,?,?);");) {
+      pstmt.setString(1, c.getNickname());
+      pstmt.setString(2, c.getUuid());
+      pstmt.setString(3, c.getPublicKey());
+      pstmt.setString(4, c.getHost());
+      pstmt.setInt(5, c.getPort());
       pstmt.executeUpdate();
     } catch (SQLException e) {
       throw new DBException("Adding contact failed: "+e.getMessage());
@@ -448,23 +1188,18 @@ public class Database implements AutoCloseable {
    * @throws DBException
    *    If a database exception occurs or the UUID is not in the database.
    */
-  public void editContact(String contactUuid, Contact newContact) throws DBException {
+  public synchronized void editContact(String contactUuid, Contact newContact) throws DBException {
     //Contacts:
-    // | id | name | uuid | public_key | address |
+    // | id | name | uuid | public_key | host | port |
     int id = getContactId(new EscapedString(contactUuid));
-    StringBuilder sql = new StringBuilder(64);
-    
-    EscapedString name = new EscapedString(newContact.getNickname());
-    EscapedString uuid = new EscapedString(newContact.getUuid());
-    EscapedString public_key = new EscapedString(newContact.getPublicKey());
-    
-    sql.append("UPDATE "+CONTACTS_TABLE+" SET name = ").append(name.toQuotedString())
-        .append(", uuid = ").append(uuid.toQuotedString()).append(", public_key = ")
-        .append(public_key.toQuotedString()).append(", address = ? WHERE id = ").append(id)
-        .append(";");
-    try (PreparedStatement pstmt = conn.prepareStatement(sql.toString());){
-      Blob address = getSerializedBlob(newContact.getAddress());
-      pstmt.setBlob(1, address);
+    try (PreparedStatement pstmt = conn.prepareStatement("UPDATE "+CONTACTS_TABLE
+        + " SET name = ?, uuid = ?, public_key = ?, host = ?, port = ? WHERE id = ?;");){
+      pstmt.setString(1, newContact.getNickname());
+      pstmt.setString(2, newContact.getUuid());
+      pstmt.setString(3, newContact.getPublicKey());
+      pstmt.setString(4, newContact.getHost());
+      pstmt.setInt(5, newContact.getPort());
+      pstmt.setInt(6, id);
       pstmt.executeUpdate();
     } catch (SQLException e) {
       throw new DBException("Editing contact with id "+id+" failed: "+e.getMessage());
@@ -479,18 +1214,13 @@ public class Database implements AutoCloseable {
    */
   public List<Contact> getContacts() throws DBException {
     //Contacts:
-    //| id | name | uuid | public_key | address |
-    try (Statement stmt = conn.createStatement();) {
-      LinkedList<Contact> results = new LinkedList<Contact>();
-      String sql = "SELECT * FROM "+CONTACTS_TABLE+";";
+    //| id | name | uuid | public_key | host | port |
+    try (Reader reader = readers.acquire(); Statement stmt = reader.conn.createStatement();) {
+      List<Contact> results = new ArrayList<Contact>();
+      String sql = "SELECT name, uuid, public_key, host, port FROM "+CONTACTS_TABLE+";";
       ResultSet rs = stmt.executeQuery(sql);
       while(rs.next()) {
-        String name = EscapedString.unescape(rs.getString("name"));
-        String uuid = EscapedString.unescape(rs.getString("uuid"));
-        String public_key = EscapedString.unescape(rs.getString("public_key"));
-        InetSocketAddress address =
-            (InetSocketAddress) getObjFromSerializedBlob(rs.getBlob("address"));
-        results.add(new Contact(name, uuid, public_key, address));
+        results.add(readContact(rs));
       }
       return results;
     } catch (SQLException e) {
@@ -498,6 +1228,39 @@ public class Database implements AutoCloseable {
     }
   }
   
+  /**
+   * Get the <code>Contact</code>s with the given UUIDs from the database.
+   * Unknown UUIDs are ignored.
+   * @param uuids
+   *   The UUIDs of the contacts.
+   * @return
+   *  <code>List</code> of <code>Contact</code>s
+   * @throws DBException
+   */
+  public List<Contact> getContacts(Collection<String> uuids) throws DBException {
+    List<Contact> results = new ArrayList<Contact>(uuids.size());
+    if (uuids.isEmpty())
+      return results;
+    StringBuilder sql = new StringBuilder(64 + 2 * uuids.size());
+    sql.append("SELECT name, uuid, public_key, host, port FROM ").append(CONTACTS_TABLE)
+        .append(" WHERE uuid IN (");
+    for (int i = 0; i < uuids.size(); i++)
+      sql.append(i == 0 ? "?" : ",?");
+    sql.append(");");
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement(sql.toString());) {
+      int i = 1;
+      for (String uuid : uuids)
+        pstmt.setString(i++, uuid);
+      ResultSet rs = pstmt.executeQuery();
+      while (rs.next())
+        results.add(readContact(rs));
+      return results;
+    } catch (SQLException e) {
+      throw new DBException("Retrieving contacts from database failed:"+e.getMessage());
+    }
+  }
+  
   /**
    * Get a <code>Contact</code> from the database by its UUID,
    * @param uuid
@@ -506,16 +1269,13 @@ public class Database implements AutoCloseable {
    * @throws DBException
    */
   public Contact getContact(String uuid) throws DBException {
-    try (Statement stmt = conn.createStatement();) {
-      String sql = "SELECT * FROM "+CONTACTS_TABLE+" where uuid = "
-          +new EscapedString(uuid).toQuotedString()+";";
-      ResultSet rs = stmt.executeQuery(sql);
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT name, uuid, public_key, "
+            + "host, port FROM "+CONTACTS_TABLE+" WHERE uuid = ?;");) {
+      pstmt.setString(1, uuid);
+      ResultSet rs = pstmt.executeQuery();
       if (rs.next()) {
-        String name = EscapedString.unescape(rs.getString("name"));
-        String public_key = EscapedString.unescape(rs.getString("public_key"));
-        InetSocketAddress address =
-            (InetSocketAddress) getObjFromSerializedBlob(rs.getBlob("address"));
-        return new Contact(name, uuid, public_key, address);
+        return readContact(rs);
       } else {
         throw new DBException("Contact not found: "+uuid);
       }
@@ -531,34 +1291,11 @@ public class Database implements AutoCloseable {
    * @return
    * @throws DBException
    */
-  public void addConversation(HostConversation c) throws DBException {
+  public synchronized void addConversation(HostConversation c) throws DBException {
     //Conversations:
     //| id | name | uuid | participants_uuids | host |
-    EscapedString name = new EscapedString(c.getName());
-    EscapedString uuid = new EscapedString(c.getUuid());
-    final int host = 1;
-    Blob participants_uuids;
-    try {
-      participants_uuids = getSerializedBlob((Serializable) c.getParticipantsUuids());
-    } catch (SQLException e) {
-      throw new DBException("Adding conversation failed (serializing participants' IDs failed):"
-          +e.getMessage());
-    }
-    String sql = "INSERT INTO "+CONVERSATIONS_TABLE+"(name,uuid,participants_uuids,host) VALUES ("
-        + name.toQuotedString() + "," + uuid.toQuotedString()+ ",?,"
-        + host + ");";
-    try (PreparedStatement pstmt = conn.prepareStatement(sql);) {
-      pstmt.setBlob(1, participants_uuids);
-      ResultSet rs = pstmt.executeQuery("SELECT id FROM "+CONVERSATIONS_TABLE+" WHERE uuid = "
-          + uuid.toQuotedString()+";");
-      if (rs.next()) {
-        throw new DBException("The UUID of the conversation already exists within the database.");
-      }
-      rs.close();
-      pstmt.executeUpdate(sql);
-    } catch (SQLException e) {
-      throw new DBException("Adding conversation failed: "+e.getMessage());
-    }
+    //(The participants are stored in the conversation_participants table.)
+    insertConversation(c, true, "", c.getParticipantsUuids());
   }
   
   /**
@@ -568,27 +1305,11 @@ public class Database implements AutoCloseable {
    * @return
    * @throws DBException
    */
-  public void addConversation(GuestConversation c) throws DBException {
-  //Conversations:
+  public synchronized void addConversation(GuestConversation c) throws DBException {
+    //Conversations:
     //| id | name | uuid | participants_uuids | host |
-    EscapedString name = new EscapedString(c.getName());
-    EscapedString uuid = new EscapedString(c.getUuid());
-    final int host = 0;
-    EscapedString host_uuid = new EscapedString(c.getHost().getUuid());
-    String sql = "INSERT INTO "+CONVERSATIONS_TABLE+"(name,uuid,participants_uuids,host) VALUES ("
-        + name.toQuotedString() + "," + uuid.toQuotedString()+ ","+host_uuid.toQuotedString()+","
-        + host + ");";
-    try (Statement stmt = conn.prepareStatement(sql);) {
-      ResultSet rs = stmt.executeQuery("SELECT id FROM "+CONVERSATIONS_TABLE+" WHERE uuid = "
-          + uuid.toQuotedString()+";");
-      if (rs.next()) {
-        throw new DBException("The UUID of the conversation already exists within the database.");
-      }
-      rs.close();
-      stmt.executeUpdate(sql);
-    } catch (SQLException e) {
-      throw new DBException("Adding conversation failed: "+e.getMessage());
-    }
+    //(participants_uuids contains the host's UUID, the host is stored as the only participant.)
+    insertConversation(c, false, c.getHost().getUuid(), c.getParticipantsUuids());
   }
   
   /**
@@ -596,48 +1317,473 @@ public class Database implements AutoCloseable {
    * @return
    *   <code>List</code> of <code>Conversation</code>s
    * @throws DBException
-   * 
-   * Has to suppress "unchecked" because it tries to cast a deserialized Object to a
-   * <code>List&lt;String&gt;</code>. (I make sure that the object is valid beforehand.)
    */
-  @SuppressWarnings("unchecked")
   public List<Conversation> getConversations() throws DBException {
     //Conversations:
     //| id | name | uuid | participants_uuids | host |
-    try (Statement stmt = conn.createStatement();) {
-      LinkedList<Conversation> results = new LinkedList<Conversation>();
-      String sql = "SELECT * FROM "+CONVERSATIONS_TABLE+";";
-      ResultSet rs = stmt.executeQuery(sql);
+    try (Reader reader = readers.acquire(); Statement stmt = reader.conn.createStatement();) {
+      //All participants are loaded with one join, grouped by the conversation's ID.
+      Map<Integer, List<Contact>> participants = new HashMap<Integer, List<Contact>>();
+      ResultSet rs = stmt.executeQuery(PARTICIPANTS_SELECT+";");
+      while (rs.next()) {
+        int conversation_id = rs.getInt("conversation_id");
+        List<Contact> list = participants.get(conversation_id);
+        if (list == null)
+          participants.put(conversation_id, list = new ArrayList<Contact>());
+        list.add(readContact(rs));
+      }
+      rs.close();
+      
+      List<Conversation> results = new ArrayList<Conversation>();
+      rs = stmt.executeQuery("SELECT id, name, uuid, host FROM "+CONVERSATIONS_TABLE+";");
       while(rs.next()) {
-        String name = EscapedString.unescape(rs.getString("name"));
-        String uuid = EscapedString.unescape(rs.getString("uuid"));
-        boolean host = rs.getInt("host") == 0 ? false : true;
-        if (host) {
-          Object participants_uuids_obj = getObjFromSerializedBlob(
-              rs.getBlob("participants_uuids"));
-          LinkedList<String> participants_uuids;
-          if (participants_uuids_obj instanceof LinkedList<?>) {
-            for (Object o : (LinkedList<?>)participants_uuids_obj)
-              if (!(o instanceof String))
-                throw new IllegalStateException(
-                    "Fatal error while reading the database: UUID not a string");
-          } else {
-            throw new IllegalStateException(
-                "Blob participants_uuids does not represent a LinkedList");
-          }
-          participants_uuids = (LinkedList<String>)participants_uuids_obj;
-          results.add(new HostConversation(uuid, name, participants_uuids));
-        } else {
-            String host_uuid = EscapedString.unescape(rs.getString("participants_uuids"));
-            results.add(new GuestConversation(getContact(host_uuid), uuid, name));
-        } //end if(host)
-      } //end while
+        List<Contact> list = participants.get(rs.getInt("id"));
+        results.add(toConversation(rs, list == null ? new ArrayList<Contact>() : list));
+      }
       return results;
     } catch (SQLException e) {
       throw new DBException("Retrieving conversations from the database failed: "+e.getMessage());
     }
   }
   
+  /**
+   * Get the overview of all conversations: their counters and their last message, the most
+   * recently active conversation first.<br>
+   * The counters are maintained whenever a message is added, so this is a single query
+   * regardless of the size of the history.
+   * 
+   * @return
+   *    A <code>List</code> of {@link ConversationSummary}s.
+   * @throws DBException
+   *    If a database exception occurs or the history is stored in another {@link MessageStore}
+   *    (see {@link #setExternalHistory(boolean)}).
+   */
+  public List<ConversationSummary> getConversationOverview() throws DBException {
+    checkHistory("The conversation overview");
+    //The last message is joined from the messages table or, if it is archived, from the archive.
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT c.uuid AS uuid, "
+            + "c.name AS name, c.host AS host, "
+            + "COALESCE(st.message_count, 0) AS message_count, "
+            + "COALESCE(st.unread_count, 0) AS unread_count, "
+            + "COALESCE(st.last_message_id, -1) AS id, "
+            + "COALESCE(st.last_timestamp, -1) AS last_timestamp, "
+            + "CASE WHEN m.id IS NULL THEN a.content ELSE m.content END AS content, "
+            + "COALESCE(m.flags, 0) AS flags, "
+            + "CASE WHEN m.id IS NULL AND a.id IS NOT NULL THEN 1 ELSE 0 END AS archived "
+            + "FROM "+CONVERSATIONS_TABLE+" c "
+            + "LEFT JOIN "+STATS_TABLE+" st ON st.conversation_id = c.id "
+            + "LEFT JOIN "+MESSAGES_TABLE+" m ON m.id = st.last_message_id "
+            + "LEFT JOIN "+ARCHIVE_TABLE+" a ON a.id = st.last_message_id "
+            + "ORDER BY last_timestamp DESC, c.id;");) {
+      ResultSet rs = pstmt.executeQuery();
+      List<ConversationSummary> results = new ArrayList<ConversationSummary>();
+      while (rs.next()) {
+        results.add(new ConversationSummary(EscapedString.unescape(rs.getString("uuid")),
+            EscapedString.unescape(rs.getString("name")), rs.getInt("host") != 0,
+            rs.getLong("message_count"), rs.getLong("unread_count"), rs.getInt("id"),
+            rs.getLong("last_timestamp"), readContent(rs)));
+      }
+      return results;
+    } catch (SQLException e) {
+      throw new DBException("Getting the conversation overview failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Marks all messages of a conversation as read. Does nothing if the history is stored in another
+   * {@link MessageStore}, because the counters aren't kept then.
+   * @param conv
+   *   The conversation.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void markRead(Conversation conv) throws DBException {
+    if (externalHistory)
+      return;
+    try (PreparedStatement pstmt = conn.prepareStatement("UPDATE "+STATS_TABLE
+        + " SET unread_count = 0 WHERE unread_count > 0 AND conversation_id = "
+        + "(SELECT id FROM "+CONVERSATIONS_TABLE+" WHERE uuid = ?);");) {
+      pstmt.setString(1, conv.getUuid());
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      throw new DBException("Marking the conversation as read failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Sets the UUID of the user. Messages of the user don't count as unread and mark their
+   * conversation as read (see {@link #getConversationOverview()}).
+   * @param uuid
+   *   The UUID of the user.
+   */
+  public void setUserUuid(String uuid) {
+    userUuid = uuid;
+  }
+  
+  /**
+   * Sets whether the history is stored in another {@link MessageStore} (e.g. a
+   * {@link LogMessageStore}). The messages table then only holds the user's outgoing messages
+   * (for the outbox and for sending them again), so the search and the conversation overview
+   * would miss the received messages. They are refused instead.
+   * @param external
+   *   Whether the history is stored in another store.
+   */
+  public void setExternalHistory(boolean external) {
+    externalHistory = external;
+  }
+  
+  /**
+   * @return whether the history is stored in another {@link MessageStore}.
+   */
+  public boolean hasExternalHistory() {
+    return externalHistory;
+  }
+  
+  /**
+   * Refuses a feature that needs the whole history in the database.
+   * @param feature
+   *   The name of the feature for the message.
+   * @throws DBException
+   *   If the history is stored in another {@link MessageStore}.
+   */
+  private void checkHistory(String feature) throws DBException {
+    if (externalHistory)
+      throw new DBException(feature+" isn't available while the messages are stored in the "
+          + "message log (message store \"log\").");
+  }
+  
+  /**
+   * Counts the digests of the received messages of a conversation.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @return
+   *   The number of digests.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @see #addMessageDigests(Map)
+   */
+  public long countMessageDigests(String convUuid) throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT count(*) FROM "
+            + DIGESTS_TABLE+" WHERE conversation_uuid = ?;");) {
+      pstmt.setString(1, convUuid);
+      ResultSet rs = pstmt.executeQuery();
+      return rs.next() ? rs.getLong(1) : 0;
+    } catch (SQLException e) {
+      throw new DBException("Reading the message digests failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Reads all digests of the received messages of a conversation (in no particular order).
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param action
+   *   Is called with every digest.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @see #addMessageDigests(Map)
+   */
+  public void forEachMessageDigest(String convUuid, LongConsumer action) throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT digest FROM "
+            + DIGESTS_TABLE+" WHERE conversation_uuid = ?;");) {
+      pstmt.setString(1, convUuid);
+      ResultSet rs = pstmt.executeQuery();
+      while (rs.next())
+        action.accept(rs.getLong(1));
+    } catch (SQLException e) {
+      throw new DBException("Reading the message digests failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Checks whether a message with the given digest has been received in a conversation.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param digest
+   *   The digest of the message.
+   * @return
+   *   Whether the digest is stored.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @see #addMessageDigests(Map)
+   */
+  public boolean containsMessageDigest(String convUuid, long digest) throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT 1 FROM "+DIGESTS_TABLE
+            + " WHERE conversation_uuid = ? AND digest = ?;");) {
+      pstmt.setString(1, convUuid);
+      pstmt.setLong(2, digest);
+      return pstmt.executeQuery().next();
+    } catch (SQLException e) {
+      throw new DBException("Reading the message digests failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Stores the digests of received messages (in one transaction), so duplicates of them can be
+   * recognized. The digest identifies a message by its sender, timestamp and content; how it is
+   * computed is up to the caller. Digests that are already stored are ignored. A digest is kept
+   * until the messages of its conversation that are newer than it are archived (see
+   * {@link #archiveMessages(long, int)}).
+   * @param digests
+   *   The timestamps (in milliseconds) of the messages by their digest, by the UUID of their
+   *   conversation.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public synchronized void addMessageDigests(Map<String, ? extends Map<Long, Long>> digests)
+      throws DBException {
+    try {
+      inTransaction(() -> {
+        try (PreparedStatement pstmt = conn.prepareStatement("INSERT OR IGNORE INTO "
+            + DIGESTS_TABLE+"(conversation_uuid,digest,timestamp) VALUES (?,?,?);");) {
+          for (Map.Entry<String, ? extends Map<Long, Long>> e : digests.entrySet()) {
+            pstmt.setString(1, e.getKey());
+            for (Map.Entry<Long, Long> digest : e.getValue().entrySet()) {
+              pstmt.setLong(2, digest.getKey());
+              pstmt.setLong(3, digest.getValue());
+              pstmt.addBatch();
+            }
+          }
+          pstmt.executeBatch();
+        }
+      });
+    } catch (SQLException e) {
+      throw new DBException("Storing the message digests failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Gets the last sequence number of a sender in a conversation: for the user the last number
+   * assigned to one of their messages, for other contacts the last number delivered in order (see
+   * {@link #setLastSequence(String, String, long)}).
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param senderUuid
+   *   The UUID of the sender.
+   * @return
+   *   The sequence number or <code>0</code> if there is none.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public long getLastSequence(String convUuid, String senderUuid) throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT last_sequence FROM "
+            + SEQUENCES_TABLE+" WHERE conversation_uuid = ? AND sender_uuid = ?;");) {
+      pstmt.setString(1, convUuid);
+      pstmt.setString(2, senderUuid);
+      ResultSet rs = pstmt.executeQuery();
+      return rs.next() ? rs.getLong(1) : 0;
+    } catch (SQLException e) {
+      throw new DBException("Reading the sequence number failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Stores the last sequence number of a contact's messages in a conversation that has been
+   * delivered in order.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param senderUuid
+   *   The UUID of the contact.
+   * @param sequence
+   *   The sequence number.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @throws IllegalArgumentException
+   *    If the contact is the user (their numbers are assigned by {@link #addMessage}).
+   */
+  public synchronized void setLastSequence(String convUuid, String senderUuid, long sequence)
+      throws DBException {
+    if (senderUuid.equals(userUuid))
+      throw new IllegalArgumentException("The sequence numbers of the user are assigned.");
+    try (PreparedStatement pstmt = conn.prepareStatement("INSERT OR REPLACE INTO "
+        + SEQUENCES_TABLE+"(conversation_uuid,sender_uuid,last_sequence) VALUES (?,?,?);");) {
+      pstmt.setString(1, convUuid);
+      pstmt.setString(2, senderUuid);
+      pstmt.setLong(3, sequence);
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      throw new DBException("Storing the sequence number failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Get the messages of a sender in a conversation by their sequence numbers (to send them again).
+   * Archived messages aren't returned.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param senderUuid
+   *   The UUID of the sender.
+   * @param fromSequence
+   *   The first sequence number (inclusive).
+   * @param toSequence
+   *   The last sequence number (inclusive).
+   * @param maxNumberOfMessages
+   *   The maximum number of messages that will be returned.
+   * @return
+   *   The messages, ordered by their sequence number.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @throws IllegalArgumentException
+   *    If <code>fromSequence</code> is smaller than <code>1</code> or bigger than
+   *    <code>toSequence</code>.
+   */
+  public List<InternalMessage> getMessagesBySequence(String convUuid, String senderUuid,
+      long fromSequence, long toSequence, int maxNumberOfMessages) throws DBException {
+    if (fromSequence < 1 || fromSequence > toSequence)
+      throw new IllegalArgumentException("Invalid range of sequence numbers.");
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT "+HISTORY_COLUMNS
+            + HISTORY_FROM+"WHERE c.uuid = ? AND s.uuid = ? AND m.sequence BETWEEN ? AND ? "
+            + "ORDER BY m.sequence LIMIT ?;");) {
+      pstmt.setString(1, convUuid);
+      pstmt.setString(2, senderUuid);
+      pstmt.setLong(3, fromSequence);
+      pstmt.setLong(4, toSequence);
+      pstmt.setInt(5, maxNumberOfMessages);
+      ResultSet rs = pstmt.executeQuery();
+      List<InternalMessage> results = new ArrayList<InternalMessage>();
+      while (rs.next())
+        results.add(readHistoryRow(rs));
+      return results;
+    } catch (FormatException|SQLException e) {
+      throw new DBException("Reading the messages failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Summarizes the history of a conversation in time buckets for the synchronization with other
+   * participants. The summary of a bucket is the number of messages and the sum of their digests
+   * (which doesn't depend on the order of the messages); two participants have the same messages
+   * in a bucket if their summaries are equal. Archived messages are included.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param bucketSeconds
+   *   The length of a bucket in seconds. Bucket <code>i</code> contains the messages of the
+   *   seconds <code>[i * bucketSeconds, (i + 1) * bucketSeconds)</code>.
+   * @param fromSecond
+   *   The start of the time span (inclusive).
+   * @param toSecond
+   *   The end of the time span (exclusive).
+   * @return
+   *   The summaries ({count, sum}) of the non-empty buckets by their index.
+   * @throws DBException
+   *    If a database exception occurs.
+   * @throws IllegalArgumentException
+   *    If <code>bucketSeconds</code> is smaller than <code>1</code>.
+   */
+  public Map<Long, long[]> getSyncBuckets(String convUuid, long bucketSeconds, long fromSecond,
+      long toSecond) throws DBException {
+    if (bucketSeconds < 1)
+      throw new IllegalArgumentException("The buckets must be at least one second long.");
+    Map<Long, long[]> buckets = new TreeMap<Long, long[]>();
+    try (Reader reader = readers.acquire();) {
+      for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE})
+        try (PreparedStatement pstmt = reader.conn.prepareStatement("SELECT m.timestamp / 1000 / ? "
+            + "AS bucket, count(*), sum(m.sync_digest) FROM "+table+" m JOIN "
+            + CONVERSATIONS_TABLE+" c ON c.id = m.conversation_id WHERE c.uuid = ? "
+            + "AND m.timestamp >= ? AND m.timestamp < ? GROUP BY bucket;");) {
+          pstmt.setLong(1, bucketSeconds);
+          pstmt.setString(2, convUuid);
+          pstmt.setLong(3, fromSecond * 1000);
+          pstmt.setLong(4, toSecond * 1000);
+          ResultSet rs = pstmt.executeQuery();
+          while (rs.next()) {
+            long[] b = buckets.computeIfAbsent(rs.getLong(1), k -> new long[2]);
+            b[0] += rs.getLong(2);
+            b[1] += rs.getLong(3);
+          }
+        }
+      return buckets;
+    } catch (SQLException e) {
+      throw new DBException("Summarizing the history failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Get the synchronization digests of a conversation's messages in a time span (see
+   * {@link #getSyncBuckets(String, long, long, long)}).
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param fromSecond
+   *   The start of the time span (inclusive).
+   * @param toSecond
+   *   The end of the time span (exclusive).
+   * @return
+   *   The sorted digests.
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public long[] getSyncDigests(String convUuid, long fromSecond, long toSecond)
+      throws DBException {
+    List<Long> digests = new ArrayList<Long>();
+    try (Reader reader = readers.acquire();) {
+      for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE})
+        try (PreparedStatement pstmt = reader.conn.prepareStatement("SELECT m.sync_digest FROM "
+            + table+" m JOIN "+CONVERSATIONS_TABLE+" c ON c.id = m.conversation_id "
+            + "WHERE c.uuid = ? AND m.timestamp >= ? AND m.timestamp < ?;");) {
+          pstmt.setString(1, convUuid);
+          pstmt.setLong(2, fromSecond * 1000);
+          pstmt.setLong(3, toSecond * 1000);
+          ResultSet rs = pstmt.executeQuery();
+          while (rs.next())
+            digests.add(rs.getLong(1));
+        }
+    } catch (SQLException e) {
+      throw new DBException("Reading the digests failed: "+e.getMessage());
+    }
+    long[] result = new long[digests.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = digests.get(i);
+    Arrays.sort(result);
+    return result;
+  }
+  
+  /**
+   * Get the messages of a conversation in a time span whose synchronization digests are wanted
+   * (see {@link #getSyncBuckets(String, long, long, long)}). Archived messages are included.
+   * @param convUuid
+   *   The UUID of the conversation.
+   * @param fromSecond
+   *   The start of the time span (inclusive).
+   * @param toSecond
+   *   The end of the time span (exclusive).
+   * @param wanted
+   *   Decides by the digest whether a message is returned.
+   * @param maxNumberOfMessages
+   *   The maximum number of messages that will be returned.
+   * @return
+   *   The messages (oldest first).
+   * @throws DBException
+   *    If a database exception occurs.
+   */
+  public List<InternalMessage> getSyncMessages(String convUuid, long fromSecond, long toSecond,
+      LongPredicate wanted, int maxNumberOfMessages) throws DBException {
+    List<InternalMessage> results = new ArrayList<InternalMessage>();
+    try (Reader reader = readers.acquire();) {
+      for (String columns : new String[] {ARCHIVE_COLUMNS+ARCHIVE_FROM,
+          HISTORY_COLUMNS+HISTORY_FROM})
+        try (PreparedStatement pstmt = reader.conn.prepareStatement("SELECT m.sync_digest AS "
+            + "sync_digest, "+columns+"WHERE c.uuid = ? AND m.timestamp >= ? "
+            + "AND m.timestamp < ? ORDER BY m.timestamp, m.id;");) {
+          pstmt.setString(1, convUuid);
+          pstmt.setLong(2, fromSecond * 1000);
+          pstmt.setLong(3, toSecond * 1000);
+          ResultSet rs = pstmt.executeQuery();
+          while (rs.next() && results.size() < maxNumberOfMessages)
+            if (wanted.test(rs.getLong("sync_digest")))
+              results.add(readHistoryRow(rs));
+        }
+      return results;
+    } catch (FormatException|SQLException e) {
+      throw new DBException("Reading the messages failed: "+e.getMessage());
+    }
+  }
+  
   /**
    * Get a <code>Conversation</code> from the database by its UUID.
    * @param convUuid
@@ -647,36 +1793,53 @@ public class Database implements AutoCloseable {
    * @throws DBException
    */
   public Conversation getConversation(String convUuid) throws DBException {
-    try (Statement stmt = conn.createStatement();) {
-      EscapedString escUuid = new EscapedString(convUuid);
-      String sql = "SELECT * FROM "+CONVERSATIONS_TABLE+" WHERE uuid = "
-          +escUuid.toQuotedString()+";";
-      ResultSet rs = stmt.executeQuery(sql);
-      int count = 0;
-      while(rs.next()) {
-        if (++count != 1) 
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement("SELECT id, name, uuid, host FROM "
+            + CONVERSATIONS_TABLE+" WHERE uuid = ?;");) {
+      pstmt.setString(1, convUuid);
+      ResultSet rs = pstmt.executeQuery();
+      if (!rs.next())
+        return null;
+      int id = rs.getInt("id");
+      try (PreparedStatement participants = reader.conn.prepareStatement(PARTICIPANTS_SELECT
+          + " WHERE cp.conversation_id = ?;");) {
+        participants.setInt(1, id);
+        ResultSet prs = participants.executeQuery();
+        List<Contact> list = new ArrayList<Contact>();
+        while (prs.next())
+          list.add(readContact(prs));
+        Conversation c = toConversation(rs, list);
+        if (rs.next()) 
           throw new IllegalStateException("Fatal error: UUID found more than once in database.");
-        String name = EscapedString.unescape(rs.getString("name"));
-        String uuid = EscapedString.unescape(rs.getString("uuid"));
-        boolean host = rs.getInt("host") == 0 ? false : true;
-        if (host) {
-          @SuppressWarnings("unchecked")
-          List<String> participants_uuids = (LinkedList<String>)
-              getObjFromSerializedBlob(rs.getBlob("participants_uuids"));
-          List<Contact> participants = new LinkedList<>();
-          for (String participant_uuid : participants_uuids) {
-              participants.add(getContact(participant_uuid));
-          }
-          return new HostConversation(participants, uuid, name);
-        } else { //if(host)
-          String host_uuid = EscapedString.unescape(rs.getString("participants_uuids"));
-          return new GuestConversation(getContact(host_uuid), uuid, name);
-        }
-      } //end while
+        return c;
+      }
     } catch (SQLException e) {
       throw new DBException(e.getMessage());
     }
-    return null;
+  }
+  
+  /**
+   * Get the participants of a <code>Conversation</code>.
+   * @param convUuid
+   *   <code>String</code> that contains the UUID of the conversation
+   * @return
+   *   <code>List</code> of <code>Contact</code>s
+   * @throws DBException
+   */
+  public List<Contact> getParticipants(String convUuid) throws DBException {
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = reader.conn.prepareStatement(PARTICIPANTS_SELECT
+            + " JOIN "+CONVERSATIONS_TABLE+" cv ON cv.id = cp.conversation_id "
+            + "WHERE cv.uuid = ?;");) {
+      pstmt.setString(1, convUuid);
+      ResultSet rs = pstmt.executeQuery();
+      List<Contact> results = new ArrayList<Contact>();
+      while (rs.next())
+        results.add(readContact(rs));
+      return results;
+    } catch (SQLException e) {
+      throw new DBException("Getting participants failed: "+e.getMessage());
+    }
   }
   
   /**
@@ -684,7 +1847,14 @@ public class Database implements AutoCloseable {
    * @throws DBException
    */
   @Override
-  public void close() throws DBException {
+  public synchronized void close() throws DBException {
+    if (readers != null) {
+      try {
+        readers.close();
+      } catch (SQLException e) {
+        throw new DBException("Closing the database connection failed: "+e.getMessage());
+      }
+    }
     if (conn != null) {
       try {
         conn.close();
@@ -695,37 +1865,57 @@ public class Database implements AutoCloseable {
   }
   
 //private
-  /** Connect to the database.*/
+  /**
+   * Connect to the database. This connection is used for all writes; it switches the database to
+   * WAL mode, so the readers can read while it writes.
+   */
   private void connect(String dbPath) throws SQLException {
     conn = DriverManager.getConnection("jdbc:sqlite:"+dbPath);
+    try (Statement stmt = conn.createStatement();) {
+      //Only has an effect on new databases (and has to be set before WAL mode); existing ones
+      //are changed by migrateArchive().
+      stmt.executeUpdate("PRAGMA auto_vacuum = INCREMENTAL;");
+      stmt.executeQuery("PRAGMA journal_mode = WAL;").close();
+      stmt.executeUpdate("PRAGMA busy_timeout = "+BUSY_TIMEOUT+";");
+    }
+    SearchRank.register(conn);
   }
   
   private static void createMessagesTable(Statement stmt) throws SQLException {
-    //COLUMNS: | id | content | sender_id | conversation_id | timestamp | sent |
+    //COLUMNS: | id | content | sender_id | conversation_id | timestamp | sent | flags | sequence |
+    //         | sync_digest |
     String sql = "CREATE TABLE "+MESSAGES_TABLE
         + "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
         + "content TEXT NOT NULL,"
         + "sender_id INTEGER NOT NULL,"
         + "conversation_id INTEGER NOT NULL,"
         + "timestamp INTEGER NOT NULL,"
-        + "sent INTEGER NOT NULL);";
+        + "sent INTEGER NOT NULL,"
+        + "flags INTEGER NOT NULL DEFAULT 0,"
+        + "sequence INTEGER NOT NULL DEFAULT 0,"
+        + "sync_digest INTEGER NOT NULL DEFAULT 0);";
     stmt.executeUpdate(sql);
   }
   
   private static void createContactsTable(Statement stmt) throws SQLException {
-    //COLUMS: | id | name | uuid | public_key | address |
-    String sql = "CREATE TABLE "+CONTACTS_TABLE
+    createContactsTable(stmt, CONTACTS_TABLE);
+  }
+  
+  private static void createContactsTable(Statement stmt, String name) throws SQLException {
+    //COLUMS: | id | name | uuid | public_key | host | port |
+    String sql = "CREATE TABLE "+name
         + "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
         + "name TEXT NOT NULL,"
         + "uuid TEXT NOT NULL,"
         + "public_key TEXT NOT NULL,"
-        + "address BLOB NOT NULL);"; //address contains a serialized InetSocketAddress
+        + "host TEXT NOT NULL,"
+        + "port INTEGER NOT NULL);";
     stmt.executeUpdate(sql);
   }
   
   private static void createConversationsTable(Statement stmt) throws SQLException {
     //COLUMNS: | id | name | participants_id | host |
-    String sql = "CREATE TABLE "+CONTACTS_TABLE
+    String sql = "CREATE TABLE "+CONVERSATIONS_TABLE
         + "(id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
         + "name TEXT NOT NULL,"
         + "uuid TEXT NOT NULL,"
@@ -734,6 +1924,976 @@ public class Database implements AutoCloseable {
     stmt.executeUpdate(sql);
   }
   
+  /**
+   * Inserts a conversation and its participants in one transaction.
+   */
+  private void insertConversation(Conversation c, boolean host, String participants_uuids,
+      List<String> participants) throws DBException {
+    try {
+      inTransaction(() -> {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT id FROM "+CONVERSATIONS_TABLE
+            + " WHERE uuid = ?;");) {
+          pstmt.setString(1, c.getUuid());
+          if (pstmt.executeQuery().next())
+            throw new SQLException("The UUID of the conversation already exists within the "
+                + "database.");
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+CONVERSATIONS_TABLE
+            + "(name,uuid,participants_uuids,host) VALUES (?,?,?,?);");) {
+          pstmt.setString(1, c.getName());
+          pstmt.setString(2, c.getUuid());
+          pstmt.setString(3, participants_uuids);
+          pstmt.setInt(4, host ? 1 : 0);
+          pstmt.executeUpdate();
+        }
+        insertParticipants(lastInsertId(), participants);
+      });
+    } catch (SQLException e) {
+      throw new DBException("Adding conversation failed: "+e.getMessage());
+    }
+  }
+  
+  /**
+   * Adds contacts to the participants of a conversation. Unknown UUIDs are ignored.
+   */
+  private void insertParticipants(int conversation_id, List<String> participants)
+      throws SQLException {
+    if (participants == null)
+      return;
+    try (PreparedStatement pstmt = conn.prepareStatement("INSERT OR IGNORE INTO "
+        + PARTICIPANTS_TABLE+"(conversation_id,contact_id) SELECT ?, id FROM "+CONTACTS_TABLE
+        + " WHERE uuid = ?;");) {
+      for (String uuid : participants) {
+        pstmt.setInt(1, conversation_id);
+        pstmt.setString(2, uuid);
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+    }
+  }
+  
+  /**
+   * Creates a conversation from the current row of a conversations query.
+   */
+  private static Conversation toConversation(ResultSet rs, List<Contact> participants)
+      throws SQLException {
+    String name = EscapedString.unescape(rs.getString("name"));
+    String uuid = EscapedString.unescape(rs.getString("uuid"));
+    boolean host = rs.getInt("host") == 0 ? false : true;
+    if (host)
+      return new HostConversation(participants, uuid, name);
+    if (participants.size() != 1)
+      throw new IllegalStateException("Fatal error: GuestConversation "+uuid+" has "
+          + participants.size()+" hosts.");
+    return new GuestConversation(participants.get(0), uuid, name);
+  }
+  
+  /**
+   * Creates a contact from the current row of a contacts query.
+   */
+  private static Contact readContact(ResultSet rs) throws SQLException {
+    String name = EscapedString.unescape(rs.getString("name"));
+    String uuid = EscapedString.unescape(rs.getString("uuid"));
+    String public_key = EscapedString.unescape(rs.getString("public_key"));
+    return new Contact(name, uuid, public_key, rs.getString("host"), rs.getInt("port"));
+  }
+  
+  /**
+   * Brings the schema of an existing database up to date. The version of the schema is stored in
+   * SQLite's user_version.
+   */
+  private void migrate() throws SQLException {
+    int version;
+    try (Statement stmt = conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("PRAGMA user_version;");
+      version = rs.next() ? rs.getInt(1) : 0;
+    }
+    if (version > SCHEMA_VERSION)
+      throw new SQLException("The database was created by a newer version (schema version "
+          + version+").");
+    if (version < 1)
+      inTransaction(this::migrateParticipants);
+    if (version < 2)
+      inTransaction(this::migrateContactAddresses);
+    if (version < 3)
+      try (Statement stmt = conn.createStatement();) {
+        createOutboxTable(stmt);
+      }
+    if (version < 4)
+      migrateArchive();
+    if (version < 5)
+      try (Statement stmt = conn.createStatement();) {
+        stmt.executeUpdate("ALTER TABLE "+MESSAGES_TABLE
+            + " ADD COLUMN flags INTEGER NOT NULL DEFAULT 0;");
+      }
+    if (version < 6)
+      inTransaction(this::migrateStats);
+    if (version < 7)
+      try (Statement stmt = conn.createStatement();) {
+        createDigestsTable(stmt);
+      }
+    if (version < 8)
+      inTransaction(this::migrateSequences);
+    if (version < 9)
+      migrateSyncDigests();
+    if (version < 10)
+      inTransaction(this::migrateArchiveSearch);
+    if (version < 11)
+      inTransaction(this::migrateDigestTimestamps);
+    try (Statement stmt = conn.createStatement();) {
+      stmt.executeUpdate("PRAGMA user_version = "+SCHEMA_VERSION+";");
+    }
+  }
+  
+  /**
+   * Schema version 1: The participants of a conversation are stored in the
+   * conversation_participants table instead of a serialized <code>LinkedList</code> in the
+   * participants_uuids column.
+   */
+  private void migrateParticipants() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      createParticipantsTable(stmt);
+      Map<Integer, List<String>> participants = new HashMap<Integer, List<String>>();
+      ResultSet rs = stmt.executeQuery("SELECT id, participants_uuids, host FROM "
+          + CONVERSATIONS_TABLE+";");
+      while (rs.next()) {
+        List<String> uuids = new ArrayList<String>();
+        if (rs.getInt("host") == 0) {
+          uuids.add(EscapedString.unescape(rs.getString("participants_uuids")));
+        } else {
+          byte[] blob = rs.getBytes("participants_uuids");
+          if (blob != null && blob.length > 0) {
+            Object o = getObjFromSerializedBytes(blob);
+            if (!(o instanceof List<?>))
+              throw new SQLException("Blob participants_uuids does not represent a List");
+            for (Object uuid : (List<?>) o)
+              if (uuid instanceof String)
+                uuids.add((String) uuid);
+              else
+                throw new SQLException("UUID of participant is not a string");
+          }
+        }
+        participants.put(rs.getInt("id"), uuids);
+      }
+      rs.close();
+      for (Map.Entry<Integer, List<String>> e : participants.entrySet())
+        insertParticipants(e.getKey(), e.getValue());
+      stmt.executeUpdate("UPDATE "+CONVERSATIONS_TABLE+" SET participants_uuids = '' "
+          + "WHERE host <> 0;");
+    }
+  }
+  
+  /**
+   * Schema version 2: The address of a contact is stored in the host and port columns instead of
+   * a serialized <code>InetSocketAddress</code> in the address column. SQLite can't drop columns,
+   * so the contacts table is rebuilt (the IDs are kept).
+   */
+  private void migrateContactAddresses() throws SQLException {
+    final String tmp = CONTACTS_TABLE+"_v2";
+    try (Statement stmt = conn.createStatement();) {
+      createContactsTable(stmt, tmp);
+      PreparedStatement insert = conn.prepareStatement("INSERT INTO "+tmp
+          + "(id,name,uuid,public_key,host,port) VALUES (?,?,?,?,?,?);");
+      ResultSet rs = stmt.executeQuery("SELECT id, name, uuid, public_key, address FROM "
+          + CONTACTS_TABLE+";");
+      while (rs.next()) {
+        Object address = getObjFromSerializedBytes(rs.getBytes("address"));
+        if (!(address instanceof InetSocketAddress))
+          throw new SQLException("Blob address does not represent an InetSocketAddress");
+        insert.setInt(1, rs.getInt("id"));
+        insert.setString(2, rs.getString("name"));
+        insert.setString(3, rs.getString("uuid"));
+        insert.setString(4, rs.getString("public_key"));
+        //getHostString() doesn't trigger a reverse lookup.
+        insert.setString(5, ((InetSocketAddress) address).getHostString());
+        insert.setInt(6, ((InetSocketAddress) address).getPort());
+        insert.addBatch();
+      }
+      rs.close();
+      insert.executeBatch();
+      insert.close();
+      stmt.executeUpdate("DROP TABLE "+CONTACTS_TABLE+";");
+      stmt.executeUpdate("ALTER TABLE "+tmp+" RENAME TO "+CONTACTS_TABLE+";");
+    }
+  }
+  
+  /**
+   * Creates the indices used by the history queries. They are created with "IF NOT EXISTS", so
+   * databases created by older versions get them on their next connect.
+   */
+  private void createIndices() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_contacts_uuid ON "
+          + CONTACTS_TABLE + "(uuid);");
+      stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_conversations_uuid ON "
+          + CONVERSATIONS_TABLE + "(uuid);");
+      stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_messages_conversation_time ON "
+          + MESSAGES_TABLE + "(conversation_id, timestamp, id);");
+      stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_messages_sender_time ON "
+          + MESSAGES_TABLE + "(sender_id, timestamp, id);");
+      stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_messages_time ON "
+          + MESSAGES_TABLE + "(timestamp, id);");
+    }
+  }
+  
+  /**
+   * Creates the full-text search index of the messages' content if it doesn't exist yet.
+   * The rows of the index have the same IDs (docid) as the messages.
+   * @return whether the index has been created.
+   */
+  private boolean createSearchTable() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+          + "AND name = '"+SEARCH_TABLE+"';");
+      if (rs.next())
+        return false;
+      rs.close();
+      //FTS5 isn't available in the bundled SQLite version (3.8.7), so FTS4 is used.
+      stmt.executeUpdate("CREATE VIRTUAL TABLE "+SEARCH_TABLE+" USING fts4(content, "
+          + "tokenize=unicode61);");
+      return true;
+    }
+  }
+  
+  /**
+   * Converts the words of a search query to a FTS MATCH expression. Every word is quoted, so the
+   * user cannot use (or break) the query syntax; a trailing '*' is kept as prefix search.
+   * @throws IllegalArgumentException if the query contains no words.
+   */
+  static String toMatchExpression(String query) {
+    StringBuilder match = new StringBuilder(query == null ? 0 : query.length() + 16);
+    if (query != null)
+      for (String word : query.trim().split("\\s+")) {
+        boolean prefix = word.endsWith("*");
+        word = word.replace("\"", "").replace("*", "");
+        if (word.isEmpty())
+          continue;
+        if (match.length() > 0)
+          match.append(' ');
+        match.append('"').append(word).append(prefix ? "*\"" : "\"");
+      }
+    if (match.length() == 0)
+      throw new IllegalArgumentException("The search query doesn't contain any words.");
+    return match.toString();
+  }
+  
+  /**
+   * A task that has to be executed inside a transaction.
+   */
+  private interface Transaction {
+    void run() throws SQLException;
+  }
+  
+  /**
+   * Runs a task inside a transaction. If the task fails the transaction is rolled back.
+   * If a transaction is already running the task becomes part of it.
+   */
+  private void inTransaction(Transaction t) throws SQLException {
+    if (!conn.getAutoCommit()) {
+      t.run();
+      return;
+    }
+    conn.setAutoCommit(false);
+    try {
+      t.run();
+      conn.commit();
+    } catch (SQLException|RuntimeException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+  
+  /**
+   * Moves the oldest messages that match the condition to the archive (in one transaction).
+   * Their content is compressed; their rows of the search index are kept (same docid). The
+   * message digests of a conversation are deleted up to the newest archived message (exclusive):
+   * the messages are moved in the order of their timestamps, so all older ones are archived.
+   * @param condition
+   *   A condition on the columns of the messages table.
+   * @return the number of archived messages.
+   */
+  private int moveToArchive(String condition, List<Object> params, int maxNumberOfMessages)
+      throws SQLException {
+    int[] moved = {0};
+    inTransaction(() -> {
+      List<Integer> ids = new ArrayList<Integer>();
+      //The timestamp of the newest archived message by conversation_id.
+      Map<Integer, Long> newest = new HashMap<Integer, Long>();
+      try (PreparedStatement select = conn.prepareStatement("SELECT "+ARCHIVED_COLUMNS+", flags, "
+              + "0 AS archived FROM "
+              + MESSAGES_TABLE+" WHERE "+condition+" AND id NOT IN (SELECT message_id FROM "
+              + OUTBOX_TABLE+") ORDER BY timestamp, id LIMIT ?;");
+          PreparedStatement insert = conn.prepareStatement("INSERT INTO "+ARCHIVE_TABLE
+              + "("+ARCHIVED_COLUMNS+") VALUES (?,?,?,?,?,?,?,?);");) {
+        int i = 1;
+        for (Object o : params)
+          select.setObject(i++, o);
+        select.setInt(i, maxNumberOfMessages);
+        ResultSet rs = select.executeQuery();
+        while (rs.next()) {
+          ids.add(rs.getInt("id"));
+          insert.setInt(1, rs.getInt("id"));
+          //Compressed contents can be copied, the archive is read with the same codec.
+          insert.setBytes(2, (rs.getInt("flags") & FLAG_COMPRESSED) != 0 ? rs.getBytes("content")
+              : ContentCodec.deflate(rs.getString("content")));
+          insert.setInt(3, rs.getInt("sender_id"));
+          insert.setInt(4, rs.getInt("conversation_id"));
+          insert.setLong(5, rs.getLong("timestamp"));
+          insert.setInt(6, rs.getInt("sent"));
+          insert.setLong(7, rs.getLong("sequence"));
+          insert.setLong(8, rs.getLong("sync_digest"));
+          insert.addBatch();
+          newest.merge(rs.getInt("conversation_id"), rs.getLong("timestamp"), Math::max);
+        }
+        rs.close();
+        if (ids.isEmpty())
+          return;
+        insert.executeBatch();
+      }
+      try (PreparedStatement message = conn.prepareStatement("DELETE FROM "+MESSAGES_TABLE
+              + " WHERE id = ?;");) {
+        for (int id : ids) {
+          message.setInt(1, id);
+          message.addBatch();
+        }
+        message.executeBatch();
+      }
+      try (PreparedStatement digests = conn.prepareStatement("DELETE FROM "+DIGESTS_TABLE
+              + " WHERE conversation_uuid = (SELECT uuid FROM "+CONVERSATIONS_TABLE
+              + " WHERE id = ?) AND timestamp < ?;");) {
+        for (Map.Entry<Integer, Long> e : newest.entrySet()) {
+          digests.setInt(1, e.getKey());
+          digests.setLong(2, e.getValue());
+          digests.addBatch();
+        }
+        digests.executeBatch();
+      }
+      moved[0] = ids.size();
+    });
+    return moved[0];
+  }
+
+  /**
+   * Writes the contacts of an export: all contacts or the participants and senders of one
+   * conversation.
+   */
+  private static void exportContacts(Connection c, Conversation conv, DataOutputStream out,
+      TransferStats stats) throws SQLException, IOException {
+    String sql = "SELECT name, uuid, public_key, host, port FROM "+CONTACTS_TABLE;
+    if (conv != null)
+      sql += " WHERE id IN (SELECT cp.contact_id FROM "+PARTICIPANTS_TABLE+" cp JOIN "
+          + CONVERSATIONS_TABLE+" c ON c.id = cp.conversation_id WHERE c.uuid = ?1)"
+          + " OR id IN (SELECT m.sender_id FROM "+MESSAGES_TABLE+" m JOIN "+CONVERSATIONS_TABLE
+          + " c ON c.id = m.conversation_id WHERE c.uuid = ?1)"
+          + " OR id IN (SELECT m.sender_id FROM "+ARCHIVE_TABLE+" m JOIN "+CONVERSATIONS_TABLE
+          + " c ON c.id = m.conversation_id WHERE c.uuid = ?1)";
+    try (PreparedStatement pstmt = c.prepareStatement(sql+";");) {
+      if (conv != null)
+        pstmt.setString(1, conv.getUuid());
+      ResultSet rs = pstmt.executeQuery();
+      while (rs.next()) {
+        out.writeByte(HistoryFormat.CONTACT);
+        HistoryFormat.writeString(out, rs.getString("name"));
+        HistoryFormat.writeString(out, rs.getString("uuid"));
+        HistoryFormat.writeString(out, rs.getString("public_key"));
+        HistoryFormat.writeString(out, rs.getString("host"));
+        out.writeInt(rs.getInt("port"));
+        stats.contacts++;
+      }
+    }
+  }
+  
+  /**
+   * Writes the conversations of an export together with the UUIDs of their participants.
+   */
+  private static void exportConversations(Connection c, Conversation conv, DataOutputStream out,
+      TransferStats stats) throws SQLException, IOException {
+    try (PreparedStatement pstmt = c.prepareStatement("SELECT id, name, uuid, host FROM "
+            + CONVERSATIONS_TABLE+(conv == null ? "" : " WHERE uuid = ?")+";");
+        PreparedStatement participants = c.prepareStatement(PARTICIPANTS_SELECT
+            + " WHERE cp.conversation_id = ?;");) {
+      if (conv != null)
+        pstmt.setString(1, conv.getUuid());
+      ResultSet rs = pstmt.executeQuery();
+      while (rs.next()) {
+        List<String> uuids = new ArrayList<String>();
+        participants.setInt(1, rs.getInt("id"));
+        try (ResultSet p = participants.executeQuery();) {
+          while (p.next())
+            uuids.add(p.getString("uuid"));
+        }
+        out.writeByte(HistoryFormat.CONVERSATION);
+        HistoryFormat.writeString(out, rs.getString("name"));
+        HistoryFormat.writeString(out, rs.getString("uuid"));
+        out.writeBoolean(rs.getInt("host") != 0);
+        out.writeInt(uuids.size());
+        for (String uuid : uuids)
+          HistoryFormat.writeString(out, uuid);
+        stats.conversations++;
+      }
+    }
+  }
+  
+  /**
+   * Writes the messages of an export, oldest first.
+   * @param select
+   *   A history query without ORDER BY; has a parameter for the UUID of the conversation if
+   *   <code>conv</code> isn't <code>null</code>.
+   */
+  private static void exportMessages(Connection c, String select, Conversation conv,
+      DataOutputStream out, TransferStats stats) throws SQLException, IOException {
+    try (PreparedStatement pstmt = c.prepareStatement(select
+        + "ORDER BY m.timestamp, m.id;");) {
+      if (conv != null)
+        pstmt.setString(1, conv.getUuid());
+      ResultSet rs = pstmt.executeQuery();
+      while (rs.next()) {
+        out.writeByte(HistoryFormat.MESSAGE);
+        HistoryFormat.writeString(out, rs.getString("conversation_uuid"));
+        HistoryFormat.writeString(out, rs.getString("sender_uuid"));
+        out.writeLong(rs.getLong("timestamp"));
+        out.writeInt(rs.getInt("sent"));
+        HistoryFormat.writeString(out, readContent(rs));
+        stats.messages++;
+      }
+    }
+  }
+  
+  /**
+   * A record of an import that has been read and is written to the database (while it is
+   * locked, in the transaction of its batch).
+   */
+  private interface ImportRecord {
+    /**
+     * @param live
+     *   Selects the content of the messages with the same conversation_id, timestamp and
+     *   sender_id.
+     * @param archived
+     *   The same for the archive.
+     */
+    void write(PreparedStatement live, PreparedStatement archived) throws SQLException;
+  }
+  
+  /** Reads a contact record of an import; it adds the contact if its UUID is unknown. */
+  private ImportRecord readContact(DataInputStream in, TransferStats stats) throws IOException {
+    String name = HistoryFormat.readString(in);
+    String uuid = HistoryFormat.readString(in);
+    String publicKey = HistoryFormat.readString(in);
+    String host = HistoryFormat.readString(in);
+    int port = in.readInt();
+    return (live, archived) -> {
+      if (findId(CONTACTS_TABLE, uuid) >= 0) {
+        stats.duplicates++;
+        return;
+      }
+      try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+CONTACTS_TABLE
+          + "(name,uuid,public_key,host,port) VALUES (?,?,?,?,?);");) {
+        pstmt.setString(1, name);
+        pstmt.setString(2, uuid);
+        pstmt.setString(3, publicKey);
+        pstmt.setString(4, host);
+        pstmt.setInt(5, port);
+        pstmt.executeUpdate();
+      }
+      stats.contacts++;
+    };
+  }
+  
+  /** Reads a conversation record of an import; it adds the conversation if its UUID is unknown. */
+  private ImportRecord readConversation(DataInputStream in, TransferStats stats)
+      throws IOException {
+    String name = HistoryFormat.readString(in);
+    String uuid = HistoryFormat.readString(in);
+    boolean host = in.readBoolean();
+    int count = in.readInt();
+    if (count < 0)
+      throw new IOException("Corrupt history export: "+count+" participants.");
+    List<String> participants = new ArrayList<String>();
+    for (int i = 0; i < count; i++)
+      participants.add(HistoryFormat.readString(in));
+    return (live, archived) -> {
+      if (findId(CONVERSATIONS_TABLE, uuid) >= 0) {
+        stats.duplicates++;
+        return;
+      }
+      try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+CONVERSATIONS_TABLE
+          + "(name,uuid,participants_uuids,host) VALUES (?,?,?,?);");) {
+        pstmt.setString(1, name);
+        pstmt.setString(2, uuid);
+        pstmt.setString(3, host || participants.isEmpty() ? "" : participants.get(0));
+        pstmt.setInt(4, host ? 1 : 0);
+        pstmt.executeUpdate();
+      }
+      insertParticipants(lastInsertId(), participants);
+      stats.conversations++;
+    };
+  }
+  
+  /**
+   * Reads a message record of an import; it adds the message unless it is already in the
+   * messages table or the archive.
+   */
+  private ImportRecord readMessage(DataInputStream in, Map<String, Integer> contactIds,
+      Map<String, Integer> conversationIds, TransferStats stats) throws IOException {
+    String convUuid = HistoryFormat.readString(in);
+    String senderUuid = HistoryFormat.readString(in);
+    long timestamp = in.readLong();
+    int sent = in.readInt();
+    String content = HistoryFormat.readString(in);
+    
+    return (live, archived) -> {
+      int conversation_id = findId(CONVERSATIONS_TABLE, convUuid, conversationIds);
+      int sender_id = findId(CONTACTS_TABLE, senderUuid, contactIds);
+      if (conversation_id < 0 || sender_id < 0) {
+        stats.skipped++;
+        return;
+      }
+      for (PreparedStatement pstmt : new PreparedStatement[] {live, archived}) {
+        pstmt.setInt(1, conversation_id);
+        pstmt.setLong(2, timestamp);
+        pstmt.setInt(3, sender_id);
+        try (ResultSet rs = pstmt.executeQuery();) {
+          while (rs.next()) {
+            if (content.equals(readContent(rs))) {
+              stats.duplicates++;
+              return;
+            }
+          }
+        }
+      }
+      //Imported messages are old, so they don't count as unread.
+      insertMessage(content, senderUuid, sender_id, conversation_id, timestamp, sent, 0, false,
+          false);
+      stats.messages++;
+    };
+  }
+  
+  /** @return the ID of the row with the UUID or -1 if there is none. */
+  private int findId(String table, String uuid) throws SQLException {
+    try (PreparedStatement pstmt = conn.prepareStatement("SELECT id FROM "+table
+        + " WHERE uuid = ?;");) {
+      pstmt.setString(1, uuid);
+      ResultSet rs = pstmt.executeQuery();
+      return rs.next() ? rs.getInt(1) : -1;
+    }
+  }
+  
+  /** {@link #findId(String, String)} with a cache. */
+  private int findId(String table, String uuid, Map<String, Integer> cache) throws SQLException {
+    Integer id = cache.get(uuid);
+    if (id == null) {
+      id = findId(table, uuid);
+      cache.put(uuid, id);
+    }
+    return id;
+  }
+  
+  /**
+   * Compresses the content of a message if it is at least {@link #compressionThreshold} bytes
+   * long.
+   * @return the compressed content or <code>null</code> if the content should be stored as it is
+   *   (too short or not compressible).
+   */
+  private byte[] compress(String content) {
+    int threshold = compressionThreshold;
+    //A UTF-8 character has at most 3 bytes per char, so short messages are skipped cheaply.
+    if (threshold <= 0 || content.length() * 3 < threshold)
+      return null;
+    byte[] plain = content.getBytes(StandardCharsets.UTF_8);
+    if (plain.length < threshold)
+      return null;
+    byte[] compressed = ContentCodec.deflate(plain, Deflater.DEFAULT_COMPRESSION);
+    return compressed.length < plain.length ? compressed : null;
+  }
+  
+  /**
+   * Inserts a message, its row of the search index and updates the counters of its conversation.
+   * @param unread
+   *   Whether the message counts as unread.
+   * @param markRead
+   *   Whether the conversation has been read up to this message.
+   * @return the ID of the message.
+   */
+  private int insertMessage(String content, String senderUuid, int sender_id, int conversation_id,
+      long timestamp, int sent, long sequence, boolean unread, boolean markRead)
+      throws SQLException {
+    try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+MESSAGES_TABLE
+        + "(content,sender_id,conversation_id,timestamp,sent,flags,sequence,sync_digest) "
+        + "VALUES (?,?,?,?,?,?,?,?);");) {
+      byte[] compressed = compress(content);
+      if (compressed != null)
+        pstmt.setBytes(1, compressed);
+      else
+        pstmt.setString(1, content);
+      pstmt.setInt(2, sender_id);
+      pstmt.setInt(3, conversation_id);
+      pstmt.setLong(4, timestamp);
+      pstmt.setInt(5, sent);
+      pstmt.setInt(6, compressed != null ? FLAG_COMPRESSED : 0);
+      pstmt.setLong(7, sequence);
+      pstmt.setLong(8, syncDigest(senderUuid, timestamp, content));
+      pstmt.executeUpdate();
+    }
+    int id = lastInsertId();
+    //The search index has to stay in sync with the messages table.
+    try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO "+SEARCH_TABLE
+        + "(docid,content) VALUES (?,?);");) {
+      pstmt.setInt(1, id);
+      pstmt.setString(2, content);
+      pstmt.executeUpdate();
+    }
+    try (PreparedStatement insert = conn.prepareStatement("INSERT OR IGNORE INTO "+STATS_TABLE
+            + "(conversation_id,message_count,unread_count,last_message_id,last_timestamp) "
+            + "VALUES (?,0,0,-1,-1);");
+        PreparedStatement update = conn.prepareStatement("UPDATE "+STATS_TABLE
+            + " SET message_count = message_count + 1,"
+            + " unread_count = CASE WHEN ?4 THEN 0 ELSE unread_count + ?3 END,"
+            + " last_message_id = CASE WHEN ?2 > last_timestamp"
+            + " OR (?2 = last_timestamp AND ?1 > last_message_id) THEN ?1 ELSE last_message_id END,"
+            + " last_timestamp = max(last_timestamp, ?2)"
+            + " WHERE conversation_id = ?5;");) {
+      insert.setInt(1, conversation_id);
+      insert.executeUpdate();
+      update.setInt(1, id);
+      update.setLong(2, timestamp);
+      update.setInt(3, unread ? 1 : 0);
+      update.setInt(4, markRead ? 1 : 0);
+      update.setInt(5, conversation_id);
+      update.executeUpdate();
+    }
+    return id;
+  }
+  
+  /** @return the ID of the last row inserted with this connection. */
+  private int lastInsertId() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid();");
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+  
+  private static void createParticipantsTable(Statement stmt) throws SQLException {
+    //COLUMNS: | conversation_id | contact_id |
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+PARTICIPANTS_TABLE
+        + "(conversation_id INTEGER NOT NULL,"
+        + "contact_id INTEGER NOT NULL,"
+        + "PRIMARY KEY (conversation_id, contact_id));");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_participants_contact ON "
+        + PARTICIPANTS_TABLE+"(contact_id);");
+  }
+  
+  private static void createOutboxTable(Statement stmt) throws SQLException {
+    //COLUMNS: | message_id | contact_id | attempts | next_attempt |
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+OUTBOX_TABLE
+        + "(message_id INTEGER NOT NULL,"
+        + "contact_id INTEGER NOT NULL,"
+        + "attempts INTEGER NOT NULL,"
+        + "next_attempt INTEGER NOT NULL,"
+        + "PRIMARY KEY (message_id, contact_id));");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_outbox_next_attempt ON "
+        + OUTBOX_TABLE+"(next_attempt);");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_outbox_contact ON "
+        + OUTBOX_TABLE+"(contact_id);");
+  }
+  
+  private static void createArchiveTable(Statement stmt) throws SQLException {
+    //COLUMNS: | id | content | sender_id | conversation_id | timestamp | sent | sequence |
+    //         | sync_digest |
+    //The IDs are the IDs the messages had in the messages table. (AUTOINCREMENT never reuses them.)
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+ARCHIVE_TABLE
+        + "(id INTEGER PRIMARY KEY NOT NULL,"
+        + "content BLOB NOT NULL,"
+        + "sender_id INTEGER NOT NULL,"
+        + "conversation_id INTEGER NOT NULL,"
+        + "timestamp INTEGER NOT NULL,"
+        + "sent INTEGER NOT NULL,"
+        + "sequence INTEGER NOT NULL DEFAULT 0,"
+        + "sync_digest INTEGER NOT NULL DEFAULT 0);");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_archive_conversation_time ON "
+        + ARCHIVE_TABLE+"(conversation_id, timestamp, id);");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_archive_sender_time ON "
+        + ARCHIVE_TABLE+"(sender_id, timestamp, id);");
+    stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_archive_time ON "
+        + ARCHIVE_TABLE+"(timestamp, id);");
+  }
+  
+  /**
+   * Schema version 4: The archive table is created and the database is switched to incremental
+   * auto_vacuum, so the space of archived messages can be given back to the file system. Changing
+   * auto_vacuum requires a full VACUUM once (outside of a transaction and not in WAL mode).
+   */
+  private void migrateArchive() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      createArchiveTable(stmt);
+      ResultSet rs = stmt.executeQuery("PRAGMA auto_vacuum;");
+      boolean incremental = rs.next() && rs.getInt(1) == 2;
+      rs.close();
+      if (!incremental) {
+        stmt.executeQuery("PRAGMA journal_mode = DELETE;").close();
+        stmt.executeUpdate("PRAGMA auto_vacuum = INCREMENTAL;");
+        stmt.executeUpdate("VACUUM;");
+        stmt.executeQuery("PRAGMA journal_mode = WAL;").close();
+      }
+    }
+  }
+  
+  private static void createStatsTable(Statement stmt) throws SQLException {
+    //COLUMNS: | conversation_id | message_count | unread_count | last_message_id | last_timestamp |
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+STATS_TABLE
+        + "(conversation_id INTEGER PRIMARY KEY NOT NULL,"
+        + "message_count INTEGER NOT NULL,"
+        + "unread_count INTEGER NOT NULL,"
+        + "last_message_id INTEGER NOT NULL,"
+        + "last_timestamp INTEGER NOT NULL);");
+  }
+  
+  private static void createDigestsTable(Statement stmt) throws SQLException {
+    //COLUMNS: | conversation_uuid | digest | timestamp |
+    // The conversation is stored by its UUID: messages of conversations that aren't stored (yet)
+    // are received, too. The timestamp is the one of the message.
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+DIGESTS_TABLE
+        + "(conversation_uuid TEXT NOT NULL,"
+        + "digest INTEGER NOT NULL,"
+        + "timestamp INTEGER NOT NULL DEFAULT 0,"
+        + "PRIMARY KEY (conversation_uuid, digest)) WITHOUT ROWID;");
+  }
+  
+  private static void createSequencesTable(Statement stmt) throws SQLException {
+    //COLUMNS: | conversation_uuid | sender_uuid | last_sequence |
+    //For the user: the last sequence number assigned; for other contacts: the last sequence
+    //number delivered in order.
+    stmt.executeUpdate("CREATE TABLE IF NOT EXISTS "+SEQUENCES_TABLE
+        + "(conversation_uuid TEXT NOT NULL,"
+        + "sender_uuid TEXT NOT NULL,"
+        + "last_sequence INTEGER NOT NULL,"
+        + "PRIMARY KEY (conversation_uuid, sender_uuid)) WITHOUT ROWID;");
+  }
+  
+  /**
+   * Schema version 8: Messages have a sequence number (0 for the existing ones) and the sequence
+   * numbers per conversation and sender are tracked in the sequences table.
+   */
+  private void migrateSequences() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      //The archive of older databases is created by migrateArchive() with the column already.
+      for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE})
+        if (!hasColumn(stmt, table, "sequence"))
+          stmt.executeUpdate("ALTER TABLE "+table
+              + " ADD COLUMN sequence INTEGER NOT NULL DEFAULT 0;");
+      createSequencesTable(stmt);
+    }
+  }
+  
+  /**
+   * Schema version 10: Archived messages stay in the search index. The messages that were
+   * archived before are added to it again (if the index exists already; otherwise it is built with
+   * them when it is created).
+   */
+  private void migrateArchiveSearch() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+          + "AND name = '"+SEARCH_TABLE+"';");
+      boolean exists = rs.next();
+      rs.close();
+      if (!exists)
+        return;
+    }
+    indexMessages("SELECT id, content, 0 AS flags, 1 AS archived FROM "+ARCHIVE_TABLE
+        + " WHERE id NOT IN (SELECT docid FROM "+SEARCH_TABLE+");");
+  }
+  
+  /**
+   * Schema version 11: The message digests have the timestamp of their message, so they are
+   * deleted when the messages are archived. The timestamps of the existing digests are unknown;
+   * they get the time of the migration, so they are deleted with the first messages received
+   * after it.
+   */
+  private void migrateDigestTimestamps() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      if (!hasColumn(stmt, DIGESTS_TABLE, "timestamp"))
+        stmt.executeUpdate("ALTER TABLE "+DIGESTS_TABLE
+            + " ADD COLUMN timestamp INTEGER NOT NULL DEFAULT 0;");
+      stmt.executeUpdate("UPDATE "+DIGESTS_TABLE+" SET timestamp = "+System.currentTimeMillis()
+          + " WHERE timestamp = 0;");
+    }
+  }
+  
+  /**
+   * Adds the messages of a query to the search index. The query has to return the columns id,
+   * content, flags and archived.
+   */
+  private void indexMessages(String select) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO "+SEARCH_TABLE
+            + "(docid,content) VALUES (?,?);");) {
+      //The index needs the plain text, so compressed contents are decompressed here.
+      ResultSet rs = stmt.executeQuery(select);
+      int n = 0;
+      while (rs.next()) {
+        insert.setInt(1, rs.getInt("id"));
+        insert.setString(2, readContent(rs));
+        insert.addBatch();
+        if (++n % IMPORT_BATCH_SIZE == 0)
+          insert.executeBatch();
+      }
+      rs.close();
+      insert.executeBatch();
+    }
+  }
+  
+  /**
+   * Schema version 9: Messages have a digest for the synchronization of the history (see
+   * {@link #getSyncBuckets(String, long, long, long)}). The digests of the existing messages are
+   * computed in batches (one transaction each).
+   */
+  private void migrateSyncDigests() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE})
+        if (!hasColumn(stmt, table, "sync_digest"))
+          stmt.executeUpdate("ALTER TABLE "+table
+              + " ADD COLUMN sync_digest INTEGER NOT NULL DEFAULT 0;");
+    }
+    for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE}) {
+      boolean archive = table.equals(ARCHIVE_TABLE);
+      int[] last = {-1};
+      boolean[] done = {false};
+      while (!done[0])
+        inTransaction(() -> {
+          try (PreparedStatement select = conn.prepareStatement("SELECT m.id AS id, "
+                  + "m.content AS content, m.timestamp AS timestamp, s.uuid AS sender_uuid, "
+                  + (archive ? "0 AS flags, 1 AS archived " : "m.flags AS flags, 0 AS archived ")
+                  + "FROM "+table+" m JOIN "+CONTACTS_TABLE+" s ON s.id = m.sender_id "
+                  + "WHERE m.id > ? ORDER BY m.id LIMIT ?;");
+              PreparedStatement update = conn.prepareStatement("UPDATE "+table
+                  + " SET sync_digest = ? WHERE id = ?;");) {
+            select.setInt(1, last[0]);
+            select.setInt(2, IMPORT_BATCH_SIZE);
+            ResultSet rs = select.executeQuery();
+            int n = 0;
+            while (rs.next()) {
+              last[0] = rs.getInt("id");
+              update.setLong(1, syncDigest(EscapedString.unescape(rs.getString("sender_uuid")),
+                  rs.getLong("timestamp"), readContent(rs)));
+              update.setInt(2, last[0]);
+              update.addBatch();
+              n++;
+            }
+            rs.close();
+            update.executeBatch();
+            done[0] = n < IMPORT_BATCH_SIZE;
+          }
+        });
+    }
+  }
+  
+  /**
+   * Computes the digest of a message for the synchronization: the first 32 bits of the SHA-256
+   * hash of the sender's UUID, the time stamp in seconds (the precision that is sent) and the
+   * content. Both participants compute the same digest for a message.
+   */
+  static long syncDigest(String senderUuid, long timestamp, String content) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't available.", e);
+    }
+    md.update(senderUuid.getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    long seconds = timestamp / 1000;
+    for (int i = 56; i >= 0; i -= 8)
+      md.update((byte) (seconds >>> i));
+    md.update(content.getBytes(StandardCharsets.UTF_8));
+    byte[] b = md.digest();
+    return ((b[0] & 0xffL) << 24) | ((b[1] & 0xffL) << 16) | ((b[2] & 0xffL) << 8) | (b[3] & 0xffL);
+  }
+  
+  private static boolean hasColumn(Statement stmt, String table, String column)
+      throws SQLException {
+    try (ResultSet rs = stmt.executeQuery("PRAGMA table_info("+table+");");) {
+      while (rs.next())
+        if (column.equals(rs.getString("name")))
+          return true;
+      return false;
+    }
+  }
+  
+  /**
+   * Assigns the next sequence number of a sender in a conversation.
+   */
+  private long nextSequence(String convUuid, String senderUuid) throws SQLException {
+    try (PreparedStatement insert = conn.prepareStatement("INSERT OR IGNORE INTO "
+            + SEQUENCES_TABLE+"(conversation_uuid,sender_uuid,last_sequence) VALUES (?,?,0);");
+        PreparedStatement update = conn.prepareStatement("UPDATE "+SEQUENCES_TABLE
+            + " SET last_sequence = last_sequence + 1"
+            + " WHERE conversation_uuid = ? AND sender_uuid = ?;");
+        PreparedStatement select = conn.prepareStatement("SELECT last_sequence FROM "
+            + SEQUENCES_TABLE+" WHERE conversation_uuid = ? AND sender_uuid = ?;");) {
+      for (PreparedStatement pstmt : new PreparedStatement[] {insert, update, select}) {
+        pstmt.setString(1, convUuid);
+        pstmt.setString(2, senderUuid);
+      }
+      insert.executeUpdate();
+      update.executeUpdate();
+      ResultSet rs = select.executeQuery();
+      rs.next();
+      return rs.getLong(1);
+    }
+  }
+  
+  /**
+   * Schema version 6: The counters of the conversations are stored in the conversation_stats
+   * table. They are computed once from the messages and the archive; all existing messages count
+   * as read.
+   */
+  private void migrateStats() throws SQLException {
+    try (Statement stmt = conn.createStatement();) {
+      createStatsTable(stmt);
+    }
+    try (Statement stmt = conn.createStatement();
+        PreparedStatement insert = conn.prepareStatement("INSERT OR REPLACE INTO "+STATS_TABLE
+            + "(conversation_id,message_count,unread_count,last_message_id,last_timestamp) "
+            + "VALUES (?,?,0,?,?);");) {
+      List<Integer> conversations = new ArrayList<Integer>();
+      ResultSet rs = stmt.executeQuery("SELECT id FROM "+CONVERSATIONS_TABLE+";");
+      while (rs.next())
+        conversations.add(rs.getInt(1));
+      rs.close();
+      
+      for (int conversation_id : conversations) {
+        long count = 0;
+        int last_id = -1;
+        long last_timestamp = -1;
+        for (String table : new String[] {MESSAGES_TABLE, ARCHIVE_TABLE}) {
+          rs = stmt.executeQuery("SELECT count(*) FROM "+table+" WHERE conversation_id = "
+              + conversation_id+";");
+          rs.next();
+          count += rs.getLong(1);
+          rs.close();
+          rs = stmt.executeQuery("SELECT id, timestamp FROM "+table+" WHERE conversation_id = "
+              + conversation_id+" ORDER BY timestamp DESC, id DESC LIMIT 1;");
+          if (rs.next() && (rs.getLong(2) > last_timestamp
+              || (rs.getLong(2) == last_timestamp && rs.getInt(1) > last_id))) {
+            last_id = rs.getInt(1);
+            last_timestamp = rs.getLong(2);
+          }
+          rs.close();
+        }
+        if (count == 0)
+          continue;
+        insert.setInt(1, conversation_id);
+        insert.setLong(2, count);
+        insert.setInt(3, last_id);
+        insert.setLong(4, last_timestamp);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+  }
+  
   /** used to check whether the constants are valid*/
   private static void assert_constants() {
     if (MESSAGES_TABLE == null || MESSAGES_TABLE.isEmpty() || MESSAGES_TABLE.contains("'") ||
@@ -753,19 +2913,9 @@ public class Database implements AutoCloseable {
     }
   }
   
-  private Blob getSerializedBlob(Serializable s) throws SQLException {
-    Blob b = conn.createBlob();
-    try (OutputStream os = b.setBinaryStream(1);
-        ObjectOutputStream oos = new ObjectOutputStream(os);) {
-      oos.writeObject(s);
-    } catch (IOException e) {
-      throw new SQLException(e.getMessage());
-    }
-    return b;
-  }
-  
-  private Object getObjFromSerializedBlob(Blob b) throws SQLException {
-    try (ObjectInputStream ois = new ObjectInputStream(b.getBinaryStream());) {
+  private Object getObjFromSerializedBytes(byte[] b) throws SQLException {
+    //ResultSet.getBlob() isn't implemented by the SQLite driver.
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b));) {
       return ois.readObject();
     } catch (IOException|ClassNotFoundException e) {
       throw new SQLException(e.getMessage());
@@ -862,46 +3012,32 @@ public class Database implements AutoCloseable {
                                          +fromTime+" toTime = "+toTime);
     }
     
-    try (Statement stmt = conn.createStatement();) {
-      StringBuilder sql = new StringBuilder(128);
-      StringBuilder condition = new StringBuilder(64);
-      condition.append("timestamp >= ").append(fromTime).append(" AND timestamp < ").append(toTime)
-          .append(" AND ");
-      if (conversation != null) {
-        condition.append("conversation_id = ").append(getConversationId(
-            new EscapedString(conversation.getUuid()))).append(" AND ");
-      }
-      if (contact != null) {
-        condition.append("contact_id = ").append(getContactId(
-            new EscapedString(contact.getUuid()))).append(" AND ");
-      }
-      if (onlyUnsent) {
-        condition.append("sent > 0");
-      }
-      
-      if (condition.substring(condition.length() - " AND ".length(),
-          condition.length()) == " AND ") {
-        condition.delete(condition.length() - " AND ".length(), condition.length());
-      }
-      
-      sql.append("SELECT * FROM "+MESSAGES_TABLE+" WHERE ").append(condition).append(" LIMIT ")
-          .append(maxNumberOfMessages).append(" ORDER BY timestamp ASC;");
-      
-      ResultSet rs = stmt.executeQuery(sql.toString());
-      LinkedList<Message> results = new LinkedList<Message>();
+    //The UUIDs are resolved by the JOINs and the archive is read in the same statement, so the
+    //whole page costs exactly one query.
+    StringBuilder where = new StringBuilder(128);
+    List<Object> params = new ArrayList<Object>(4);
+    where.append("WHERE m.timestamp >= ? AND m.timestamp < ?");
+    params.add(fromTime);
+    params.add(toTime);
+    if (conversation != null) {
+      where.append(" AND c.uuid = ?");
+      params.add(conversation.getUuid());
+    }
+    if (contact != null) {
+      where.append(" AND s.uuid = ?");
+      params.add(contact.getUuid());
+    }
+    if (onlyUnsent)
+      where.append(" AND m.sent = 0");
+    
+    try (Reader reader = readers.acquire();
+        PreparedStatement pstmt = prepareTieredHistory(reader.conn, where.toString(), params,
+            maxNumberOfMessages);) {
+      ResultSet rs = pstmt.executeQuery();
+      List<Message> results = new ArrayList<Message>(Math.min(maxNumberOfMessages, 1024));
       
       while (rs.next()) {
-        String content = rs.getString("content");
-        int sender_id = rs.getInt("sender_id");
-        int conversation_id = rs.getInt("conversation_id");
-        int sent = rs.getInt("sent");
-        int id = rs.getInt("id");
-        long timestamp = rs.getLong("timestamp");
-        if (! (sent >= 0) )
-          throw new IllegalStateException("Fatal error: sent_int must be bigger than 0, but is "
-              +sent);
-        results.add(new InternalMessage(content, getConversationUuid(conversation_id),
-            getContactUuid(sender_id), timestamp, id, sent));
+        results.add(readHistoryRow(rs));
       }
       
       return results;
@@ -911,11 +3047,96 @@ public class Database implements AutoCloseable {
     
   }
   
+  /**
+   * Prepares the query for one page of a {@link MessageCursor}: the messages of a conversation
+   * that are older than the given (timestamp, id) key, newest first.
+   */
+  static PreparedStatement prepareHistoryPage(Connection c, String convUuid, long beforeTimestamp, int beforeId,
+      int pageSize) throws SQLException {
+    List<Object> params = new ArrayList<Object>(4);
+    params.add(convUuid);
+    params.add(beforeTimestamp);
+    params.add(beforeTimestamp);
+    params.add(beforeId);
+    return prepareTieredHistory(c,
+        "WHERE c.uuid = ? AND (m.timestamp < ? OR (m.timestamp = ? AND m.id < ?))", params,
+        pageSize);
+  }
+  
+  /**
+   * Prepares a history query over the messages table and the archive: both tables are filtered
+   * with the same WHERE clause, each one returns its newest <code>limit</code> rows (using the
+   * (timestamp, id) indices) and the merged result is cut to <code>limit</code> rows again, newest
+   * first.
+   * @param where
+   *   The WHERE clause (on the aliases m, s and c of {@link #HISTORY_FROM}).
+   * @param params
+   *   The parameters of the WHERE clause.
+   */
+  private static PreparedStatement prepareTieredHistory(Connection c, String where,
+      List<Object> params, int limit) throws SQLException {
+    String order = " ORDER BY m.timestamp DESC, m.id DESC LIMIT ?";
+    PreparedStatement pstmt = c.prepareStatement("SELECT * FROM (SELECT "+HISTORY_COLUMNS
+        + HISTORY_FROM+where+order+") UNION ALL SELECT * FROM (SELECT "+ARCHIVE_COLUMNS
+        + ARCHIVE_FROM+where+order+") ORDER BY timestamp DESC, id DESC LIMIT ?;");
+    int i = 1;
+    for (int table = 0; table < 2; table++) {
+      for (Object o : params)
+        pstmt.setObject(i++, o);
+      pstmt.setInt(i++, limit);
+    }
+    pstmt.setInt(i, limit);
+    return pstmt;
+  }
+  
+  /** Borrows a read-only connection (used by {@link MessageCursor}). */
+  ReaderPool.Reader acquireReader() throws SQLException {
+    return readers.acquire();
+  }
+  
+  /**
+   * Reads the current row of a result set of a query that starts with {@link #HISTORY_SELECT}.
+   */
+  static InternalMessage readHistoryRow(ResultSet rs) throws SQLException, FormatException {
+    int sent = rs.getInt("sent");
+    if (! (sent >= 0) )
+      throw new IllegalStateException("Fatal error: sent_int must be bigger than 0, but is "
+          +sent);
+    InternalMessage m = new InternalMessage(readContent(rs),
+        EscapedString.unescape(rs.getString("conversation_uuid")),
+        EscapedString.unescape(rs.getString("sender_uuid")),
+        rs.getLong("timestamp"), rs.getInt("id"), sent);
+    m.setSequence(rs.getLong("sequence"));
+    return m;
+  }
+  
+  /**
+   * Reads the (decompressed) content of the current row of a history query. The row needs the
+   * columns id, content, flags and archived.
+   */
+  static String readContent(ResultSet rs) throws SQLException {
+    if (rs.getInt("archived") == 0 && (rs.getInt("flags") & FLAG_COMPRESSED) == 0)
+      return rs.getString("content");
+    try {
+      return ContentCodec.inflate(rs.getBytes("content"));
+    } catch (DataFormatException e) {
+      throw new SQLException("The content of message "+rs.getInt("id")+" is corrupt: "
+          + e.getMessage());
+    }
+  }
+  
   private void createTables() throws SQLException {
     try (Statement stmt = conn.createStatement();) {
       createMessagesTable(stmt);
       createContactsTable(stmt);
       createConversationsTable(stmt);
+      createParticipantsTable(stmt);
+      createOutboxTable(stmt);
+      createArchiveTable(stmt);
+      createStatsTable(stmt);
+      createDigestsTable(stmt);
+      createSequencesTable(stmt);
+      stmt.executeUpdate("PRAGMA user_version = "+SCHEMA_VERSION+";");
     }
   }
   
@@ -954,9 +3175,89 @@ public class Database implements AutoCloseable {
   }
  
   
+  /**
+   * The connection used for writing. All methods that use it are synchronized, so only one
+   * thread at a time uses it.
+   */
   Connection conn;
+  /** The read-only connections. */
+  private ReaderPool readers;
+  
+  /**
+   * The minimal size (in UTF-8 bytes) of a message's content to be stored compressed; 0 disables
+   * the compression.
+   */
+  private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+  
+  /** The default of {@link #setCompressionThreshold(int)}. */
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+  /** The UUID of the user; their messages don't count as unread. */
+  private volatile String userUuid;
+  /** Whether the history is stored in another {@link MessageStore}. */
+  private volatile boolean externalHistory;
+  /** The number of records that are imported in one transaction. */
+  public static final int IMPORT_BATCH_SIZE = 1000;
+  /** The number of read-only connections if none is specified. */
+  public static final int DEFAULT_READERS = 4;
+  /** The time (in milliseconds) a connection waits for a lock of the database file. */
+  static final int BUSY_TIMEOUT = 5000;
+  
+  static final String MESSAGES_TABLE = "messages";
+  static final String CONTACTS_TABLE = "contacts";
+  static final String CONVERSATIONS_TABLE = "conversations";
+  static final String SEARCH_TABLE = "messages_search";
+  static final String PARTICIPANTS_TABLE = "conversation_participants";
+  static final String OUTBOX_TABLE = "outbox";
+  static final String STATS_TABLE = "conversation_stats";
+  static final String ARCHIVE_TABLE = "messages_archive";
+  static final String DIGESTS_TABLE = "message_digests";
+  static final String SEQUENCES_TABLE = "sequences";
+  
+  /** The version of the schema created by this class (stored as user_version). */
+  static final int SCHEMA_VERSION = 11;
+  
+  /** Flag of a message whose content is compressed (see {@link ContentCodec}). */
+  static final int FLAG_COMPRESSED = 1;
+  
+  /**
+   * Selects the participants of conversations (the conversation's ID and the columns of the
+   * contact). Can be followed by a WHERE clause on <code>cp.conversation_id</code>.
+   */
+  static final String PARTICIPANTS_SELECT = "SELECT cp.conversation_id AS conversation_id, "
+      + "ct.name AS name, ct.uuid AS uuid, ct.public_key AS public_key, ct.host AS host, "
+      + "ct.port AS port FROM "+PARTICIPANTS_TABLE+" cp "
+      + "JOIN "+CONTACTS_TABLE+" ct ON ct.id = cp.contact_id";
+  
+  /** The columns read by {@link #readHistoryRow(ResultSet)}. */
+  static final String HISTORY_COLUMNS = "m.id AS id, m.content AS content, "
+      + "m.timestamp AS timestamp, m.sent AS sent, "
+      + "s.uuid AS sender_uuid, c.uuid AS conversation_uuid, m.flags AS flags, 0 AS archived, "
+      + "m.sequence AS sequence ";
+  
+  /** The columns of {@link #HISTORY_COLUMNS} for the archive table. */
+  static final String ARCHIVE_COLUMNS = "m.id AS id, m.content AS content, "
+      + "m.timestamp AS timestamp, m.sent AS sent, "
+      + "s.uuid AS sender_uuid, c.uuid AS conversation_uuid, 0 AS flags, 1 AS archived, "
+      + "m.sequence AS sequence ";
+  
+  /**
+   * Resolves the UUIDs of the sender and the conversation of each message with JOINs.
+   */
+  static final String HISTORY_FROM = "FROM "+MESSAGES_TABLE+" m "
+      + "JOIN "+CONTACTS_TABLE+" s ON s.id = m.sender_id "
+      + "JOIN "+CONVERSATIONS_TABLE+" c ON c.id = m.conversation_id ";
+  
+  /**
+   * Common start of the history queries. Has to be followed by a WHERE clause.
+   */
+  static final String HISTORY_SELECT = "SELECT "+HISTORY_COLUMNS+HISTORY_FROM;
+  
+  /** {@link #HISTORY_FROM} for the archive table. */
+  static final String ARCHIVE_FROM = "FROM "+ARCHIVE_TABLE+" m "
+      + "JOIN "+CONTACTS_TABLE+" s ON s.id = m.sender_id "
+      + "JOIN "+CONVERSATIONS_TABLE+" c ON c.id = m.conversation_id ";
   
-  static String MESSAGES_TABLE = "messages";
-  static String CONTACTS_TABLE = "contacts";
-  static String CONVERSATIONS_TABLE = "conversations";
+  /** The columns that are moved from the messages table to the archive. */
+  private static final String ARCHIVED_COLUMNS =
+      "id,content,sender_id,conversation_id,timestamp,sent,sequence,sync_digest";
 }
@@ -0,0 +1,52 @@
+package database;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary format of history exports.<br>
+ * An export starts with {@link #MAGIC} and {@link #VERSION} (both <code>int</code>), followed by
+ * records that each start with a tag byte and end with {@link #END}:
+ *
+ * <pre>
+ * CONTACT:      name, uuid, public_key, host, port(int)
+ * CONVERSATION: name, uuid, host(boolean), participant count(int), participant uuids
+ * MESSAGE:      conversation uuid, sender uuid, timestamp(long), sent(int), content
+ * </pre>
+ *
+ * Strings are written as their length in bytes (<code>int</code>) followed by UTF-8. Contacts
+ * are written before the conversations and the conversations before the messages, so a reader
+ * never needs more than one record at a time.
+ */
+class HistoryFormat {
+  /** "MSGH" */
+  static final int MAGIC = 0x4D534748;
+  static final int VERSION = 1;
+
+  static final byte END = 0;
+  static final byte CONTACT = 1;
+  static final byte CONVERSATION = 2;
+  static final byte MESSAGE = 3;
+
+  /** The maximum length of a string in bytes; protects against corrupt files. */
+  private static final int MAX_STRING = 16 * 1024 * 1024;
+
+  private HistoryFormat() {}
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_STRING)
+      throw new IOException("Corrupt history export: string of " + length + " bytes.");
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
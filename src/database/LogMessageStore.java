@@ -0,0 +1,397 @@
+package database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import coversations.Conversation;
+import exceptions.DBException;
+import exceptions.FormatException;
+import exchange.InternalMessage;
+import exchange.Message;
+
+/**
+ * Stores the Messages in an append-only log.<br>
+ * The log consists of segment files of a fixed size that are memory-mapped. A Message is appended
+ * to the newest segment; if it doesn't fit, a new segment is started ("rolled"). Appending doesn't
+ * touch any other data, so it costs one copy into the mapped memory instead of the B-tree updates
+ * of SQLite. The database ID of a Message is its position in the log (starting with 1), so the
+ * history is ordered by arrival.<br>
+ * The positions of all Messages and the IDs of the Messages of every Conversation are kept in
+ * memory; they are rebuilt by scanning the segments when the store is opened. A record that was
+ * only partly written (e.g. after a crash) ends the log.<br>
+ * <br>
+ * A record consists of:
+ *
+ * <pre>
+ * | length (int) | CRC32 (int) | sent (int) | timestamp (long) | conversation | sender | content |
+ * </pre>
+ *
+ * The strings are written as their length in bytes (<code>int</code>) followed by UTF-8. The
+ * length is the size of everything after the CRC; the CRC covers everything after the sent
+ * counter, which is the only field that is updated in place.
+ */
+public class LogMessageStore implements MessageStore {
+
+  /** The size of the length and CRC fields. */
+  private static final int HEADER = 8;
+  /** The offset of the timestamp relative to the start of a record. */
+  private static final int TIMESTAMP = HEADER + 4;
+  /** The file name of a segment: its first database ID. */
+  private static final String SEGMENT_FORMAT = "segment-%010d.log";
+
+  /** The directory of the segments. */
+  private final File dir;
+  /** The size of new segments in bytes. */
+  private final int segmentSize;
+  /** The segments, oldest first. The last one is appended to. */
+  private final List<Segment> segments = new ArrayList<Segment>();
+
+  /** The position of every Message: (segment index << 32) | offset; index = database ID - 1. */
+  private long[] positions = new long[1024];
+  /** The number of Messages. */
+  private int count = 0;
+  /** The database IDs of the Messages of every Conversation (ascending). */
+  private final Map<String, IdList> conversations = new HashMap<String, IdList>();
+
+  /**
+   * Opens the log in a directory and creates it if it doesn't exist.
+   *
+   * @param dir The directory of the segments.
+   * @param segmentSize The size of new segments in bytes. A Message has to fit into one segment.
+   * @throws DBException if the log couldn't be opened.
+   */
+  public LogMessageStore(File dir, int segmentSize) throws DBException {
+    if (segmentSize < 1024)
+      throw new IllegalArgumentException("segmentSize must be at least 1024. segmentSize = "
+          + segmentSize);
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new DBException("Couldn't create the message log at " + dir.getPath() + ".");
+    try {
+      File[] files = dir.listFiles((d, name) -> name.matches("segment-\\d{10}\\.log"));
+      Arrays.sort(files);
+      for (File f : files) {
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).end < 0)
+          throw new DBException("The message log at " + dir.getPath() + " is corrupt before "
+              + f.getName() + ".");
+        int firstId = Integer.parseInt(f.getName().substring(8, 18));
+        if (firstId != count + 1)
+          throw new DBException("The message log at " + dir.getPath() + " misses the Messages "
+              + (count + 1) + " to " + (firstId - 1) + ".");
+        Segment s = new Segment(f, (int) Math.min(Math.max(f.length(), segmentSize),
+            Integer.MAX_VALUE));
+        segments.add(s);
+        scan(s, segments.size() - 1);
+      }
+      if (segments.isEmpty())
+        segments.add(new Segment(new File(dir, String.format(SEGMENT_FORMAT, 1)), segmentSize));
+      Segment last = segments.get(segments.size() - 1);
+      if (last.end < 0)
+        last.truncate();
+    } catch (IOException e) {
+      close();
+      throw new DBException("Couldn't open the message log: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void addMessage(InternalMessage m) throws DBException {
+    byte[] conv = m.getUuidConversation().getBytes(StandardCharsets.UTF_8);
+    byte[] sender = m.getUuidSender().getBytes(StandardCharsets.UTF_8);
+    byte[] content = m.getContent().getBytes(StandardCharsets.UTF_8);
+    int length = 4 + 8 + 4 + conv.length + 4 + sender.length + 4 + content.length;
+    if (HEADER + length > segmentSize)
+      throw new DBException("The Message is too big for a segment of the message log.");
+
+    try {
+      Segment s = segments.get(segments.size() - 1);
+      if (s.end + HEADER + length > s.buffer.capacity())
+        s = roll();
+      ByteBuffer b = s.buffer;
+      int start = s.end;
+      b.position(start + HEADER);
+      b.putInt(m.isSent() ? 1 : 0);
+      b.putLong(m.getTimeStamp().getTimeInMillis());
+      putBytes(b, conv);
+      putBytes(b, sender);
+      putBytes(b, content);
+      b.putInt(start + 4, crc(b, start));
+      // The length is written last: a record without a length ends the log.
+      b.putInt(start, length);
+      s.end = start + HEADER + length;
+
+      int id = index(segments.size() - 1, start);
+      m.setDatabaseId(id);
+    } catch (IOException e) {
+      throw new DBException("Adding the Message to the log failed: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void incrementSent(int id) throws DBException {
+    if (id < 0)
+      throw new IllegalArgumentException("id smaller than 0. id = " + id);
+    if (id == 0 || id > count)
+      return;
+    long p = positions[id - 1];
+    ByteBuffer b = segments.get((int) (p >>> 32)).buffer;
+    int offset = (int) p + HEADER;
+    b.putInt(offset, b.getInt(offset) + 1);
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * All Messages are read from the newest one backwards until enough have been found.
+   */
+  @Override
+  public synchronized List<Message> getLastNMessages(int maxNumberOfMessages, boolean onlyUnsent)
+      throws DBException {
+    checkMax(maxNumberOfMessages);
+    List<Message> results = new ArrayList<Message>(Math.min(maxNumberOfMessages, 1024));
+    for (int id = count; id > 0 && results.size() < maxNumberOfMessages; id--)
+      if (!onlyUnsent || sent(id) == 0)
+        results.add(read(id));
+    return results;
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * The Messages are ordered by arrival, not by timestamp.
+   */
+  @Override
+  public synchronized List<Message> getLastNMessages(Conversation conv, long fromTime,
+      long toTime, int maxNumberOfMessages, boolean onlyUnsent) throws DBException {
+    Objects.requireNonNull(conv, "conv must not be null");
+    checkMax(maxNumberOfMessages);
+    if (fromTime < 0 || toTime < 0 || fromTime > toTime)
+      throw new IllegalArgumentException("Invalid time span: fromTime = " + fromTime
+          + " toTime = " + toTime);
+    List<Message> results = new ArrayList<Message>(Math.min(maxNumberOfMessages, 1024));
+    IdList ids = conversations.get(conv.getUuid());
+    for (int i = ids == null ? -1 : ids.size - 1; i >= 0 && results.size() < maxNumberOfMessages;
+        i--) {
+      int id = ids.ids[i];
+      long timestamp = timestamp(id);
+      if (timestamp >= fromTime && timestamp < toTime && (!onlyUnsent || sent(id) == 0))
+        results.add(read(id));
+    }
+    return results;
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * The history is ordered by arrival, so only <code>beforeId</code> is used.
+   */
+  @Override
+  public synchronized List<InternalMessage> getHistoryPage(Conversation conv,
+      long beforeTimestamp, int beforeId, int pageSize) throws DBException {
+    Objects.requireNonNull(conv, "conv must not be null");
+    if (pageSize <= 0)
+      throw new IllegalArgumentException("pageSize must be greater than 0. pageSize = "
+          + pageSize);
+    List<InternalMessage> page = new ArrayList<InternalMessage>(Math.min(pageSize, 1024));
+    IdList ids = conversations.get(conv.getUuid());
+    if (ids == null)
+      return page;
+    int i = Arrays.binarySearch(ids.ids, 0, ids.size, beforeId);
+    // Start with the newest Message whose ID is smaller than beforeId.
+    for (i = (i >= 0 ? i : -i - 1) - 1; i >= 0 && page.size() < pageSize; i--)
+      page.add(read(ids.ids[i]));
+    return page;
+  }
+
+  /**
+   * Writes the changes of the mapped segments to the disk.
+   */
+  public synchronized void flush() {
+    for (Segment s : segments)
+      s.buffer.force();
+  }
+
+  /**
+   * Writes all changes to the disk and closes the segments.
+   */
+  @Override
+  public synchronized void close() throws DBException {
+    DBException first = null;
+    for (Segment s : segments)
+      try {
+        s.close();
+      } catch (IOException e) {
+        if (first == null)
+          first = new DBException("Closing the message log failed: " + e.getMessage());
+      }
+    segments.clear();
+    if (first != null)
+      throw first;
+  }
+
+  /**
+   * Reads the records of a segment into the indexes. Sets the end of the segment; it is negative
+   * if the segment ends with an invalid record.
+   */
+  private void scan(Segment s, int segment) {
+    ByteBuffer b = s.buffer;
+    int offset = 0;
+    while (offset + HEADER <= b.capacity()) {
+      int length = b.getInt(offset);
+      if (length == 0) {
+        s.end = offset;
+        return;
+      }
+      if (length < 4 + 8 || offset + HEADER + length > b.capacity()
+          || b.getInt(offset + 4) != crc(b, offset, length)) {
+        s.end = -offset - 1;
+        return;
+      }
+      index(segment, offset);
+      offset += HEADER + length;
+    }
+    s.end = offset;
+  }
+
+  /**
+   * Adds a record to the indexes.
+   *
+   * @return the database ID of the record.
+   */
+  private int index(int segment, int offset) {
+    if (count == positions.length)
+      positions = Arrays.copyOf(positions, positions.length * 2);
+    positions[count++] = ((long) segment << 32) | offset;
+    ByteBuffer b = segments.get(segment).buffer;
+    int length = b.getInt(offset + TIMESTAMP + 8);
+    String conv = new String(bytes(b, offset + TIMESTAMP + 12, length), StandardCharsets.UTF_8);
+    conversations.computeIfAbsent(conv, c -> new IdList()).add(count);
+    return count;
+  }
+
+  /**
+   * Starts a new segment.
+   */
+  private Segment roll() throws IOException {
+    Segment last = segments.get(segments.size() - 1);
+    last.buffer.force();
+    Segment s = new Segment(new File(dir, String.format(SEGMENT_FORMAT, count + 1)), segmentSize);
+    segments.add(s);
+    return s;
+  }
+
+  private InternalMessage read(int id) throws DBException {
+    long p = positions[id - 1];
+    ByteBuffer b = segments.get((int) (p >>> 32)).buffer;
+    int offset = (int) p + HEADER;
+    int sent = b.getInt(offset);
+    long timestamp = b.getLong(offset + 4);
+    offset += 12;
+    String[] strings = new String[3];
+    for (int i = 0; i < 3; i++) {
+      int length = b.getInt(offset);
+      strings[i] = new String(bytes(b, offset + 4, length), StandardCharsets.UTF_8);
+      offset += 4 + length;
+    }
+    try {
+      return new InternalMessage(strings[2], strings[0], strings[1], timestamp, id, sent);
+    } catch (FormatException e) {
+      throw new DBException("Message " + id + " of the log is invalid: " + e.getMessage());
+    }
+  }
+
+  private int sent(int id) {
+    long p = positions[id - 1];
+    return segments.get((int) (p >>> 32)).buffer.getInt((int) p + HEADER);
+  }
+
+  private long timestamp(int id) {
+    long p = positions[id - 1];
+    return segments.get((int) (p >>> 32)).buffer.getLong((int) p + TIMESTAMP);
+  }
+
+  private static void checkMax(int maxNumberOfMessages) {
+    if (maxNumberOfMessages <= 0)
+      throw new IllegalArgumentException("maxNumberOfMessages must be greater than 0. "
+          + "maxNumberOfMessages = " + maxNumberOfMessages);
+  }
+
+  private static void putBytes(ByteBuffer b, byte[] bytes) {
+    b.putInt(bytes.length);
+    b.put(bytes);
+  }
+
+  private static byte[] bytes(ByteBuffer b, int offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer d = b.duplicate();
+    d.position(offset);
+    d.get(bytes);
+    return bytes;
+  }
+
+  /** The CRC of a record that is being written (its end is the position of the buffer). */
+  private static int crc(ByteBuffer b, int start) {
+    return crc(b, start, b.position() - start - HEADER);
+  }
+
+  /** The CRC of a record: everything after the sent counter. */
+  private static int crc(ByteBuffer b, int start, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes(b, start + TIMESTAMP, length - 4));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * A memory-mapped segment file.
+   */
+  private static class Segment {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    final MappedByteBuffer buffer;
+    /** The offset after the last record. Negative (-offset - 1) if it is followed by garbage. */
+    int end;
+
+    Segment(File f, int size) throws IOException {
+      file = new RandomAccessFile(f, "rw");
+      channel = file.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /** Removes the invalid data at the end of the segment. */
+    void truncate() {
+      end = -end - 1;
+      for (int i = end; i < buffer.capacity(); i++)
+        buffer.put(i, (byte) 0);
+    }
+
+    void close() throws IOException {
+      buffer.force();
+      channel.close();
+      file.close();
+    }
+  }
+
+  /**
+   * A growing list of database IDs.
+   */
+  private static class IdList {
+    int[] ids = new int[16];
+    int size = 0;
+
+    void add(int id) {
+      if (size == ids.length)
+        ids = Arrays.copyOf(ids, size * 2);
+      ids[size++] = id;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import main.Core;
+import exceptions.FormatException;
+import exchange.InternalMessage;
+
+/**
+ * Iterates backwards over the history of a conversation.<br>
+ * The messages are read page by page with a keyset query on (timestamp, id), so only one page of
+ * rows (and one read-only connection) is held open at a time and jumping to an older page does
+ * not get slower with the size of the history. The rows of a page are read lazily from the
+ * <code>ResultSet</code>.<br>
+ * A cursor has to be closed after use.
+ *
+ * @see Database#getHistoryCursor(coversations.Conversation, int)
+ */
+public class MessageCursor implements Iterator<InternalMessage>, AutoCloseable {
+  /** The database the pages are read from. */
+  private final Database db;
+  /** The UUID of the conversation. */
+  private final String convUuid;
+  /** The number of rows that are fetched per query. */
+  private final int pageSize;
+
+  /** Timestamp of the last returned message. */
+  private long timestamp;
+  /** Database ID of the last returned message. */
+  private int id;
+
+  /** The connection of the current page. */
+  private ReaderPool.Reader reader;
+  /** The query of the current page. */
+  private PreparedStatement pstmt;
+  /** The rows of the current page. */
+  private ResultSet rs;
+  /** The number of rows that have been read from the current page. */
+  private int rowsInPage = 0;
+  /** The next message; <code>null</code> if it hasn't been read yet. */
+  private InternalMessage next;
+  /** Whether all messages have been read. */
+  private boolean exhausted = false;
+
+  MessageCursor(Database db, String convUuid, long beforeTimestamp, int beforeId, int pageSize) {
+    this.db = db;
+    this.convUuid = convUuid;
+    this.timestamp = beforeTimestamp;
+    this.id = beforeId;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next != null)
+      return true;
+    if (exhausted)
+      return false;
+    try {
+      if (rs == null || !rs.next()) {
+        // The last page wasn't full, so there can't be any older messages.
+        if (rs != null && rowsInPage < pageSize) {
+          close();
+          exhausted = true;
+          return false;
+        }
+        closePage();
+        reader = db.acquireReader();
+        pstmt = Database.prepareHistoryPage(reader.conn, convUuid, timestamp, id, pageSize);
+        rs = pstmt.executeQuery();
+        rowsInPage = 0;
+        if (!rs.next()) {
+          close();
+          exhausted = true;
+          return false;
+        }
+      }
+      rowsInPage++;
+      next = Database.readHistoryRow(rs);
+      return true;
+    } catch (SQLException | FormatException e) {
+      close();
+      exhausted = true;
+      throw new IllegalStateException("Reading the history of " + convUuid + " failed: "
+          + e.getMessage());
+    }
+  }
+
+  @Override
+  public InternalMessage next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    InternalMessage m = next;
+    next = null;
+    timestamp = m.getTimeStamp().getTimeInMillis();
+    id = m.getDatabaseId();
+    return m;
+  }
+
+  /**
+   * @return the timestamp of the last returned message. Can be used to continue the cursor later.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the database ID of the last returned message. Can be used to continue the cursor
+   *         later.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Closes the current page. The cursor cannot be used afterwards.
+   */
+  @Override
+  public void close() {
+    closePage();
+    exhausted = true;
+    next = null;
+  }
+
+  private void closePage() {
+    try {
+      if (pstmt != null)
+        pstmt.close(); // closes rs as well
+    } catch (SQLException e) {
+      Core.instance.printError("[Database] Couldn't close history page.", e, false);
+    }
+    pstmt = null;
+    rs = null;
+    if (reader != null)
+      reader.close();
+    reader = null;
+  }
+}
@@ -0,0 +1,104 @@
+package database;
+
+import java.util.List;
+
+import coversations.Conversation;
+import exceptions.DBException;
+import exchange.InternalMessage;
+import exchange.Message;
+
+/**
+ * Stores the history of the Messages.<br>
+ * {@link Database} stores the Messages in SQLite together with the contacts and Conversations;
+ * {@link LogMessageStore} appends them to a log, which is cheaper for nodes that mostly store
+ * incoming Messages. Which one is used is chosen in the settings.<br>
+ * The user's outgoing Messages are always stored in the {@link Database} as well, because the
+ * outbox refers to them. If another store is used, they are also added to it (see
+ * {@link manager.Outbox}), so its history is complete; the search index and the counters of the
+ * database are refused then (see {@link Database#setExternalHistory(boolean)}).
+ */
+public interface MessageStore extends AutoCloseable {
+
+  /**
+   * Stores a Message and sets its database ID.
+   *
+   * @param m The Message.
+   * @throws DBException if the Message couldn't be stored.
+   */
+  public void addMessage(InternalMessage m) throws DBException;
+
+  /**
+   * Stores several Messages and sets their database IDs. A store that supports it stores them
+   * together (which is faster) and either all or none of them.
+   *
+   * @param messages The Messages.
+   * @throws DBException if the Messages couldn't be stored.
+   */
+  public default void addMessages(List<InternalMessage> messages) throws DBException {
+    for (InternalMessage m : messages)
+      addMessage(m);
+  }
+
+  /**
+   * Increments the number of times a Message has been sent.
+   *
+   * @param id The database ID of the Message.
+   * @throws DBException if the Message couldn't be updated.
+   * @throws IllegalArgumentException if <code>id</code> < 0
+   */
+  public void incrementSent(int id) throws DBException;
+
+  /**
+   * Gets the newest Messages of all Conversations.
+   *
+   * @param maxNumberOfMessages The maximum number of Messages.
+   * @param onlyUnsent Only return Messages that haven't been sent yet.
+   * @return the Messages (newest first).
+   * @throws DBException if the Messages couldn't be read.
+   * @throws IllegalArgumentException if <code>maxNumberOfMessages</code> <= 0
+   */
+  public List<Message> getLastNMessages(int maxNumberOfMessages, boolean onlyUnsent)
+      throws DBException;
+
+  /**
+   * Gets the newest Messages of a Conversation that were created in a time span.
+   *
+   * @param conv The Conversation.
+   * @param fromTime The start of the time span (in milliseconds, inclusive).
+   * @param toTime The end of the time span (in milliseconds, exclusive).
+   * @param maxNumberOfMessages The maximum number of Messages.
+   * @param onlyUnsent Only return Messages that haven't been sent yet.
+   * @return the Messages (newest first).
+   * @throws DBException if the Messages couldn't be read.
+   * @throws IllegalArgumentException if the time span is invalid or
+   *         <code>maxNumberOfMessages</code> <= 0
+   */
+  public List<Message> getLastNMessages(Conversation conv, long fromTime, long toTime,
+      int maxNumberOfMessages, boolean onlyUnsent) throws DBException;
+
+  /**
+   * Gets a page of the history of a Conversation: the newest Messages that come before the given
+   * position. The position of a Message is its (timestamp, database ID) pair; the next page is
+   * read with the position of the last Message of a page.
+   *
+   * @param conv The Conversation.
+   * @param beforeTimestamp The timestamp of the position ({@link Long#MAX_VALUE} for the newest
+   *        Messages).
+   * @param beforeId The database ID of the position ({@link Integer#MAX_VALUE} for the newest
+   *        Messages).
+   * @param pageSize The maximum number of Messages.
+   * @return the Messages (newest first). Empty if there are no older Messages.
+   * @throws DBException if the Messages couldn't be read.
+   * @throws IllegalArgumentException if <code>pageSize</code> <= 0
+   */
+  public List<InternalMessage> getHistoryPage(Conversation conv, long beforeTimestamp,
+      int beforeId, int pageSize) throws DBException;
+
+  /**
+   * Closes the store.
+   *
+   * @throws DBException if the store couldn't be closed.
+   */
+  @Override
+  public void close() throws DBException;
+}
@@ -0,0 +1,54 @@
+package database;
+
+import exchange.InternalMessage;
+
+/**
+ * A message that still has to be delivered to one recipient.<br>
+ * Entries are stored in the outbox table of the {@link Database} and removed once the recipient
+ * acknowledged the message.
+ */
+public class OutboxEntry {
+  /** The message to be delivered. */
+  private final InternalMessage message;
+  /** The UUID of the recipient. */
+  private final String recipientUuid;
+  /** The number of failed delivery attempts. */
+  private final int attempts;
+  /** The time (in milliseconds) of the next delivery attempt. */
+  private final long nextAttempt;
+
+  OutboxEntry(InternalMessage message, String recipientUuid, int attempts, long nextAttempt) {
+    this.message = message;
+    this.recipientUuid = recipientUuid;
+    this.attempts = attempts;
+    this.nextAttempt = nextAttempt;
+  }
+
+  /**
+   * @return the message to be delivered. Its database ID is set.
+   */
+  public InternalMessage getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the UUID of the recipient.
+   */
+  public String getRecipientUuid() {
+    return recipientUuid;
+  }
+
+  /**
+   * @return the number of failed delivery attempts.
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * @return the time (in milliseconds) of the next delivery attempt.
+   */
+  public long getNextAttempt() {
+    return nextAttempt;
+  }
+}
@@ -0,0 +1,123 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * A fixed number of read-only connections to the database.<br>
+ * The database is opened in WAL mode, so readers neither block the writer nor each other. A
+ * connection is borrowed with {@link #acquire()} and given back by closing the returned
+ * {@link Reader}:
+ *
+ * <pre>
+ * try (Reader reader = pool.acquire();
+ *     PreparedStatement pstmt = reader.conn.prepareStatement(sql);) {
+ *   ...
+ * }
+ * </pre>
+ */
+class ReaderPool implements AutoCloseable {
+  /** The time (in seconds) a caller waits for a free connection before giving up. */
+  private static final int ACQUIRE_TIMEOUT = 30;
+
+  /** All connections of the pool. */
+  private final List<Connection> all;
+  /** The connections that aren't borrowed. */
+  private final BlockingQueue<Connection> idle;
+
+  /**
+   * Opens the connections.
+   *
+   * @param dbPath the path of the database file.
+   * @param size the number of connections.
+   */
+  ReaderPool(String dbPath, int size) throws SQLException {
+    if (size <= 0)
+      throw new IllegalArgumentException("size must be greater than 0. size = " + size);
+    all = new ArrayList<Connection>(size);
+    idle = new ArrayBlockingQueue<Connection>(size);
+    SQLiteConfig config = new SQLiteConfig();
+    config.setReadOnly(true);
+    try {
+      for (int i = 0; i < size; i++) {
+        Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath, config.toProperties());
+        all.add(c);
+        try (Statement stmt = c.createStatement();) {
+          stmt.executeUpdate("PRAGMA busy_timeout = " + Database.BUSY_TIMEOUT + ";");
+        }
+        SearchRank.register(c);
+        idle.add(c);
+      }
+    } catch (SQLException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Borrows a connection. Blocks until one is free.
+   *
+   * @return the borrowed connection. Has to be closed after use.
+   * @throws SQLException if no connection became free in time.
+   */
+  Reader acquire() throws SQLException {
+    try {
+      Connection c = idle.poll(ACQUIRE_TIMEOUT, TimeUnit.SECONDS);
+      if (c == null)
+        throw new SQLException("No database connection became free in " + ACQUIRE_TIMEOUT
+            + " seconds.");
+      return new Reader(c);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection.");
+    }
+  }
+
+  /**
+   * Closes all connections.
+   */
+  @Override
+  public void close() throws SQLException {
+    SQLException first = null;
+    for (Connection c : all)
+      try {
+        c.close();
+      } catch (SQLException e) {
+        if (first == null)
+          first = e;
+      }
+    idle.clear();
+    if (first != null)
+      throw first;
+  }
+
+  /**
+   * A borrowed connection. Closing it gives the connection back to the pool.
+   */
+  class Reader implements AutoCloseable {
+    /** The connection. Must not be closed directly. */
+    final Connection conn;
+    private boolean released = false;
+
+    private Reader(Connection conn) {
+      this.conn = conn;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        idle.offer(conn);
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package database;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.sqlite.Function;
+
+/**
+ * SQL function that ranks the hits of a full-text search.<br>
+ * FTS4 has no built-in ranking, so the result of <code>matchinfo(table, 'pcx')</code> is
+ * evaluated here: for every searched word the number of its appearances in a message is divided
+ * by the number of its appearances in all messages. Rare words therefore weigh more than common
+ * ones.
+ *
+ * <pre>
+ * SELECT docid FROM messages_search WHERE messages_search MATCH ?
+ *   ORDER BY fts_rank(matchinfo(messages_search, 'pcx')) DESC;
+ * </pre>
+ */
+class SearchRank extends Function {
+  /** Name of the function in SQL. */
+  static final String NAME = "fts_rank";
+
+  /**
+   * Registers the function for a connection.
+   *
+   * @param conn the connection.
+   */
+  static void register(Connection conn) throws SQLException {
+    Function.create(conn, NAME, new SearchRank());
+  }
+
+  @Override
+  protected void xFunc() throws SQLException {
+    if (args() != 1)
+      throw new SQLException(NAME + "(matchinfo) takes exactly one argument.");
+    byte[] blob = value_blob(0);
+    if (blob == null || blob.length < 8) {
+      result(0.0);
+      return;
+    }
+    // matchinfo returns an array of unsigned 32 bit integers in the machine's byte order.
+    ByteBuffer info = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder());
+    int phrases = info.getInt(0);
+    int columns = info.getInt(4);
+    double score = 0;
+    for (int p = 0; p < phrases; p++)
+      for (int c = 0; c < columns; c++) {
+        int offset = 4 * (2 + 3 * (c + p * columns));
+        int hitsInRow = info.getInt(offset);
+        int hitsInAllRows = info.getInt(offset + 4);
+        if (hitsInRow > 0)
+          score += (double) hitsInRow / hitsInAllRows;
+      }
+    result(score);
+  }
+}
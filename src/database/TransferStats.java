@@ -0,0 +1,87 @@
+package database;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The numbers of an export or import of the history.
+ *
+ * @see Database#exportHistory(coversations.Conversation, java.io.OutputStream)
+ * @see Database#importHistory(java.io.InputStream)
+ */
+public class TransferStats {
+  /** The number of written or added contacts. */
+  long contacts;
+  /** The number of written or added conversations. */
+  long conversations;
+  /** The number of written or added messages. */
+  long messages;
+  /** The number of records that were already in the database (import only). */
+  long duplicates;
+  /** The number of messages whose conversation or sender is unknown (import only). */
+  long skipped;
+  /** The duration of the transfer in nanoseconds. */
+  long elapsedNanos;
+
+  TransferStats() {}
+
+  /**
+   * @return the number of written (export) or added (import) contacts.
+   */
+  public long getContacts() {
+    return contacts;
+  }
+
+  /**
+   * @return the number of written (export) or added (import) conversations.
+   */
+  public long getConversations() {
+    return conversations;
+  }
+
+  /**
+   * @return the number of written (export) or added (import) messages.
+   */
+  public long getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return the number of contacts, conversations and messages of an import that already were in
+   *         the database.
+   */
+  public long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return the number of messages of an import that were ignored because their conversation or
+   *         sender is unknown.
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the duration of the transfer in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+  }
+
+  /**
+   * @return the number of records (of all types) that were processed per second.
+   */
+  public double getRecordsPerSecond() {
+    if (elapsedNanos <= 0)
+      return 0;
+    long records = contacts + conversations + messages + duplicates + skipped;
+    return records * 1e9 / elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d contacts, %d conversations, %d messages, %d duplicates, %d skipped "
+        + "in %d ms (%.0f records/s)", contacts, conversations, messages, duplicates, skipped,
+        getElapsedMillis(), getRecordsPerSecond());
+  }
+}
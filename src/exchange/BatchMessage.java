@@ -0,0 +1,115 @@
+package exchange;
+
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import persons.Contact;
+import utils.Formats;
+import utils.HybridCoder;
+import exceptions.FormatException;
+
+/**
+ * Represents several Messages for the same recipient that are sent together.<br>
+ * A batch is encrypted once and sent as one {@link EncryptedMessage}, so a burst of Messages
+ * doesn't cost an encryption, a connection and an acknowledgement per Message. The receiver
+ * unpacks it into the single Messages (see {@link EncryptedMessage#toInternalMessages()}).<br>
+ * The Messages are stored with their lengths, so their content isn't restricted.
+ */
+public class BatchMessage implements Message {
+
+  /** The beginning of a formatted batch. A formatted InternalMessage never starts with it. */
+  public static final String PREFIX = "batch" + Formats.DELIMITER_CHAR;
+
+  /** The Messages of this batch in the order they were added. */
+  private List<InternalMessage> messages;
+
+  public BatchMessage(List<InternalMessage> messages) {
+    if (messages.isEmpty())
+      throw new IllegalArgumentException("A batch needs at least one Message.");
+    this.messages = new ArrayList<InternalMessage>(messages);
+  }
+
+  public BatchMessage(String formattedMsgString) throws FormatException {
+    setFormatted(formattedMsgString);
+  }
+
+  /**
+   * @return the Messages of this batch in the order they were added.
+   */
+  public List<InternalMessage> getMessages() {
+    return Collections.unmodifiableList(messages);
+  }
+
+  /**
+   * @param formattedMsgString A decrypted formatted Message String.
+   * @return whether the String is a formatted batch.
+   */
+  public static boolean isBatch(String formattedMsgString) {
+    return formattedMsgString.startsWith(PREFIX);
+  }
+
+  @Override
+  public EncryptedMessage toEncryptedMessge(Contact forContact) throws InvalidKeyException {
+    return HybridCoder.encodeMessage(this, forContact);
+  }
+
+  /**
+   * @return the first Message of this batch. Use {@link #getMessages()} to get all of them.
+   */
+  @Override
+  public InternalMessage toInternalMessage() {
+    return messages.get(0);
+  }
+
+  @Override
+  public CommandMessage toCommandMessage() throws FormatException {
+    return null;
+  }
+
+  /**
+   * @return the formatted representation of this batch. <br>
+   *
+   *         <pre>
+   *            "batch" + (delimiter) + (length in hex + (delimiter) + formatted Message)...
+   *         </pre>
+   */
+  @Override
+  public String getFormatted() {
+    StringBuilder sb = new StringBuilder(PREFIX);
+    for (InternalMessage m : messages) {
+      String formatted = m.getFormatted();
+      sb.append(Integer.toHexString(formatted.length())).append(Formats.DELIMITER_CHAR)
+          .append(formatted);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void setFormatted(String formattedMsgString) throws FormatException {
+    if (!isBatch(formattedMsgString))
+      throw new FormatException("Illegal BatchMessage format.");
+    List<InternalMessage> parsed = new ArrayList<InternalMessage>();
+    int i = PREFIX.length();
+    while (i < formattedMsgString.length()) {
+      int end = formattedMsgString.indexOf(Formats.DELIMITER_CHAR, i);
+      if (end < 0)
+        throw new FormatException("Illegal BatchMessage format: missing length.");
+      int length;
+      try {
+        length = Integer.parseInt(formattedMsgString.substring(i, end), 16);
+      } catch (NumberFormatException e) {
+        throw new FormatException("Illegal BatchMessage format: invalid length.");
+      }
+      i = end + 1;
+      if (length <= 0 || length > formattedMsgString.length() - i)
+        throw new FormatException("Illegal BatchMessage format: invalid length.");
+      parsed.add(new InternalMessage(formattedMsgString.substring(i, i + length)));
+      i += length;
+    }
+    if (parsed.isEmpty())
+      throw new FormatException("Illegal BatchMessage format: no Messages.");
+    messages = parsed;
+  }
+}
@@ -1,6 +1,7 @@
 package exchange;
 
 import java.security.InvalidKeyException;
+import java.util.List;
 import java.util.regex.Matcher;
 
 import persons.Contact;
@@ -57,6 +58,15 @@ public class EncryptedMessage implements Message {
     return HybridCoder.decodeMessage(this);
   }
 
+  /**
+   * Decrypts this Message; a {@link BatchMessage} is unpacked.
+   * 
+   * @return the Messages in the order they were sent.
+   */
+  public List<InternalMessage> toInternalMessages() throws InvalidKeyException, FormatException {
+    return HybridCoder.decodeMessages(this);
+  }
+
   /**
    * @return the formatted representation of this Encrypted Message. <br>
    * 
@@ -18,7 +18,10 @@ import exceptions.FormatException;
  * of a <code>GregorianCalendar</code>) and a <code>command</code>-flag. If <code>command</code> is
  * set, the Message will be interpreted as a Command. Even if the <code>command</code> is set the
  * Message has to start with a ' <code>/</code>'.<br>
- * The <code>getEncryptedMessage</code> can be used to easily encrypt a given Message.
+ * The <code>getEncryptedMessage</code> can be used to easily encrypt a given Message.<br>
+ * The sender numbers its Messages per Conversation (starting at 1), so the receiver can deliver
+ * them in order and notice missing ones. Messages of older versions have no sequence number
+ * (<code>0</code>).
  * 
  * @see EncryptedMessage
  * @see Message
@@ -46,6 +49,11 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
    * ID in database for easier identifying. (Will not be saved in the formatted Message String.)
    */
   private int dbId = -1;
+  /**
+   * The sequence number of the Message among the Messages of its sender in its Conversation.<br>
+   * <code>0</code> if no number is assigned.
+   */
+  private long sequence = 0;
 
   
   /**
@@ -171,7 +179,7 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
   /**
    * @return the formated representation as a {@code String}.<br>
    *         Format:<br>
-   *         {@code (Delimiter)+time stamp+(Delimiter)+CoversationUUID+(Delimiter)+SenderUUID+(delimiter)+command+(Delimiter)+content}
+   *         {@code (Delimiter)+time stamp+(Delimiter)+CoversationUUID+(Delimiter)+SenderUUID+(delimiter)+command+[(Delimiter)+sequence number]+(Delimiter)+content}
    */
   public String getFormatted() {
 
@@ -179,7 +187,8 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
         + Formats.DELIMITER_CHAR
         + String.join(Character.toString(Formats.DELIMITER_CHAR),
             Long.toHexString(timeStamp.getTimeInMillis() / 1000), uuidConversation, uuidSender,
-            command ? "1" : "0", content));
+            sequence > 0 ? (command ? "1" : "0") + Formats.DELIMITER_CHAR
+                + Long.toHexString(sequence) : (command ? "1" : "0"), content));
 
   }
 
@@ -232,6 +241,14 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
     return content;
   }
 
+  /**
+   * @return the sequence number of this Message.<br>
+   *         <code>0</code> if no number is assigned.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
   /**
    * @return the database ID of this Message.<br>
    *         <code>-1</code> if no ID is set.
@@ -329,8 +346,9 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
       uuidConversation = m.group(2);
       uuidSender = m.group(3);
       command = m.group(4).charAt(0) == '1';
+      sequence = m.group(5) == null ? 0 : Long.parseUnsignedLong(m.group(5), 16);
 
-      content = m.group(5);
+      content = m.group(6);
     }
 
   }
@@ -361,6 +379,19 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
     dbId = id > -1 ? id : -1;
   }
 
+  /**
+   * Sets the sequence number. <br>
+   * <code>0</code> indicates that this Message has no sequence number.
+   * 
+   * @param sequence the sequence number to be set.
+   * @throws IllegalArgumentException if <code>sequence</code> < 0
+   */
+  public void setSequence(long sequence) {
+    if (sequence < 0)
+      throw new IllegalArgumentException("The sequence number must not be negative.");
+    this.sequence = sequence;
+  }
+
   /**
    * Set the UUID of the Message's sender.
    * 
@@ -372,9 +403,12 @@ public class InternalMessage implements Message, Comparable<InternalMessage> {
 
   @Override
   public int compareTo(InternalMessage anotherInternalMessage) {
-    if (timeStamp.equals(anotherInternalMessage.timeStamp))
-      return uuidSender.compareTo(anotherInternalMessage.uuidSender);
-    else
+    if (timeStamp.equals(anotherInternalMessage.timeStamp)) {
+      // The time stamp only has a resolution of seconds; the sequence number orders the Messages
+      // a sender sent in the same second.
+      int c = uuidSender.compareTo(anotherInternalMessage.uuidSender);
+      return c != 0 ? c : Long.compare(sequence, anotherInternalMessage.sequence);
+    } else
       return timeStamp.compareTo(anotherInternalMessage.timeStamp);
   }
 
@@ -0,0 +1,51 @@
+package exchange.commands;
+
+import main.Core;
+import manager.PendingCommands;
+import userInterface.UserInterface;
+
+/**
+ * Accepts a command of another participant that waits for the user's confirmation (see
+ * {@link PendingCommands}). Without an argument the waiting commands are listed.
+ */
+public class AcceptCommand extends Command {
+
+  public AcceptCommand() {
+    super("accept", "Usage: '/accept [<id>]'", "Executes a command of another participant.",
+        "Executes the command of another participant with the given number. Without a number"
+            + " the commands that wait for an answer are listed.", new String[] {"allow"});
+  }
+
+  @Override
+  public boolean perform(String[] args) {
+    return answer(this, args, true);
+  }
+
+  /**
+   * Accepts or denies a waiting command or lists them.
+   */
+  static boolean answer(Command cmd, String[] args, boolean accept) {
+    UserInterface ui = Core.getInstance().getUserInterface();
+    PendingCommands pending = Core.getInstance().getMessageManager().getPendingCommands();
+    if (args.length == 0) {
+      if (pending.getPending().isEmpty())
+        ui.printSystemMessage("No commands are waiting.");
+      for (PendingCommands.PendingCommand c : pending.getPending())
+        ui.printSystemMessage("#" + c.getId() + ": " + c.getSenderNickname() + ": \""
+            + c.getMessage().getContent() + "\"");
+      return true;
+    }
+    int id;
+    try {
+      id = Integer.parseInt(args[0].startsWith("#") ? args[0].substring(1) : args[0]);
+    } catch (NumberFormatException e) {
+      ui.printError(cmd.getUsage());
+      return false;
+    }
+    if (!(accept ? pending.accept(id) : pending.deny(id))) {
+      ui.printError("No command #" + id + " is waiting.");
+      return false;
+    }
+    return true;
+  }
+}
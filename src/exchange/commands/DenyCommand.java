@@ -0,0 +1,21 @@
+package exchange.commands;
+
+import manager.PendingCommands;
+
+/**
+ * Denies a command of another participant that waits for the user's confirmation (see
+ * {@link PendingCommands}). Without an argument the waiting commands are listed.
+ */
+public class DenyCommand extends Command {
+
+  public DenyCommand() {
+    super("deny", "Usage: '/deny [<id>]'", "Denies a command of another participant.",
+        "Denies the command of another participant with the given number. Without a number"
+            + " the commands that wait for an answer are listed.", new String[] {"reject"});
+  }
+
+  @Override
+  public boolean perform(String[] args) {
+    return AcceptCommand.answer(this, args, false);
+  }
+}
@@ -0,0 +1,91 @@
+package exchange.commands;
+
+import java.util.Arrays;
+import java.util.List;
+
+import main.Core;
+import coversations.Conversation;
+import userInterface.UserInterface;
+import exceptions.DBException;
+import exchange.InternalMessage;
+import exchange.Message;
+
+/**
+ * Searches the messages of the active Conversation and prints the hits (best hit first).<br>
+ * With <code>-all</code> all Conversations will be searched. The results are shown in pages; the
+ * page can be chosen with <code>-page &lt;n&gt;</code>. Without an active Conversation only
+ * <code>-all</code> is possible.<br>
+ * The search index only exists if the messages are stored in the database, not in the message
+ * log.
+ */
+public class SearchCommand extends Command {
+
+  /** The number of hits per page. */
+  public static final int PAGE_SIZE = 20;
+
+  public SearchCommand() {
+    super("search", "Usage: '/search [-all] [-page <n>] <words>'",
+        "Searches the message history.",
+        "Searches the messages of the active Conversation for the given words. A word ending with"
+            + " '*' matches every word starting with it. Use '-all' to search all Conversations"
+            + " and '-page <n>' to show further results.", new String[] {"find"});
+  }
+
+  @Override
+  public boolean perform(String[] args) {
+    UserInterface ui = Core.getInstance().getUserInterface();
+    if (Core.getInstance().getDatabase().hasExternalHistory()) {
+      ui.printError("The search isn't available while the messages are stored in the message log.");
+      return false;
+    }
+    boolean all = false;
+    int page = 1;
+    int i = 0;
+
+    for (; i < args.length; i++)
+      if (args[i].equalsIgnoreCase("-all"))
+        all = true;
+      else if (args[i].equalsIgnoreCase("-page") && i + 1 < args.length)
+        try {
+          page = Math.max(1, Integer.parseInt(args[++i]));
+        } catch (NumberFormatException e) {
+          ui.printError(getUsage());
+          return false;
+        }
+      else
+        break;
+
+    if (i >= args.length) {
+      ui.printError(getUsage());
+      return false;
+    }
+    String query = String.join(" ", Arrays.copyOfRange(args, i, args.length));
+    Conversation conv = null;
+    if (!all) {
+      conv = Core.getInstance().getConversationManager().getActiveConversation();
+      if (conv == null) {
+        ui.printError("There is no active Conversation. Use '-all' to search all Conversations.");
+        return false;
+      }
+    }
+
+    try {
+      List<Message> hits =
+          Core.getInstance().getDatabase().searchMessages(query, conv, null,
+              (page - 1) * PAGE_SIZE, PAGE_SIZE);
+      if (hits.isEmpty()) {
+        ui.printSystemMessage("No messages found.");
+        return true;
+      }
+      ui.printSystemMessage("Search results (page " + page + "):");
+      for (Message m : hits) {
+        InternalMessage im = (InternalMessage) m;
+        ui.printRawMessage(String.format("[%tF %<tR] %s", im.getTimeStamp(), im.getContent()));
+      }
+      return true;
+    } catch (DBException | IllegalArgumentException e) {
+      ui.printError("Searching failed.", e);
+      return false;
+    }
+  }
+}
@@ -1,10 +1,18 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
 
+import manager.ContactList;
 import manager.ConversationManager;
+import manager.DuplicateFilter;
 import manager.MessageManager;
+import manager.Outbox;
+import manager.ReorderBuffer;
+import manager.RetentionManager;
+import manager.SyncManager;
 import misc.Settings;
+import persons.Contact;
 import persons.User;
 import userInterface.GraphicalUserIterface;
 import userInterface.TerminalUserInterface;
@@ -12,6 +20,8 @@ import userInterface.UserInterface;
 import connection.Client;
 import connection.Server;
 import database.Database;
+import database.LogMessageStore;
+import database.MessageStore;
 import exceptions.DBException;
 
 /**
@@ -32,6 +42,16 @@ public class Core {
   private MessageManager messageManager;
   /** The <code>ConversationManager</code> of the program. */
   private ConversationManager cm;
+  /** The outbox that delivers the outgoing Messages. */
+  private Outbox outbox;
+  /** Moves old Messages to the archive of the database. */
+  private RetentionManager retention;
+  /** Drops incoming Messages that have already been received. */
+  private DuplicateFilter duplicateFilter;
+  /** Delivers the incoming Messages in order. */
+  private ReorderBuffer reorderBuffer;
+  /** Synchronizes the history with the other participants. */
+  private SyncManager syncManager;
 
   /** The internal client. */
   private Client client;
@@ -41,6 +61,10 @@ public class Core {
   private User user;
   /** The database of the program. */
   private Database db;
+  /** The store of the message history. */
+  private MessageStore messageStore;
+  /** The Contacts of the user. */
+  private ContactList contacts;
 
   /**
    * Constructs a new {@code Core} object.
@@ -85,25 +109,58 @@ public class Core {
       return;
 
     if (db == null)
-      db = new Database(settings.getDbLocation());
+      db = new Database(false, settings.getDbLocation(), settings.getDbReaders());
+    db.setCompressionThreshold(settings.getCompressionThreshold());
+    db.setUserUuid(user.getUuid());
+    if ("log".equals(settings.getMessageStore()))
+      messageStore =
+          new LogMessageStore(new File(settings.getMessageLogLocation()),
+              settings.getMessageLogSegmentSize() * 1024 * 1024);
+    else
+      messageStore = db;
+    db.setExternalHistory(messageStore != db);
+
+    // The user has to be a contact, so the own Messages can be stored.
+    try {
+      db.getContact(user.getUuid());
+    } catch (DBException e) {
+      db.addContact(new Contact(user.getNickname(), user.getUuid(), user.getPublicKey(),
+          "localhost", settings.getPort()));
+    }
+    contacts = new ContactList();
 
     ui =
         (this.settings.getGuiMode()) ? new GraphicalUserIterface(this) : new TerminalUserInterface(
             this);
 
+    duplicateFilter = new DuplicateFilter();
+    cm = new ConversationManager(settings.getConversationCacheSize());
     messageManager = new MessageManager(cm);
+    reorderBuffer =
+        new ReorderBuffer(messageManager::deliverIncomingMessage,
+            messageManager::requestRetransmit);
+    reorderBuffer.start();
+    messageManager.start();
 
     client = new Client();
 
+    outbox = new Outbox();
+    outbox.start();
+
+    syncManager = new SyncManager();
+    syncManager.start();
+
+    retention = new RetentionManager();
+    retention.start();
+
     Thread serverThread = null;
     try {
-      Server testServer = null;
       try {
         server = new Server();
       } catch (Exception e) {
         ui.printError("Internal Server couldn't be started.", null, true);
       }
-      serverThread = new Thread(testServer);
+      serverThread = new Thread(server, "Server");
       serverThread.start();
     } catch (Throwable t) {
       ui.printError(null, t, true);
@@ -151,6 +208,34 @@ public class Core {
     return cm;
   }
 
+  /**
+   * Gets the {@link Outbox} of the program.
+   */
+  public Outbox getOutbox() {
+    return outbox;
+  }
+
+  /**
+   * Gets the {@link DuplicateFilter} of the incoming Messages.
+   */
+  public DuplicateFilter getDuplicateFilter() {
+    return duplicateFilter;
+  }
+
+  /**
+   * Gets the {@link ReorderBuffer} of the incoming Messages.
+   */
+  public ReorderBuffer getReorderBuffer() {
+    return reorderBuffer;
+  }
+
+  /**
+   * Gets the {@link SyncManager} of the history.
+   */
+  public SyncManager getSyncManager() {
+    return syncManager;
+  }
+
   /**
    * Gets the internal {@code Client}.
    */
@@ -179,6 +264,20 @@ public class Core {
     return db;
   }
 
+  /**
+   * Get the Contacts of the user.
+   */
+  public ContactList getContactList() {
+    return contacts;
+  }
+
+  /**
+   * Get the store of the message history. Either the database or the message log.
+   */
+  public MessageStore getMessageStore() {
+    return messageStore;
+  }
+
   /**
    * Prints a message and a StackTrace the screen, optional labelled as fatal error.<br>
    * If no {@code UserInterface} is available the {@code System.err}- {@code PrintStream} will be
@@ -222,6 +321,26 @@ public class Core {
    * @param status the exit status.
    */
   public void shutdown(int status) {
+    if (messageManager != null)
+      messageManager.close();
+    if (syncManager != null)
+      syncManager.close();
+    if (outbox != null)
+      outbox.close();
+    if (retention != null)
+      retention.close();
+    if (reorderBuffer != null)
+      reorderBuffer.close();
+    if (duplicateFilter != null)
+      duplicateFilter.close();
+
+    try {
+      if (messageStore != null && messageStore != db)
+        messageStore.close();
+    } catch (DBException e1) {
+      printError("Couldn't close the message log.", e1, false);
+    }
+
     try {
       if (db != null)
         db.close();
@@ -1,22 +1,51 @@
 package manager;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import userInterface.UserInterface;
-import utils.Formats;
 import main.Core;
 import exchange.InternalMessage;
+import exchange.commands.AcceptCommand;
 import exchange.commands.Command;
+import exchange.commands.DenyCommand;
 import exchange.commands.ExitCommand;
+import exchange.commands.SearchCommand;
 import exchange.commands.SlashEscapeCommand;
 
-public class CommandManager {
-
-  private List<Command> cmds = new ArrayList<Command>();
+/**
+ * Finds and performs the Commands.<br>
+ * The names and aliases of the Commands are looked up in a hash table, so finding a Command
+ * doesn't depend on the number of Commands. A sorted index of them completes the beginning of a
+ * label (see {@link #complete(String)}). Commands can be performed by a separate thread (see
+ * {@link #submitMessageCommand(InternalMessage)}), so a long running Command doesn't block the
+ * caller.
+ */
+public class CommandManager implements AutoCloseable {
+
+  /** The number of threads that perform the submitted Commands. */
+  static final int THREADS = 2;
+  /** The maximum number of suggestions for an unknown Command. */
+  static final int MAX_SUGGESTIONS = 5;
+
+  /** The Commands by their names and aliases. */
+  private final Map<String, Command> labels = new HashMap<String, Command>();
+  /** The names and aliases in alphabetical order (for the completion). */
+  private final TreeMap<String, Command> sortedLabels = new TreeMap<String, Command>();
+
+  /** Performs the submitted Commands; created on first use. */
+  private ExecutorService executor;
 
   public CommandManager() {}
-  
+
   public CommandManager(List<Command> commands) {
     for (Command c : commands)
       registerCommand(c);
@@ -26,83 +55,161 @@ public class CommandManager {
    * Converts an given Message to a Command and tries to perform it.<br>
    * If the given Command does not exists <code>"Unknown Command."</code> will be printed to the
    * user.
-   * 
+   *
    * @param m the Message that will be performed.
    */
   public boolean runMessageCommand(InternalMessage m) {
     UserInterface ui = Core.instance.getUserInterface();
-    
+
     if (!m.isCommand()) {
       ui.printError("Message isn't a Command!");
       return false;
     }
 
-    String[] commandContent = Formats.escapeRegex((m.getContent())).split(" ");
-    for (int i = 0; i < commandContent.length; i++)
-      commandContent[i] = Formats.unescapeRegex(commandContent[i]);
-
-    String label = commandContent[0];
-
-    Command target = null;
+    List<String> tokens = tokenize(m.getContent());
+    if (tokens.isEmpty()) {
+      ui.printError("Unknown Command.");
+      return false;
+    }
+    // The label is the first word without its leading '/'.
+    String label = tokens.get(0);
+    if (label.startsWith("/"))
+      label = label.substring(1);
 
-    for (Command cmd : cmds)
-      if (cmd.getName().equalsIgnoreCase(label))
-        target = cmd;
-      else
-        for (String alias : cmd.getAliases())
-          if (alias.equals(target))
-            target = cmd;
-      
+    Command target = getCommand(label);
 
     if (target == null) {
-      ui.printError("Unknown Command.");
+      List<String> suggestions = complete(label);
+      if (suggestions.isEmpty() || label.isEmpty())
+        ui.printError("Unknown Command.");
+      else
+        ui.printError("Unknown Command. Did you mean: /"
+            + String.join(", /", suggestions.subList(0,
+                Math.min(MAX_SUGGESTIONS, suggestions.size()))) + "?");
       return false;
     }
-      
-    else {
-      String[] args = new String[commandContent.length - 1];
-
-      for (int i = 1; i < commandContent.length; i++)
-        args[i - 1] = commandContent[i];
 
+    else {
+      String[] args = tokens.subList(1, tokens.size()).toArray(new String[tokens.size() - 1]);
       return target.perform(args);
     }
   }
 
+  /**
+   * Performs a Command by a separate thread (see {@link #runMessageCommand(InternalMessage)}).
+   *
+   * @param m the Message that will be performed.
+   * @return the result of the Command.
+   */
+  public Future<Boolean> submitMessageCommand(InternalMessage m) {
+    ExecutorService e;
+    synchronized (this) {
+      if (executor == null) {
+        AtomicInteger n = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+          Thread t = new Thread(r, "Commands-" + n.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      e = executor;
+    }
+    return e.submit(() -> runMessageCommand(m));
+  }
+
+  /**
+   * Gets a Command by its name or one of its aliases (ignoring the case).
+   *
+   * @param label The name or alias (without the leading '/').
+   * @return the Command or <code>null</code> if there is none.
+   */
+  public synchronized Command getCommand(String label) {
+    return labels.get(label.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Completes the beginning of a Command's name or alias.
+   *
+   * @param prefix The beginning (without the leading '/').
+   * @return the names and aliases that start with it, in alphabetical order.
+   */
+  public synchronized List<String> complete(String prefix) {
+    String p = prefix.toLowerCase(Locale.ROOT);
+    // All labels that start with p lie between p and p followed by the largest character.
+    return new ArrayList<String>(sortedLabels.subMap(p, true, p + Character.MAX_VALUE, true)
+        .keySet());
+  }
+
   /**
    * Adds a Command to the existing ones.<br>
    * The name and aliases of the Command have to be unique.
-   * 
+   *
    * @param c The Command to be added.
    */
-  public void registerCommand(Command c) {
+  public synchronized void registerCommand(Command c) {
+
+    // The labels are looked up ignoring the case.
+    List<String> own = new ArrayList<String>(c.getAliases().length + 1);
+    own.add(c.getName().toLowerCase(Locale.ROOT));
+    for (String alias : c.getAliases())
+      own.add(alias.toLowerCase(Locale.ROOT));
 
-    for (Command cmd : cmds)
-      if (cmd.getName().equalsIgnoreCase(c.getName())) {
+    for (String label : own) {
+      Command cmd = labels.get(label);
+      if (cmd != null) {
         Core.instance
             .getUserInterface()
             .printError(
-                "Cannot add Command '" + c.getName() + "' (name conflict with '"
-                    + cmd.getClass().getSimpleName() + "').");
+                "Cannot add Command '" + c.getName() + "' ("
+                    + (label.equalsIgnoreCase(c.getName())
+                        && label.equalsIgnoreCase(cmd.getName()) ? "name"
+                        : "alias name") + " conflict with '" + cmd.getClass().getSimpleName()
+                    + "').");
         return;
-      } else
-        for (String alias : cmd.getAliases())
-          for (String alias2 : c.getAliases())
-            if (alias.equals(alias2)) {
-              Core.instance
-                  .getUserInterface()
-                  .printError(
-                      "Cannot add Command '" + c.getName() + "' (alias name conflict with '"
-                          + cmd.getClass().getSimpleName() + "').");
-              return;
-            }
-
-    cmds.add(c);
+      }
+    }
+
+    for (String label : own) {
+      labels.put(label, c);
+      sortedLabels.put(label, c);
+    }
   }
-  
+
   public void registerDefaults() {
     registerCommand(new SlashEscapeCommand());
     registerCommand(new ExitCommand());
+    registerCommand(new SearchCommand());
+    registerCommand(new AcceptCommand());
+    registerCommand(new DenyCommand());
+  }
+
+  /**
+   * Stops the threads that perform the submitted Commands (after the running ones).
+   */
+  @Override
+  public synchronized void close() {
+    if (executor != null)
+      executor.shutdown();
+  }
+
+  /**
+   * Splits the content of a Command into its words in one pass. Runs of spaces count as one.
+   */
+  static List<String> tokenize(String content) {
+    List<String> tokens = new ArrayList<String>();
+    int start = -1;
+    for (int i = 0, n = content.length(); i < n; i++)
+      if (content.charAt(i) == ' ') {
+        if (start >= 0) {
+          tokens.add(content.substring(start, i));
+          start = -1;
+        }
+      } else if (start < 0) {
+        start = i;
+      }
+    if (start >= 0)
+      tokens.add(content.substring(start));
+    return tokens;
   }
 
 }
@@ -1,33 +1,173 @@
 package manager;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import exceptions.DBException;
 import persons.Contact;
 import main.Core;
 
+/**
+ * The Contacts of the user, kept in memory in front of the {@link database.Database}.<br>
+ * The Contacts are indexed by their UUID, their address and their nickname (case insensitive),
+ * so a lookup doesn't depend on the number of Contacts. Reads don't lock; changes are written to
+ * the database first and then to the indexes. A Contact that isn't in the list yet is read from
+ * the database on its first lookup.<br>
+ * <b>Note:</b> The Contacts of the list must only be changed by
+ * {@link #editContact(String, Contact)}, otherwise the indexes of the address and the nickname
+ * get out of date.
+ */
 public class ContactList {
-  private List<Contact> contacts = new ArrayList<Contact>();
-  
+
+  /** The indexes of the Contacts. Replaced as a whole by {@link #loadFromDatabase()}. */
+  private static class Index {
+    final Map<String, Contact> byUuid = new ConcurrentHashMap<String, Contact>();
+    final Map<String, Set<Contact>> byAddress = new ConcurrentHashMap<String, Set<Contact>>();
+    final Map<String, Set<Contact>> byNickname = new ConcurrentHashMap<String, Set<Contact>>();
+
+    void add(Contact c) {
+      Contact old = byUuid.put(c.getUuid(), c);
+      if (old != null)
+        remove(old);
+      byAddress.computeIfAbsent(addressKey(c.getHost(), c.getPort()),
+          k -> ConcurrentHashMap.newKeySet()).add(c);
+      byNickname.computeIfAbsent(nicknameKey(c.getNickname()),
+          k -> ConcurrentHashMap.newKeySet()).add(c);
+    }
+
+    private void remove(Contact c) {
+      removeFrom(byAddress, addressKey(c.getHost(), c.getPort()), c);
+      removeFrom(byNickname, nicknameKey(c.getNickname()), c);
+    }
+
+    private static void removeFrom(Map<String, Set<Contact>> index, String key, Contact c) {
+      index.computeIfPresent(key, (k, set) -> {
+        // Contacts are equal by their UUID, so only the instance that was indexed is removed.
+        set.removeIf(e -> e == c);
+        return set.isEmpty() ? null : set;
+      });
+    }
+  }
+
+  private volatile Index index = new Index();
+
   public ContactList() throws DBException {
     loadFromDatabase();
   }
-  
+
+  /**
+   * Replaces the Contacts of the list with the Contacts of the database.
+   *
+   * @throws DBException if the Contacts couldn't be read.
+   */
   public void loadFromDatabase() throws DBException {
-    contacts = Core.getInstance().getDatabase().getContacts();
+    Index i = new Index();
+    for (Contact c : Core.getInstance().getDatabase().getContacts())
+      i.add(c);
+    synchronized (this) {
+      index = i;
+    }
   }
-  
-  public void addContact(Contact c) throws DBException {
-    contacts.add(c);
+
+  /**
+   * Adds a Contact to the database and the list.
+   *
+   * @param c The Contact.
+   * @throws DBException if the Contact couldn't be stored (e.g. its UUID already exists).
+   */
+  public synchronized void addContact(Contact c) throws DBException {
     Core.getInstance().getDatabase().addContact(c);
+    index.add(c);
+  }
+
+  /**
+   * Changes a Contact in the database and the list.
+   *
+   * @param uuid The UUID of the Contact.
+   * @param newContact The new data of the Contact. Its UUID is ignored.
+   * @return the changed Contact.
+   * @throws DBException if the Contact couldn't be changed (e.g. it doesn't exist).
+   */
+  public synchronized Contact editContact(String uuid, Contact newContact) throws DBException {
+    Contact c =
+        new Contact(newContact.getNickname(), uuid, newContact.getPublicKey(),
+            newContact.getHost(), newContact.getPort());
+    Core.getInstance().getDatabase().editContact(uuid, c);
+    index.add(c);
+    return c;
   }
-  
+
+  /**
+   * Gets a Contact by its UUID. If it isn't in the list, it's read from the database.
+   *
+   * @param uuid The UUID.
+   * @return the Contact.
+   * @throws DBException if the Contact doesn't exist or couldn't be read.
+   */
   public Contact getContact(String uuid) throws DBException {
-    for (Contact c : contacts)
-      if (c.getUuid().equals(uuid))
-        return c;
-    return Core.getInstance().getDatabase().getContact(uuid);
+    Contact c = index.byUuid.get(uuid);
+    if (c != null)
+      return c;
+    c = Core.getInstance().getDatabase().getContact(uuid);
+    synchronized (this) {
+      Contact known = index.byUuid.get(uuid);
+      if (known != null)
+        return known;
+      index.add(c);
+    }
+    return c;
   }
 
+  /**
+   * Gets the Contacts with an address.
+   *
+   * @param address The address. It isn't resolved; the host has to be given like in the Contact.
+   * @return the Contacts (can be empty).
+   */
+  public List<Contact> getContactsByAddress(InetSocketAddress address) {
+    return get(index.byAddress, addressKey(address.getHostString(), address.getPort()));
+  }
+
+  /**
+   * Gets the Contacts with a nickname (case insensitive).
+   *
+   * @param nickname The nickname.
+   * @return the Contacts (can be empty).
+   */
+  public List<Contact> getContactsByNickname(String nickname) {
+    return get(index.byNickname, nicknameKey(nickname));
+  }
+
+  /**
+   * @return all Contacts of the list.
+   */
+  public List<Contact> getContacts() {
+    return new ArrayList<Contact>(index.byUuid.values());
+  }
+
+  /**
+   * @return the number of Contacts in the list.
+   */
+  public int size() {
+    return index.byUuid.size();
+  }
+
+  private static List<Contact> get(Map<String, Set<Contact>> index, String key) {
+    Set<Contact> set = index.get(key);
+    return set == null ? Collections.<Contact>emptyList() : new ArrayList<Contact>(set);
+  }
+
+  private static String addressKey(String host, int port) {
+    return host.toLowerCase(Locale.ROOT) + ":" + port;
+  }
+
+  private static String nicknameKey(String nickname) {
+    return nickname.toLowerCase(Locale.ROOT);
+  }
 }
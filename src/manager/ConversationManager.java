@@ -1,34 +1,134 @@
 package manager;
 
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import main.Core;
 import coversations.Conversation;
 import exceptions.DBException;
 import exceptions.UnknownUuidException;
 
+/**
+ * Keeps the Conversations in memory that are used.<br>
+ * The Conversations are read from the database on their first use and cached; if there are more
+ * than the capacity, the least recently used one is dropped. UUIDs that aren't in the database
+ * are remembered for {@value #UNKNOWN_TTL} milliseconds (at most {@value #MAX_UNKNOWN} of them),
+ * so Messages for an unknown Conversation don't cause a database query each.
+ */
 public class ConversationManager {
 
-  private List<Conversation> conversations;
+  /** The time (in milliseconds) an unknown UUID is remembered. */
+  static final long UNKNOWN_TTL = 10000;
+  /** The maximum number of remembered unknown UUIDs. */
+  static final int MAX_UNKNOWN = 1024;
 
-  private int active = 0;
+  /** The cached Conversations by their UUID (least recently used first). */
+  private final Map<String, Conversation> conversations;
+  /** The expiry times of the unknown UUIDs (oldest first). */
+  private final Map<String, Long> unknown = new LinkedHashMap<String, Long>() {
+    private static final long serialVersionUID = 1L;
 
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_UNKNOWN;
+    }
+  };
+
+  private volatile Conversation active;
+
+  /**
+   * Constructs a manager.
+   *
+   * @param capacity The maximum number of cached Conversations.
+   * @throws IllegalArgumentException if <code>capacity</code> <= 0
+   */
+  public ConversationManager(int capacity) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("The capacity must be positive.");
+    conversations = new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
 
   public Conversation getActiveConversation() {
-    return conversations.get(active);
+    return active;
+  }
+
+  /**
+   * Sets the Conversation the user is writing in.
+   *
+   * @param uuid The UUID of the Conversation.
+   * @throws UnknownUuidException if there is no Conversation with the UUID.
+   */
+  public void setActiveConversation(String uuid) throws UnknownUuidException {
+    active = getConversationByUuid(uuid);
   }
 
   public Conversation getConversationByUuid(String uuid) throws UnknownUuidException {
-    for (Conversation c : conversations)
-      if (c.getUuid().equals(uuid))
+    synchronized (conversations) {
+      Conversation c = conversations.get(uuid);
+      if (c != null)
         return c;
+    }
+    synchronized (unknown) {
+      Long expiry = unknown.get(uuid);
+      if (expiry != null) {
+        if (expiry > System.currentTimeMillis())
+          throw unknownUuid(uuid);
+        unknown.remove(uuid);
+      }
+    }
+
+    Conversation c;
     try {
-      Conversation c = Core.instance.getDatabase().getConversation(uuid);
-      conversations.add(c);
-      return c;
+      c = Core.instance.getDatabase().getConversation(uuid);
     } catch (DBException e) {
+      // Not remembered as unknown, the next try might succeed.
+      throw new UnknownUuidException("Couldn't read the Conversation with the UUID \"" + uuid
+          + "\": " + e.getMessage());
+    }
+    if (c == null) {
+      synchronized (unknown) {
+        unknown.put(uuid, System.currentTimeMillis() + UNKNOWN_TTL);
+      }
+      throw unknownUuid(uuid);
+    }
+    synchronized (conversations) {
+      // Another thread might have read it in the meantime.
+      Conversation cached = conversations.putIfAbsent(uuid, c);
+      return cached == null ? c : cached;
+    }
+  }
+
+  /**
+   * Drops a Conversation from the cache, e.g. after it has been added or changed in the database.
+   *
+   * @param uuid The UUID of the Conversation.
+   */
+  public void invalidate(String uuid) {
+    synchronized (conversations) {
+      conversations.remove(uuid);
+    }
+    synchronized (unknown) {
+      unknown.remove(uuid);
     }
-    throw new UnknownUuidException("Couldn't find a Conversation with the UUID \"" + uuid + "\".");
   }
 
+  /**
+   * @return the number of cached Conversations.
+   */
+  public int size() {
+    synchronized (conversations) {
+      return conversations.size();
+    }
+  }
+
+  private static UnknownUuidException unknownUuid(String uuid) {
+    return new UnknownUuidException("Couldn't find a Conversation with the UUID \"" + uuid + "\".");
+  }
 }
@@ -0,0 +1,359 @@
+package manager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.Core;
+import utils.BloomFilter;
+import database.Database;
+import exceptions.DBException;
+import exchange.EncryptedMessage;
+import exchange.InternalMessage;
+
+/**
+ * Drops incoming Messages that have already been received.<br>
+ * A Message is delivered again when the acknowledgement of the first delivery got lost. It is
+ * recognized in two stages:
+ * <ol>
+ * <li>Before the decryption: a resent frame that is identical to a recently received one (same
+ * session key and content) is dropped without decrypting it. The frames are only remembered in
+ * memory, the last {@value #FRAME_CACHE_SIZE} of them.</li>
+ * <li>After the decryption: a Message is identified by a digest of its sender, timestamp,
+ * sequence number and content (see {@link #digest(InternalMessage)}), which is the same however
+ * often it has been encrypted. The digests are stored in the {@link Database}. In front of the
+ * database there is a {@link BloomFilter} per Conversation (read from the database when the
+ * Conversation receives its first Message; the filters of the {@value #MAX_FILTERS} most recently
+ * active Conversations are kept), so a new Message, for which the filter says "definitely not
+ * received", doesn't need a database query. Only the filter's positives (the duplicates and about
+ * {@value #FALSE_POSITIVE_RATE} of the new Messages) are looked up.</li>
+ * </ol>
+ * The digests of new Messages are written to the database in batches: when
+ * {@value #FLUSH_SIZE} are pending, every {@value #FLUSH_INTERVAL} milliseconds and on
+ * {@link #close()}. The database is never accessed while the filter is locked: a filter is read
+ * by the first thread that needs it (the others wait only for it, not for other Conversations)
+ * and the pending digests are written after they have been taken out of the pending map. The
+ * digests are deleted with the archived Messages (see {@link Database#archiveMessages(long, int)}).
+ */
+public class DuplicateFilter implements AutoCloseable {
+
+  /** The number of frame digests that are remembered for the first stage. */
+  static final int FRAME_CACHE_SIZE = 4096;
+  /** The number of Conversations whose filters are kept in memory. */
+  static final int MAX_FILTERS = 256;
+  /** The minimal number of Messages the filter of a Conversation is sized for. */
+  static final int INITIAL_CAPACITY = 1024;
+  /** The false positive rate of the filters. */
+  static final double FALSE_POSITIVE_RATE = 0.01;
+  /** The number of pending digests that causes a write to the database. */
+  static final int FLUSH_SIZE = 256;
+  /** The maximal time (in milliseconds) a digest is pending. */
+  static final long FLUSH_INTERVAL = 1000;
+
+  /** The digests of the recently received frames (least recently used first). */
+  private final Map<Long, Boolean> recentFrames = new LinkedHashMap<Long, Boolean>(
+      FRAME_CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+      return size() > FRAME_CACHE_SIZE;
+    }
+  };
+
+  /**
+   * The filters by the UUID of their Conversation (least recently used first). A filter is read
+   * when its task is run, outside the lock. A removed filter is read from the database again when
+   * its Conversation receives the next Message.
+   */
+  private final Map<String, FutureTask<BloomFilter>> filters =
+      new LinkedHashMap<String, FutureTask<BloomFilter>>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FutureTask<BloomFilter>> eldest) {
+      return size() > MAX_FILTERS;
+    }
+  };
+  /**
+   * The digests that haven't been written to the database yet (the timestamps of the Messages by
+   * their digest, by the UUID of their Conversation).
+   */
+  private Map<String, Map<Long, Long>> pending = new HashMap<String, Map<Long, Long>>();
+  /** The number of pending digests. */
+  private int pendingCount;
+  /** The digests that are being written to the database (empty if none are). */
+  private Map<String, Map<Long, Long>> flushing = new HashMap<String, Map<Long, Long>>();
+  /** Is held while the digests are written, so only one thread writes them. */
+  private final Object flushLock = new Object();
+
+  /** Writes the pending digests. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DuplicateFilter");
+        t.setDaemon(true);
+        return t;
+      });
+
+  /**
+   * Constructs the filter and starts writing the pending digests regularly.
+   */
+  public DuplicateFilter() {
+    scheduler.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Computes the digest of an encrypted frame for the first stage.
+   *
+   * @param m The received Message.
+   * @return the digest.
+   */
+  public static long digest(EncryptedMessage m) {
+    MessageDigest md = sha256();
+    md.update(m.getSessionKey().getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    md.update(m.getEncrypted().getBytes(StandardCharsets.UTF_8));
+    return toLong(md.digest());
+  }
+
+  /**
+   * Computes the digest of a Message for the second stage: the first 64 bits of the SHA-256 hash
+   * of the sender's UUID, the timestamp, the sequence number and the content. The timestamp only
+   * has a resolution of a second, so without the sequence number the same text sent twice within
+   * a second would be a duplicate. A Message without a sequence number (<code>0</code>) has the
+   * same digest as before the sequence numbers were introduced. With millions of Messages in a
+   * Conversation the chance that two different Messages have the same digest is still below
+   * 10<sup>-6</sup>.
+   *
+   * @param m The decrypted Message.
+   * @return the digest.
+   */
+  public static long digest(InternalMessage m) {
+    MessageDigest md = sha256();
+    md.update(m.getUuidSender().getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    long t = m.getTimeStamp().getTimeInMillis();
+    for (int i = 56; i >= 0; i -= 8)
+      md.update((byte) (t >>> i));
+    long sequence = m.getSequence();
+    if (sequence != 0) {
+      md.update((byte) 1);
+      for (int i = 56; i >= 0; i -= 8)
+        md.update((byte) (sequence >>> i));
+    }
+    md.update(m.getContent().getBytes(StandardCharsets.UTF_8));
+    return toLong(md.digest());
+  }
+
+  /**
+   * Checks whether a frame has been received recently (first stage).
+   *
+   * @param frameDigest The digest of the frame (see {@link #digest(EncryptedMessage)}).
+   * @return whether the frame is a duplicate.
+   */
+  public boolean isReplay(long frameDigest) {
+    synchronized (recentFrames) {
+      return recentFrames.get(frameDigest) != null;
+    }
+  }
+
+  /**
+   * Checks whether a Message has already been received (second stage).
+   *
+   * @param m The decrypted Message.
+   * @return whether the Message is a duplicate.
+   * @throws DBException if the digests couldn't be read.
+   */
+  public boolean isDuplicate(InternalMessage m) throws DBException {
+    String conv = m.getUuidConversation();
+    long digest = digest(m);
+    BloomFilter filter = getFilter(conv);
+    synchronized (this) {
+      if (!filter.mightContain(digest))
+        return false;
+      if (contains(pending, conv, digest) || contains(flushing, conv, digest))
+        return true;
+    }
+    //A digest that is written meanwhile is in the database then.
+    return getDatabase().containsMessageDigest(conv, digest);
+  }
+
+  /**
+   * Remembers a frame that has been accepted, so resending it will be dropped before the
+   * decryption.
+   *
+   * @param frameDigest The digest of the frame (see {@link #digest(EncryptedMessage)}).
+   */
+  public void rememberFrame(long frameDigest) {
+    synchronized (recentFrames) {
+      recentFrames.put(frameDigest, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Remembers a Message that has been received (after it has been processed), so its duplicates
+   * will be dropped.
+   *
+   * @param m The decrypted Message.
+   * @throws DBException if the filter of the Conversation couldn't be read or the pending digests
+   *         couldn't be written.
+   */
+  public void remember(InternalMessage m) throws DBException {
+    boolean flush;
+    String conv = m.getUuidConversation();
+    long digest = digest(m);
+    BloomFilter filter = getFilter(conv);
+    synchronized (this) {
+      filter.add(digest);
+      if (pending.computeIfAbsent(conv, k -> new HashMap<Long, Long>()).putIfAbsent(digest,
+          m.getTimeStamp().getTimeInMillis()) == null)
+        pendingCount++;
+      flush = pendingCount >= FLUSH_SIZE;
+    }
+    if (flush)
+      flush();
+  }
+
+  /**
+   * Writes the pending digests to the database.
+   *
+   * @throws DBException if the digests couldn't be written. They stay pending then.
+   */
+  public void flush() throws DBException {
+    synchronized (flushLock) {
+      Map<String, Map<Long, Long>> digests;
+      synchronized (this) {
+        if (pendingCount == 0)
+          return;
+        // isDuplicate() checks the flushing digests, too, until they are in the database.
+        digests = flushing = pending;
+        pending = new HashMap<String, Map<Long, Long>>();
+        pendingCount = 0;
+      }
+      boolean written = false;
+      try {
+        getDatabase().addMessageDigests(digests);
+        written = true;
+      } finally {
+        synchronized (this) {
+          if (!written)
+            for (Map.Entry<String, Map<Long, Long>> e : digests.entrySet()) {
+              Map<Long, Long> p =
+                  pending.computeIfAbsent(e.getKey(), k -> new HashMap<Long, Long>());
+              for (Map.Entry<Long, Long> d : e.getValue().entrySet())
+                if (p.putIfAbsent(d.getKey(), d.getValue()) == null)
+                  pendingCount++;
+            }
+          flushing = new HashMap<String, Map<Long, Long>>();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the regular writes and writes the pending digests.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    flushQuietly();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (DBException e) {
+      Core.instance.printError("[DuplicateFilter] Couldn't store the message digests.", e, false);
+    }
+  }
+
+  /**
+   * Gets the filter of a Conversation. It is read from the database on first use, by the calling
+   * thread and without holding the lock; other threads that need it meanwhile wait for it.
+   */
+  private BloomFilter getFilter(String conv) throws DBException {
+    FutureTask<BloomFilter> task;
+    boolean read = false;
+    synchronized (this) {
+      task = filters.get(conv);
+      if (task == null) {
+        task = new FutureTask<BloomFilter>(() -> readFilter(conv));
+        filters.put(conv, task);
+        read = true;
+      }
+    }
+    if (read)
+      task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DBException("Interrupted while reading the message digests.");
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        filters.remove(conv, task);
+      }
+      if (e.getCause() instanceof DBException)
+        throw (DBException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Reads the filter of a Conversation from the database. The digests that haven't been written
+   * yet are taken before, so none are missed if they are written while the filter is read; newer
+   * ones are added by {@link #remember(InternalMessage)} after the filter has been read.
+   */
+  private BloomFilter readFilter(String conv) throws DBException {
+    Map<Long, Long> unwritten = new HashMap<Long, Long>();
+    synchronized (this) {
+      if (pending.containsKey(conv))
+        unwritten.putAll(pending.get(conv));
+      if (flushing.containsKey(conv))
+        unwritten.putAll(flushing.get(conv));
+    }
+    Database db = getDatabase();
+    long count = db.countMessageDigests(conv);
+    BloomFilter f =
+        new BloomFilter((int) Math.min(Integer.MAX_VALUE / 2,
+            Math.max(INITIAL_CAPACITY, 2 * count)), FALSE_POSITIVE_RATE);
+    db.forEachMessageDigest(conv, f::add);
+    for (long digest : unwritten.keySet())
+      f.add(digest);
+    return f;
+  }
+
+  private static boolean contains(Map<String, Map<Long, Long>> digests, String conv,
+      long digest) {
+    Map<Long, Long> d = digests.get(conv);
+    return d != null && d.containsKey(digest);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't available.", e);
+    }
+  }
+
+  private static long toLong(byte[] b) {
+    long l = 0;
+    for (int i = 0; i < 8; i++)
+      l = (l << 8) | (b[i] & 0xff);
+    return l;
+  }
+
+  private static Database getDatabase() {
+    return Core.instance.getDatabase();
+  }
+}
@@ -1,12 +1,20 @@
 package manager;
 
 import java.security.InvalidKeyException;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import main.Core;
+import misc.Settings;
+import utils.KeyedExecutor;
 import persons.Contact;
+import database.MessageStore;
 import exceptions.DBException;
 import exceptions.FormatException;
+import exceptions.UnknownUuidException;
+import exchange.BatchMessage;
 import exchange.EncryptedMessage;
 import exchange.InternalMessage;
 
@@ -28,36 +36,342 @@ public class MessageManager {
     this.ci = cm;
   }
 
-  public void interpreteIncomingMessage(EncryptedMessage m) {
+  /** The command that asks the sender of a Conversation's Messages to send some of them again. */
+  public static final String RESEND_COMMAND = "/resend";
+  /** The maximum number of Messages that are sent again for one request. */
+  static final int MAX_RESEND = 256;
 
-    InternalMessage im = null;
+  /** The maximum number of Messages that are stored together. */
+  static final int PERSIST_BATCH = 64;
 
+  /** A decrypted Message and the digest of its frame. */
+  private static class Decrypted {
+    final InternalMessage message;
+    final long frameDigest;
+
+    Decrypted(InternalMessage message, long frameDigest) {
+      this.message = message;
+      this.frameDigest = frameDigest;
+    }
+  }
+
+  /*
+   * The stages of the incoming Messages: decrypt -> route (drop duplicates, answer requests, put
+   * in order) -> persist -> notify the user. The decryption runs in parallel; the routing runs in
+   * parallel for different Conversations and in order within a Conversation; persist and notify
+   * have one thread each, so the order of the ReorderBuffer is kept.
+   */
+  private Stage<EncryptedMessage> decryptStage;
+  private KeyedExecutor routeExecutor;
+  private Stage<InternalMessage> persistStage;
+  private Stage<InternalMessage> notifyStage;
+  /** The commands of other participants that wait for the user's answer. */
+  private PendingCommands pendingCommands;
+
+  /**
+   * Starts the stages of the incoming Messages.
+   */
+  public void start() {
+    Settings s = Core.instance.getSettings();
+    int capacity = s.getIncomingQueueSize();
+    int threads =
+        s.getDecryptThreads() > 0 ? s.getDecryptThreads() : Runtime.getRuntime()
+            .availableProcessors();
+    pendingCommands = new PendingCommands(ci);
+    notifyStage = new Stage<InternalMessage>("Notify", 1, capacity, 1, b -> notify(b.get(0)));
+    persistStage = new Stage<InternalMessage>("Persist", 1, capacity, PERSIST_BATCH, this::persist);
+    routeExecutor = new KeyedExecutor("Route", threads, capacity);
+    decryptStage =
+        new Stage<EncryptedMessage>("Decrypt", threads, capacity, 1, b -> decrypt(b.get(0)));
+  }
+
+  /**
+   * Processes the queued incoming Messages and stops the stages.
+   */
+  public void close() {
+    // In the order of the stages, so every stage gets the last elements of the one before.
+    if (decryptStage != null)
+      decryptStage.close();
+    if (routeExecutor != null)
+      routeExecutor.close();
+    for (Stage<?> stage : Arrays.asList(persistStage, notifyStage))
+      if (stage != null)
+        stage.close();
+    if (pendingCommands != null)
+      pendingCommands.close();
+    if (ci != null)
+      ci.close();
+  }
+
+  /**
+   * @return the commands of other participants that wait for the user's answer.
+   */
+  public PendingCommands getPendingCommands() {
+    return pendingCommands;
+  }
+
+  /**
+   * @return the queued stages of the incoming Messages (decrypt, persist and notify) with their
+   *         metrics. The routing is done by {@link #getRouteExecutor()}.
+   */
+  public List<Stage<?>> getStages() {
+    List<Stage<?>> stages = new ArrayList<Stage<?>>(3);
+    for (Stage<?> stage : Arrays.asList(decryptStage, persistStage, notifyStage))
+      if (stage != null)
+        stages.add(stage);
+    return stages;
+  }
+
+  /**
+   * @return the executor that routes the incoming Messages per Conversation, with the queue
+   *         depths of the Conversations.
+   */
+  public KeyedExecutor getRouteExecutor() {
+    return routeExecutor;
+  }
+
+  /**
+   * Queues a received Message for processing. Doesn't wait for the processing.
+   * 
+   * @param m The Message.
+   * @return whether the Message has been queued. <code>false</code> if the queue is full; the
+   *         sender should try again later.
+   */
+  public boolean interpreteIncomingMessage(EncryptedMessage m) {
+    return decryptStage.offer(m);
+  }
+
+  /**
+   * @return the number of Messages that can be queued before
+   *         {@link #interpreteIncomingMessage(EncryptedMessage)} refuses them.
+   */
+  public int getIncomingCapacity() {
+    return decryptStage == null ? 0 : decryptStage.getRemainingCapacity();
+  }
+
+  /**
+   * Decrypts a Message (stage 1) and unpacks it if it is a {@link BatchMessage}. Frames that have
+   * been received recently are dropped.
+   */
+  private void decrypt(EncryptedMessage m) throws InvalidKeyException, FormatException,
+      InterruptedException {
+    long frameDigest = DuplicateFilter.digest(m);
+    if (Core.instance.getDuplicateFilter().isReplay(frameDigest)) {
+      Core.instance.getUserInterface().printDebugMessage("Dropped a resent Message.");
+      return;
+    }
+    for (InternalMessage im : m.toInternalMessages()) {
+      Decrypted d = new Decrypted(im, frameDigest);
+      routeExecutor.execute(im.getUuidConversation(), () -> {
+        try {
+          route(d);
+        } catch (DBException e) {
+          Core.instance.getUserInterface().printError(
+              "Couldn't process the Message of \"" + d.message.getUuidSender() + "\"!", e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Routes a decrypted Message (stage 2): Messages of unknown Conversations and duplicates are
+   * dropped, requests of the other participants are answered and the other Messages are passed to
+   * the {@link ReorderBuffer}. Runs in order with the other Messages of the Conversation.
+   */
+  private void route(Decrypted d) throws DBException {
+    InternalMessage im = d.message;
     try {
+      // Before the duplicate check, which keeps a filter per Conversation.
+      conMngr.getConversationByUuid(im.getUuidConversation());
+    } catch (UnknownUuidException e) {
+      Core.instance.getUserInterface().printDebugMessage(
+          "Dropped a Message of an unknown Conversation: " + e.getMessage());
+      return;
+    }
+    DuplicateFilter dedup = Core.instance.getDuplicateFilter();
+    try {
+      if (dedup.isDuplicate(im)) {
+        Core.instance.getUserInterface().printDebugMessage("Dropped a duplicate Message.");
+        return;
+      }
+    } catch (DBException e) {
+      // Rather process a Message twice than lose it.
+      Core.instance.getUserInterface().printError("Couldn't check for a duplicate Message.", e);
+    }
+    dedup.rememberFrame(d.frameDigest);
 
-      im = m.toInternalMessage();
+    if (im.isCommand() && im.getContent().startsWith(RESEND_COMMAND + " "))
+      resend(im);
+    else if (SyncManager.isSyncRequest(im))
+      Core.instance.getSyncManager().handle(im);
+    else
+      Core.instance.getReorderBuffer().offer(im);
+  }
 
-      if (im.isCommand())
-        if (Core.instance.getUserInterface().confirmDialog(
-            Core.instance.getDatabase().getContact(im.getUuidSender()).getNickname()
-                + " wants to execute the following command: \"" + im.getContent()
-                + "\"\nDo you wnt to execute it?", false))
-          ci.runMessageCommand(im);
-
-        else {
-          // conMngr.getConversationByUuid(im.getUuidConversation()); //TODO Do Stuff here.
+  /**
+   * Stores received Messages (stage 3) and passes them on to the notification of the user.
+   */
+  private void persist(List<InternalMessage> batch) throws DBException, InterruptedException {
+    MessageStore store = Core.instance.getMessageStore();
+    List<InternalMessage> stored = batch;
+    try {
+      store.addMessages(batch);
+    } catch (DBException e) {
+      // One bad Message (e.g. of an unknown Contact) mustn't cost the others.
+      stored = new ArrayList<InternalMessage>(batch.size());
+      for (InternalMessage im : batch)
+        try {
+          store.addMessage(im);
+          stored.add(im);
+        } catch (DBException e1) {
+          Core.instance.getUserInterface().printError(
+              "Couldn't store the Message of \"" + im.getUuidSender() + "\"!", e1);
         }
+    }
+    for (InternalMessage im : stored)
+      notifyStage.put(im);
+  }
+
+  /**
+   * Shows a stored Message to the user (stage 4).
+   */
+  private void notify(InternalMessage im) throws DBException, UnknownUuidException {
+    String sender = Core.instance.getContactList().getContact(im.getUuidSender()).getNickname();
+    String conv = conMngr.getConversationByUuid(im.getUuidConversation()).getName();
+    Core.instance.getUserInterface().printRawMessage(
+        "[" + conv + "] " + sender + ": " + im.getContent());
+  }
+
+  /**
+   * Processes an incoming Message: a command is parked until the user answers it (see
+   * {@link PendingCommands}), other Messages are queued for storing. Is called by the
+   * {@link ReorderBuffer} in the order of the sequence numbers, duplicates have already been
+   * dropped.
+   * 
+   * @param im The Message.
+   */
+  public void deliverIncomingMessage(InternalMessage im) {
+    try {
 
+      if (im.isCommand())
+        // Never waits for the user.
+        pendingCommands.park(im);
+      else
+        // Waits if the storing falls behind.
+        persistStage.put(im);
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
 
+    try {
+      Core.instance.getDuplicateFilter().remember(im);
+    } catch (DBException e) {
+      Core.instance.getUserInterface().printError("Couldn't remember the received Message.", e);
+    }
+  }
 
-    } catch (InvalidKeyException | FormatException e) {
+  /**
+   * Asks the sender of Messages in a Conversation to send some of them again. The request isn't
+   * stored or retried; the {@link ReorderBuffer} requests again if the Messages don't arrive.
+   * 
+   * @param convUuid The UUID of the Conversation.
+   * @param senderUuid The UUID of the sender.
+   * @param fromSequence The first sequence number.
+   * @param toSequence The last sequence number (inclusive).
+   */
+  public void requestRetransmit(String convUuid, String senderUuid, long fromSequence,
+      long toSequence) {
+    try {
+      Contact sender = Core.instance.getContactList().getContact(senderUuid);
+      InternalMessage request =
+          new InternalMessage(RESEND_COMMAND + " " + fromSequence + " " + toSequence, convUuid,
+              Core.instance.getUser().getUuid(), true);
+      interpreteOutgoingMessage(request, sender);
+    } catch (DBException | FormatException e) {
+      Core.instance.getUserInterface().printError("Couldn't request missing Messages.", e);
+    }
+  }
 
+  /**
+   * Answers a request of {@link #requestRetransmit(String, String, long, long)}: the user's
+   * requested Messages are queued for the requesting participant again.
+   * 
+   * @param request The request.
+   * @throws DBException if the Messages couldn't be read or queued.
+   */
+  private void resend(InternalMessage request) throws DBException {
+    String[] args = request.getContent().split(" ");
+    long from = 0, to = -1;
+    if (args.length == 3)
+      try {
+        from = Long.parseLong(args[1]);
+        to = Long.parseLong(args[2]);
+      } catch (NumberFormatException e) {
+      }
+    if (from < 1 || to < from) {
+      Core.instance.getUserInterface().printDebugMessage(
+          "Ignored invalid request: \"" + request.getContent() + "\"");
+      return;
+    }
+    to = Math.min(to, from + MAX_RESEND - 1);
+
+    Contact requester = findParticipant(request.getUuidConversation(), request.getUuidSender());
+    if (requester == null) {
+      Core.instance.getUserInterface().printDebugMessage(
+          "Ignored request of a Contact that isn't a participant.");
+      return;
+    }
+
+    List<Contact> recipients = Collections.singletonList(requester);
+    for (InternalMessage m : Core.instance.getDatabase().getMessagesBySequence(
+        request.getUuidConversation(), Core.instance.getUser().getUuid(), from, to, MAX_RESEND))
+      Core.instance.getOutbox().enqueue(m, recipients);
+  }
+
+  /**
+   * Finds a participant of a Conversation.
+   * 
+   * @param convUuid The UUID of the Conversation.
+   * @param contactUuid The UUID of the Contact.
+   * @return the participant or <code>null</code> if the Contact doesn't participate in the
+   *         Conversation.
+   * @throws DBException if the participants couldn't be read.
+   */
+  static Contact findParticipant(String convUuid, String contactUuid) throws DBException {
+    for (Contact c : Core.instance.getDatabase().getParticipants(convUuid))
+      if (c.getUuid().equals(contactUuid))
+        return c;
+    return null;
+  }
+
+  /**
+   * Stores a Message and queues it for the given recipients. The Message will be retried until
+   * every recipient acknowledged it.
+   * 
+   * @param im The Message to be sent.
+   * @param recipients The recipients of the Message.
+   * @return whether the Message has been queued.
+   * @see Outbox
+   */
+  public boolean queueOutgoingMessage(InternalMessage im, List<Contact> recipients) {
+    try {
+      Core.instance.getOutbox().enqueue(im, recipients);
+      return true;
     } catch (DBException e) {
-      Core.instance.getUserInterface().printError(
-          "Unable to find Contact with the UUID \"" + im.getUuidSender() + "\"!", e);
-      e.printStackTrace();
+      Core.instance.getUserInterface().printError("Couldn't queue Message.", e);
+      return false;
     }
   }
-  
+
+  /**
+   * Encrypts a Message and sends it to a Contact once.
+   * 
+   * @param im The Message to be sent.
+   * @param forContact The recipient.
+   * @return whether the recipient acknowledged the Message.
+   */
   public boolean interpreteOutgoingMessage(InternalMessage im, Contact forContact) {
 
     
@@ -65,12 +379,43 @@ public class MessageManager {
     try {
       em = im.toEncryptedMessge(forContact);
     } catch (InvalidKeyException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      Core.instance.getUserInterface().printError(
+          "Invalid public key of '" + forContact.getNickname() + "'.", e);
+      return false;
     }
     
     if (!Core.instance.getClient().sendMessage(em, forContact.getAddress())) {
-      Core.instance.getUserInterface().printError("Couldn't sent Message.");
+      Core.instance.getUserInterface().printDebugMessage(
+          "Couldn't send Message to '" + forContact.getNickname() + "'.");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sends several Messages to a Contact at once: they are encrypted together as a
+   * {@link BatchMessage}. A single Message is sent as it is.
+   * 
+   * @param ims The Messages in the order they should be processed by the recipient.
+   * @param forContact The recipient.
+   * @return whether the recipient acknowledged all of the Messages.
+   */
+  public boolean interpreteOutgoingMessages(List<InternalMessage> ims, Contact forContact) {
+    if (ims.size() == 1)
+      return interpreteOutgoingMessage(ims.get(0), forContact);
+
+    EncryptedMessage em = null;
+    try {
+      em = new BatchMessage(ims).toEncryptedMessge(forContact);
+    } catch (InvalidKeyException e) {
+      Core.instance.getUserInterface().printError(
+          "Invalid public key of '" + forContact.getNickname() + "'.", e);
+      return false;
+    }
+
+    if (!Core.instance.getClient().sendMessage(em, forContact.getAddress())) {
+      Core.instance.getUserInterface().printDebugMessage(
+          "Couldn't send " + ims.size() + " Messages to '" + forContact.getNickname() + "'.");
       return false;
     }
     return true;
@@ -0,0 +1,280 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Core;
+import connection.PeerWindow;
+import misc.Settings;
+import persons.Contact;
+import database.Database;
+import database.MessageStore;
+import database.OutboxEntry;
+import exceptions.DBException;
+import exceptions.FormatException;
+import exchange.InternalMessage;
+
+/**
+ * Delivers outgoing Messages reliably.<br>
+ * A Message is stored in the database together with an outbox entry for every recipient before
+ * it is sent. An entry is removed when the recipient acknowledged the Message; if the delivery
+ * fails, the recipient's entries are retried with an exponential backoff (with jitter) that is
+ * tracked per recipient. Because the outbox lives in the database, the delivery is resumed after a
+ * restart. The overdue entries are then spread over the first retry window, so a long backlog
+ * isn't sent at once. If the history is kept in another {@link MessageStore} (the message log),
+ * a new Message is added to it as well; the database keeps its copy for the outbox and for
+ * sending it again on request.<br>
+ * The due entries of a recipient are sent together as a {@link exchange.BatchMessage}. A Message
+ * that is queued shortly after a delivery waits for the linger time of the settings, so a burst
+ * is collected into few batches; after a quiet period a Message is sent at once (like Nagle's
+ * algorithm).<br>
+ * The sending follows the flow control of the {@link connection.Client}: while the window of a
+ * recipient is closed, its entries are held back in the database (they don't count as failed
+ * deliveries). So a slow recipient costs no memory; at most {@value #BATCH_SIZE} entries are read
+ * at once.
+ */
+public class Outbox implements AutoCloseable {
+
+  /** The maximum number of entries that are read from the database at once. */
+  private static final int BATCH_SIZE = 64;
+
+  /** Runs the deliveries. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Outbox");
+        t.setDaemon(true);
+        return t;
+      });
+
+  /**
+   * The number of consecutive failed deliveries per recipient UUID. Only used by the scheduler
+   * thread.
+   */
+  private final Map<String, Integer> failures = new HashMap<String, Integer>();
+
+  private final Random random = new Random();
+
+  /** The next scheduled delivery run. */
+  private ScheduledFuture<?> nextRun;
+
+  /** The time (in milliseconds) of the last delivery attempt. */
+  private volatile long lastDelivery;
+
+  /** The number of entries that have been held back because of a closed window. */
+  private final AtomicLong heldBack = new AtomicLong();
+
+  /**
+   * Spreads the overdue entries of the last session and starts the delivery.
+   *
+   * @throws DBException if the outbox couldn't be read.
+   */
+  public void start() throws DBException {
+    getDatabase().spreadOverdueOutbox(System.currentTimeMillis(), getSettings().getRetryDelay());
+    scheduleRun(0);
+  }
+
+  /**
+   * Stores a Message and sends it to the given recipients as soon as possible.
+   *
+   * @param m The Message to be sent.
+   * @param recipients The recipients of the Message.
+   * @throws DBException if the Message couldn't be stored.
+   */
+  public void enqueue(InternalMessage m, List<Contact> recipients) throws DBException {
+    List<String> uuids = new ArrayList<String>(recipients.size());
+    for (Contact c : recipients)
+      uuids.add(c.getUuid());
+    long now = System.currentTimeMillis();
+    boolean isNew = !m.hasDatabaseId();
+    getDatabase().enqueueMessage(m, uuids, now);
+    MessageStore store = Core.instance.getMessageStore();
+    if (isNew && store != getDatabase())
+      addToHistory(store, m);
+    // Linger only if a delivery happened recently, i.e. during a burst.
+    scheduleRun(lastDelivery + getSettings().getBatchLinger() - now);
+  }
+
+  /**
+   * Adds a copy of a queued Message to the history, so it can be paged together with the received
+   * ones. The copy gets its own database ID; the Message keeps the one of the outbox. A failure
+   * is only reported, because the Message will be sent anyway.
+   */
+  private static void addToHistory(MessageStore store, InternalMessage m) {
+    try {
+      store.addMessage(new InternalMessage(m.getContent(), m.getUuidConversation(),
+          m.getUuidSender(), m.isCommand(), m.getTimeStamp().getTimeInMillis()));
+    } catch (DBException | FormatException e) {
+      Core.instance.printError("[Outbox] Couldn't add the Message to the history.", e, false);
+    }
+  }
+
+  /**
+   * Stops the delivery. Undelivered Messages stay in the database.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Schedules a delivery run unless an earlier one is already scheduled.
+   *
+   * @param delay the delay in milliseconds.
+   */
+  private synchronized void scheduleRun(long delay) {
+    if (scheduler.isShutdown())
+      return;
+    if (nextRun != null && !nextRun.isDone()) {
+      if (nextRun.getDelay(TimeUnit.MILLISECONDS) <= delay)
+        return;
+      nextRun.cancel(false);
+    }
+    nextRun = scheduler.schedule(this::run, Math.max(0, delay), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Tries to deliver all due entries and schedules the next run.
+   */
+  private void run() {
+    synchronized (this) {
+      // This run is being executed, so it mustn't keep the next one from being scheduled.
+      nextRun = null;
+    }
+    Database db = getDatabase();
+    try {
+      long now = System.currentTimeMillis();
+      List<OutboxEntry> due = db.getDueOutboxEntries(now, BATCH_SIZE);
+
+      // The entries per recipient, in the order they are due.
+      Map<String, List<OutboxEntry>> byRecipient = new LinkedHashMap<String, List<OutboxEntry>>();
+      for (OutboxEntry e : due)
+        byRecipient.computeIfAbsent(e.getRecipientUuid(), r -> new ArrayList<OutboxEntry>())
+            .add(e);
+
+      int batchSize = getSettings().getBatchSize();
+      for (Map.Entry<String, List<OutboxEntry>> entries : byRecipient.entrySet()) {
+        String recipient = entries.getKey();
+        List<OutboxEntry> list = entries.getValue();
+        Contact c;
+        try {
+          c = Core.instance.getContactList().getContact(recipient);
+        } catch (DBException e) {
+          c = null;
+        }
+        PeerWindow window = c == null ? null : Core.instance.getClient().getWindow(c.getAddress());
+        for (int i = 0; i < list.size(); i += batchSize) {
+          List<OutboxEntry> batch = list.subList(i, Math.min(list.size(), i + batchSize));
+          if (window != null && !window.isOpen()) {
+            holdBack(db, recipient, list.size() - i, window);
+            break;
+          }
+          lastDelivery = System.currentTimeMillis();
+          if (c != null && deliver(c, batch)) {
+            // Reachable again: it might have missed Messages of the other participants.
+            if (failures.remove(recipient) != null)
+              Core.instance.getSyncManager().reconnected(recipient);
+            for (OutboxEntry e : batch)
+              db.markDelivered(e.getMessage().getDatabaseId(), recipient);
+          } else if (window != null && !window.isOpen()) {
+            // Refused because the recipient's queue is full; that isn't a failure.
+            holdBack(db, recipient, list.size() - i, window);
+            break;
+          } else {
+            // Postpones the recipient's other entries, too.
+            int n = failures.merge(recipient, 1, Integer::sum);
+            db.postponeOutbox(batch.get(0).getMessage().getDatabaseId(), recipient,
+                System.currentTimeMillis() + backoff(n));
+            break;
+          }
+        }
+      }
+
+      if (due.size() == BATCH_SIZE) {
+        scheduleRun(0);
+      } else {
+        long next = db.getNextOutboxAttempt();
+        if (next >= 0)
+          scheduleRun(next - System.currentTimeMillis());
+      }
+    } catch (DBException | RuntimeException e) {
+      // Stopping here would stop the delivery until the next Message is queued.
+      Core.instance.printError("[Outbox] Couldn't process the outbox.", e, false);
+      scheduleRun(getSettings().getMaxRetryDelay());
+    }
+  }
+
+  /**
+   * Sends the Messages of entries to their recipient (together if there are several).
+   *
+   * @return whether the recipient acknowledged the Messages.
+   */
+  private boolean deliver(Contact recipient, List<OutboxEntry> entries) {
+    List<InternalMessage> messages = new ArrayList<InternalMessage>(entries.size());
+    for (OutboxEntry e : entries)
+      messages.add(e.getMessage());
+    return Core.instance.getMessageManager().interpreteOutgoingMessages(messages, recipient);
+  }
+
+  /**
+   * Postpones the entries of a recipient until its window may open again.
+   *
+   * @param entries The number of entries that are held back in this run.
+   */
+  private void holdBack(Database db, String recipient, int entries, PeerWindow window)
+      throws DBException {
+    heldBack.addAndGet(entries);
+    // No Message has the ID 0, so no attempt is counted.
+    db.postponeOutbox(0, recipient, System.currentTimeMillis() + window.getDelay());
+  }
+
+  /**
+   * @return the number of waiting entries per recipient UUID.
+   * @throws DBException if the outbox couldn't be read.
+   */
+  public Map<String, Integer> getQueueDepths() throws DBException {
+    return getDatabase().getOutboxSizes();
+  }
+
+  /**
+   * @return the number of entries that have been held back because the window of their recipient
+   *         was closed.
+   */
+  public long getHeldBack() {
+    return heldBack.get();
+  }
+
+  /**
+   * Calculates the delay before the next attempt: the retry delay is doubled with every
+   * consecutive failure (up to the maximal retry delay). The result is randomly chosen from the
+   * upper half of that value, so recipients that failed at the same time aren't retried at the
+   * same time.
+   *
+   * @param failures the number of consecutive failures.
+   * @return the delay in milliseconds.
+   */
+  long backoff(int failures) {
+    Settings s = getSettings();
+    long delay = s.getRetryDelay();
+    for (int i = 1; i < failures && delay < s.getMaxRetryDelay(); i++)
+      delay *= 2;
+    delay = Math.min(delay, s.getMaxRetryDelay());
+    return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+  }
+
+  private static Database getDatabase() {
+    return Core.instance.getDatabase();
+  }
+
+  private static Settings getSettings() {
+    return Core.instance.getSettings();
+  }
+}
@@ -0,0 +1,243 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.Core;
+import exceptions.DBException;
+import exchange.InternalMessage;
+
+/**
+ * The commands of other participants that wait for the user's confirmation.<br>
+ * An incoming command is parked here instead of asking the user right away, so the processing of
+ * the incoming Messages never waits for the user. A separate thread asks the user about the
+ * parked commands one after another with a confirm dialog of the user interface; a command can
+ * also be answered with <code>/accept &lt;id&gt;</code> or <code>/deny &lt;id&gt;</code> (if the
+ * user interface passes the user's input to the {@link CommandManager}). An accepted command is
+ * executed by a thread of the {@link CommandManager}. A command that hasn't been answered after
+ * the timeout of the settings expires; an answer of the dialog that comes later is ignored. At
+ * most {@value #MAX_PENDING} commands wait at once; if there are more, the oldest one is dropped.
+ */
+public class PendingCommands implements AutoCloseable {
+
+  /** The maximum number of waiting commands. */
+  static final int MAX_PENDING = 64;
+  /** The interval (in milliseconds) in which expired commands are removed. */
+  static final long EXPIRY_CHECK_INTERVAL = 1000;
+
+  /** A waiting command. */
+  public static class PendingCommand {
+    private final int id;
+    private final InternalMessage message;
+    private final String senderNickname;
+    private final long expiry;
+
+    PendingCommand(int id, InternalMessage message, String senderNickname, long expiry) {
+      this.id = id;
+      this.message = message;
+      this.senderNickname = senderNickname;
+      this.expiry = expiry;
+    }
+
+    /** @return the number the user answers the command with. */
+    public int getId() {
+      return id;
+    }
+
+    /** @return the Message of the command. */
+    public InternalMessage getMessage() {
+      return message;
+    }
+
+    /** @return the nickname of the Contact that sent the command. */
+    public String getSenderNickname() {
+      return senderNickname;
+    }
+
+    /** @return the time (in milliseconds) the command expires. */
+    public long getExpiry() {
+      return expiry;
+    }
+  }
+
+  private final CommandManager commands;
+  /** The waiting commands by their ID (oldest first). Is notified when a command is parked. */
+  private final Map<Integer, PendingCommand> pending = new LinkedHashMap<Integer, PendingCommand>();
+  private int nextId = 1;
+  /** The ID of the last command the user has been asked about. */
+  private int lastAsked = 0;
+
+  /** Asks the user about the waiting commands. */
+  private final Thread confirmer = new Thread(this::confirmAll, "Confirm");
+
+  /** Removes the expired commands. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PendingCommands");
+        t.setDaemon(true);
+        return t;
+      });
+
+  /**
+   * Constructs the queue and starts removing expired commands.
+   *
+   * @param commands Executes the accepted commands.
+   */
+  public PendingCommands(CommandManager commands) {
+    this.commands = commands;
+    scheduler.scheduleWithFixedDelay(this::expire, EXPIRY_CHECK_INTERVAL, EXPIRY_CHECK_INTERVAL,
+        TimeUnit.MILLISECONDS);
+    confirmer.setDaemon(true);
+    confirmer.start();
+  }
+
+  /**
+   * Parks an incoming command until the user answers it and tells the user about it.
+   *
+   * @param m The command.
+   * @return the ID of the command.
+   */
+  public int park(InternalMessage m) {
+    String nickname;
+    try {
+      nickname = Core.instance.getContactList().getContact(m.getUuidSender()).getNickname();
+    } catch (DBException e) {
+      nickname = m.getUuidSender();
+    }
+    long timeout = Core.instance.getSettings().getCommandTimeout();
+    PendingCommand dropped = null;
+    PendingCommand c;
+    synchronized (pending) {
+      c = new PendingCommand(nextId++, m, nickname, System.currentTimeMillis() + timeout * 1000);
+      pending.put(c.id, c);
+      if (pending.size() > MAX_PENDING) {
+        Iterator<PendingCommand> it = pending.values().iterator();
+        dropped = it.next();
+        it.remove();
+      }
+      pending.notifyAll();
+    }
+    if (dropped != null)
+      Core.instance.getUserInterface().printSystemMessage(
+          "Dropped command #" + dropped.id + " (too many commands are waiting).");
+    Core.instance.getUserInterface().printSystemMessage(
+        "#" + c.id + ": " + nickname + " wants to execute the following command: \""
+            + m.getContent() + "\" (answer with '/accept " + c.id + "' or '/deny " + c.id
+            + "' within " + timeout + " seconds)");
+    return c.id;
+  }
+
+  /**
+   * Accepts a waiting command; it is executed by a separate thread.
+   *
+   * @param id The ID of the command.
+   * @return whether the command was waiting.
+   */
+  public boolean accept(int id) {
+    PendingCommand c = remove(id);
+    if (c == null)
+      return false;
+    commands.submitMessageCommand(c.message);
+    return true;
+  }
+
+  /**
+   * Denies a waiting command.
+   *
+   * @param id The ID of the command.
+   * @return whether the command was waiting.
+   */
+  public boolean deny(int id) {
+    return remove(id) != null;
+  }
+
+  /**
+   * @return the waiting commands (oldest first).
+   */
+  public List<PendingCommand> getPending() {
+    synchronized (pending) {
+      return new ArrayList<PendingCommand>(pending.values());
+    }
+  }
+
+  /**
+   * Stops the expiry. The waiting commands are dropped.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    confirmer.interrupt();
+    synchronized (pending) {
+      pending.clear();
+    }
+  }
+
+  /**
+   * Asks the user about the waiting commands, the oldest first, until the queue is closed. Only
+   * this thread waits for the user.
+   */
+  private void confirmAll() {
+    try {
+      while (true) {
+        PendingCommand c;
+        synchronized (pending) {
+          while ((c = nextToAsk()) == null)
+            pending.wait();
+          lastAsked = c.id;
+        }
+        boolean accepted =
+            Core.instance.getUserInterface().confirmDialog(
+                "#" + c.id + ": " + c.senderNickname + " wants to execute the following command: \""
+                    + c.message.getContent() + "\"\nDo you want to execute it?", false);
+        if (!(accepted ? accept(c.id) : deny(c.id)))
+          Core.instance.getUserInterface().printSystemMessage(
+              "Command #" + c.id + " has already been answered or has expired.");
+      }
+    } catch (InterruptedException e) {
+      // Closed.
+    }
+  }
+
+  /**
+   * @return the oldest waiting command the user hasn't been asked about; <code>null</code> if
+   *         there is none.
+   */
+  private PendingCommand nextToAsk() {
+    for (PendingCommand c : pending.values())
+      if (c.id > lastAsked)
+        return c;
+    return null;
+  }
+
+  /**
+   * Removes the expired commands.
+   */
+  void expire() {
+    List<PendingCommand> expired = new ArrayList<PendingCommand>();
+    long now = System.currentTimeMillis();
+    synchronized (pending) {
+      for (Iterator<PendingCommand> it = pending.values().iterator(); it.hasNext();) {
+        PendingCommand c = it.next();
+        if (c.expiry <= now) {
+          expired.add(c);
+          it.remove();
+        }
+      }
+    }
+    for (PendingCommand c : expired)
+      Core.instance.getUserInterface().printSystemMessage(
+          "Command #" + c.id + " of " + c.senderNickname + " expired.");
+  }
+
+  private PendingCommand remove(int id) {
+    synchronized (pending) {
+      return pending.remove(id);
+    }
+  }
+}
@@ -0,0 +1,427 @@
+package manager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import main.Core;
+import database.Database;
+import exceptions.DBException;
+import exchange.InternalMessage;
+
+/**
+ * Delivers the incoming Messages of every sender in a Conversation in the order of their sequence
+ * numbers.<br>
+ * A Message that arrives before its predecessors is buffered until they arrive. The missing
+ * numbers (the gap) are requested from the sender right away and again every
+ * {@value #GAP_TIMEOUT} milliseconds; after {@value #MAX_REQUESTS} requests the gap is given up
+ * and the buffered Messages are delivered. A Conversation buffers at most {@value #MAX_BUFFERED}
+ * Messages; if there are more, the sender with the most buffered Messages gives up its gap. A
+ * Message that arrives after its gap has been given up is delivered at once.<br>
+ * Messages without a sequence number (of older versions) and the user's own Messages aren't
+ * buffered. The last sequence number delivered per sender is stored in the {@link Database}, so
+ * the order is kept across restarts.<br>
+ * Every Conversation has its own lock, and the Messages are delivered after it has been released
+ * (in order, by one thread at a time), so a slow delivery only holds up its own Conversation. A
+ * sender that hasn't sent anything for {@value #IDLE_TIMEOUT} milliseconds and has nothing
+ * buffered is forgotten; its last sequence number is read from the database again.
+ */
+public class ReorderBuffer implements AutoCloseable {
+
+  /** The maximum number of buffered Messages per Conversation. */
+  static final int MAX_BUFFERED = 256;
+  /** The time (in milliseconds) after which missing Messages are requested again. */
+  static final long GAP_TIMEOUT = 5000;
+  /** The number of requests for missing Messages before the gap is given up. */
+  static final int MAX_REQUESTS = 3;
+  /** The maximum number of missing ranges that are requested at once. */
+  static final int MAX_RANGES = 16;
+  /** The interval (in milliseconds) of the checks of the gaps. */
+  static final long CHECK_INTERVAL = 1000;
+  /** The time (in milliseconds) after which an idle sender is forgotten. */
+  static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+  /**
+   * Is asked to send missing Messages again.
+   */
+  @FunctionalInterface
+  public interface RetransmitRequester {
+    /**
+     * Asks a sender to send Messages again.
+     *
+     * @param convUuid The UUID of the Conversation.
+     * @param senderUuid The UUID of the sender.
+     * @param fromSequence The first missing sequence number.
+     * @param toSequence The last missing sequence number (inclusive).
+     */
+    public void requestRetransmit(String convUuid, String senderUuid, long fromSequence,
+        long toSequence);
+  }
+
+  /** The Messages of a sender in a Conversation. */
+  private static class Stream {
+    final String senderUuid;
+    /** The last sequence number delivered in order. */
+    long delivered;
+    /** Whether {@link #delivered} hasn't been stored yet. */
+    boolean dirty;
+    /** The Messages that wait for their predecessors by their sequence number. */
+    final TreeMap<Long, InternalMessage> buffered = new TreeMap<Long, InternalMessage>();
+    /** The time of the last request for the current gap. */
+    long requested;
+    /** The number of requests for the current gap. */
+    int requests;
+    /** The time of the last Message. */
+    long lastActive;
+
+    Stream(String senderUuid, long delivered) {
+      this.senderUuid = senderUuid;
+      this.delivered = delivered;
+      this.lastActive = System.currentTimeMillis();
+    }
+  }
+
+  /** The senders of a Conversation. Is locked while it is read or changed. */
+  private static class ConversationBuffer {
+    final Map<String, Stream> streams = new HashMap<String, Stream>();
+    /** The number of Messages buffered by all senders. */
+    int buffered;
+    /** The Messages that are in order, but haven't been delivered yet. */
+    final ArrayDeque<InternalMessage> ready = new ArrayDeque<InternalMessage>();
+    /** Whether a thread is delivering the ready Messages. */
+    boolean delivering;
+    /** Whether the buffer has been removed because it was idle. */
+    volatile boolean removed;
+  }
+
+  /** A request that is sent after the lock has been released. */
+  private static class Request {
+    final String convUuid, senderUuid;
+    final long from, to;
+
+    Request(String convUuid, String senderUuid, long from, long to) {
+      this.convUuid = convUuid;
+      this.senderUuid = senderUuid;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private final Consumer<InternalMessage> delivery;
+  private final RetransmitRequester requester;
+  /** The buffers by the UUID of their Conversation. Is locked only to look them up. */
+  private final Map<String, ConversationBuffer> conversations =
+      new HashMap<String, ConversationBuffer>();
+
+  /** Checks the gaps and stores the delivered sequence numbers. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ReorderBuffer");
+        t.setDaemon(true);
+        return t;
+      });
+
+  /**
+   * Constructs a buffer.
+   *
+   * @param delivery Is called with every Message in order (while the buffer isn't locked).
+   * @param requester Is asked to request missing Messages.
+   */
+  public ReorderBuffer(Consumer<InternalMessage> delivery, RetransmitRequester requester) {
+    this.delivery = delivery;
+    this.requester = requester;
+  }
+
+  /**
+   * Starts the regular checks of the gaps.
+   */
+  public void start() {
+    scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds a received Message. It and the buffered Messages that follow it are delivered if its
+   * predecessors have been delivered.
+   *
+   * @param m The Message.
+   * @throws DBException if the last delivered sequence number of the sender couldn't be read.
+   */
+  public void offer(InternalMessage m) throws DBException {
+    if (m.getSequence() == 0 || m.getUuidSender().equals(Core.instance.getUser().getUuid())) {
+      delivery.accept(m);
+      return;
+    }
+    List<Request> requests = new ArrayList<Request>();
+    ConversationBuffer conv;
+    do
+      conv = getConversation(m.getUuidConversation());
+    while (!add(conv, m, requests));
+    deliver(conv);
+    send(requests);
+  }
+
+  /**
+   * Stops the checks and stores the delivered sequence numbers. The buffered Messages are
+   * dropped; after the next start they are requested again when their sender's next Message
+   * arrives.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    try {
+      store();
+    } catch (DBException e) {
+      Core.instance.printError("[ReorderBuffer] Couldn't store the sequence numbers.", e, false);
+    }
+  }
+
+  /**
+   * Requests the gaps that timed out again or gives them up, stores the delivered sequence
+   * numbers and forgets the idle senders.
+   */
+  void check() {
+    List<Request> requests = new ArrayList<Request>();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, ConversationBuffer> e : getConversations()) {
+      ConversationBuffer conv = e.getValue();
+      synchronized (conv) {
+        for (Stream s : conv.streams.values())
+          if (!s.buffered.isEmpty() && now - s.requested >= GAP_TIMEOUT) {
+            if (s.requests < MAX_REQUESTS) {
+              s.requested = now;
+              s.requests++;
+              addMissing(e.getKey(), s, requests);
+            } else {
+              conv.buffered -= giveUp(e.getKey(), conv, s, requests);
+            }
+          }
+      }
+      deliver(conv);
+    }
+    send(requests);
+    try {
+      store();
+      evict(now);
+    } catch (DBException e) {
+      Core.instance.printError("[ReorderBuffer] Couldn't store the sequence numbers.", e, false);
+    }
+  }
+
+  /**
+   * Adds a sequenced Message to the buffer of its Conversation.
+   *
+   * @return <code>false</code> if the buffer has been removed in the meantime.
+   */
+  private boolean add(ConversationBuffer conv, InternalMessage m, List<Request> requests)
+      throws DBException {
+    synchronized (conv) {
+      if (conv.removed)
+        return false;
+      long seq = m.getSequence();
+      Stream s = getStream(m.getUuidConversation(), conv, m.getUuidSender());
+      s.lastActive = System.currentTimeMillis();
+      if (seq <= s.delivered) {
+        // Late: its gap has been given up.
+        conv.ready.add(m);
+      } else if (seq == s.delivered + 1) {
+        conv.ready.add(m);
+        s.delivered = seq;
+        s.dirty = true;
+        conv.buffered -= drain(conv, s);
+        if (!s.buffered.isEmpty()) {
+          // The next gap has been requested together with the first one.
+          s.requested = System.currentTimeMillis();
+          s.requests = 1;
+        }
+      } else if (!s.buffered.containsKey(seq)) {
+        boolean newGap = s.buffered.isEmpty();
+        long last = newGap ? s.delivered : s.buffered.lastKey();
+        s.buffered.put(seq, m);
+        conv.buffered++;
+        if (newGap)
+          startGap(m.getUuidConversation(), s, requests);
+        else if (seq > last + 1)
+          requests.add(new Request(m.getUuidConversation(), s.senderUuid, last + 1, seq - 1));
+        while (conv.buffered > MAX_BUFFERED)
+          conv.buffered -= giveUp(m.getUuidConversation(), conv, largest(conv), requests);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Delivers the ready Messages of a Conversation without holding its lock. If another thread is
+   * delivering them already, it delivers the new ones too, so the order is kept.
+   */
+  private void deliver(ConversationBuffer conv) {
+    synchronized (conv) {
+      if (conv.delivering || conv.ready.isEmpty())
+        return;
+      conv.delivering = true;
+    }
+    try {
+      InternalMessage m;
+      while ((m = nextReady(conv)) != null)
+        delivery.accept(m);
+    } catch (RuntimeException e) {
+      synchronized (conv) {
+        conv.delivering = false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return the next ready Message; <code>null</code> if there is none (the delivery ends then).
+   */
+  private static InternalMessage nextReady(ConversationBuffer conv) {
+    synchronized (conv) {
+      InternalMessage m = conv.ready.poll();
+      if (m == null)
+        conv.delivering = false;
+      return m;
+    }
+  }
+
+  /**
+   * Stores the sequence numbers that have been delivered since the last call.
+   */
+  private void store() throws DBException {
+    Database db = Core.instance.getDatabase();
+    for (Map.Entry<String, ConversationBuffer> e : getConversations())
+      synchronized (e.getValue()) {
+        for (Stream s : e.getValue().streams.values())
+          if (s.dirty) {
+            db.setLastSequence(e.getKey(), s.senderUuid, s.delivered);
+            s.dirty = false;
+          }
+      }
+  }
+
+  /**
+   * Forgets the senders that have been idle for {@value #IDLE_TIMEOUT} milliseconds, have nothing
+   * buffered and whose sequence number has been stored, and then the Conversations without
+   * senders.
+   */
+  private void evict(long now) {
+    for (Map.Entry<String, ConversationBuffer> e : getConversations()) {
+      ConversationBuffer conv = e.getValue();
+      synchronized (conv) {
+        conv.streams.values().removeIf(
+            s -> s.buffered.isEmpty() && !s.dirty && now - s.lastActive >= IDLE_TIMEOUT);
+        if (!conv.streams.isEmpty() || !conv.ready.isEmpty() || conv.delivering)
+          continue;
+        conv.removed = true;
+      }
+      synchronized (conversations) {
+        conversations.remove(e.getKey(), conv);
+      }
+    }
+  }
+
+  /**
+   * Starts a new gap: the missing Messages before the buffered ones are requested.
+   */
+  private void startGap(String convUuid, Stream s, List<Request> requests) {
+    s.requested = System.currentTimeMillis();
+    s.requests = 1;
+    addMissing(convUuid, s, requests);
+  }
+
+  /**
+   * Adds the requests for the missing ranges between the delivered and the buffered Messages.
+   */
+  private static void addMissing(String convUuid, Stream s, List<Request> requests) {
+    long next = s.delivered + 1;
+    int ranges = 0;
+    for (long seq : s.buffered.keySet()) {
+      if (seq > next) {
+        requests.add(new Request(convUuid, s.senderUuid, next, seq - 1));
+        if (++ranges == MAX_RANGES)
+          return;
+      }
+      next = seq + 1;
+    }
+  }
+
+  /**
+   * Gives up the gap of a sender: the buffered Messages up to the next gap are ready and the next
+   * gap is requested.
+   *
+   * @return the number of ready Messages.
+   */
+  private int giveUp(String convUuid, ConversationBuffer conv, Stream s, List<Request> requests) {
+    s.delivered = s.buffered.firstKey() - 1;
+    int n = drain(conv, s);
+    if (!s.buffered.isEmpty())
+      startGap(convUuid, s, requests);
+    return n;
+  }
+
+  /**
+   * Moves the buffered Messages that follow the delivered ones without a gap to the ready ones.
+   *
+   * @return the number of moved Messages.
+   */
+  private static int drain(ConversationBuffer conv, Stream s) {
+    int n = 0;
+    InternalMessage next;
+    while ((next = s.buffered.remove(s.delivered + 1)) != null) {
+      conv.ready.add(next);
+      s.delivered++;
+      n++;
+    }
+    if (n > 0)
+      s.dirty = true;
+    return n;
+  }
+
+  /** @return the sender with the most buffered Messages. */
+  private static Stream largest(ConversationBuffer conv) {
+    Stream largest = null;
+    for (Stream s : conv.streams.values())
+      if (largest == null || s.buffered.size() > largest.buffered.size())
+        largest = s;
+    return largest;
+  }
+
+  private ConversationBuffer getConversation(String convUuid) {
+    synchronized (conversations) {
+      ConversationBuffer conv = conversations.get(convUuid);
+      if (conv == null || conv.removed)
+        conversations.put(convUuid, conv = new ConversationBuffer());
+      return conv;
+    }
+  }
+
+  /** @return a copy of the buffers by the UUID of their Conversation. */
+  private List<Map.Entry<String, ConversationBuffer>> getConversations() {
+    synchronized (conversations) {
+      return new ArrayList<Map.Entry<String, ConversationBuffer>>(
+          new HashMap<String, ConversationBuffer>(conversations).entrySet());
+    }
+  }
+
+  private static Stream getStream(String convUuid, ConversationBuffer conv, String senderUuid)
+      throws DBException {
+    Stream s = conv.streams.get(senderUuid);
+    if (s == null) {
+      long delivered = Core.instance.getDatabase().getLastSequence(convUuid, senderUuid);
+      conv.streams.put(senderUuid, s = new Stream(senderUuid, delivered));
+    }
+    return s;
+  }
+
+  private void send(List<Request> requests) {
+    for (Request r : requests)
+      requester.requestRetransmit(r.convUuid, r.senderUuid, r.from, r.to);
+  }
+}
@@ -0,0 +1,89 @@
+package manager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.Core;
+import misc.Settings;
+import database.Database;
+import exceptions.DBException;
+
+/**
+ * Keeps the messages table small.<br>
+ * In regular intervals, messages that are older than the configured age and the oldest messages
+ * of Conversations with more than the configured number of messages are moved to the (compressed)
+ * archive of the {@link Database}. Afterwards, a part of the freed space is given back to the file
+ * system with an incremental vacuum. Archived messages stay in the history.
+ */
+public class RetentionManager implements AutoCloseable {
+
+  /**
+   * The maximum number of messages that are archived in one transaction, so writes of other
+   * threads don't have to wait long.
+   */
+  private static final int BATCH_SIZE = 500;
+
+  /** Runs the retention. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Retention");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+
+  /**
+   * Starts the retention. The first run is done after one interval, so it doesn't slow down the
+   * start of the program.
+   */
+  public void start() {
+    long interval = getSettings().getRetentionInterval();
+    scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Stops the retention.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Archives the old messages and frees space in the database file.
+   */
+  void run() {
+    Database db = Core.instance.getDatabase();
+    Settings s = getSettings();
+    try {
+      int archived = 0;
+      if (s.getArchiveAfterDays() > 0) {
+        long olderThan =
+            System.currentTimeMillis() - TimeUnit.DAYS.toMillis(s.getArchiveAfterDays());
+        int n;
+        do {
+          n = db.archiveMessages(olderThan, BATCH_SIZE);
+          archived += n;
+        } while (n == BATCH_SIZE && !Thread.currentThread().isInterrupted());
+      }
+      if (s.getMaxConversationMessages() > 0) {
+        int n;
+        do {
+          n = db.archiveOverflow(s.getMaxConversationMessages(), BATCH_SIZE);
+          archived += n;
+        } while (n == BATCH_SIZE && !Thread.currentThread().isInterrupted());
+      }
+      db.incrementalVacuum(s.getVacuumPages());
+      if (archived > 0)
+        Core.instance.getUserInterface().printDebugMessage(
+            "[Retention] Archived " + archived + " messages.");
+    } catch (DBException e) {
+      Core.instance.printError("[Retention] Couldn't archive the messages.", e, false);
+    }
+  }
+
+  private static Settings getSettings() {
+    return Core.instance.getSettings();
+  }
+}
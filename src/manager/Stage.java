@@ -0,0 +1,214 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Core;
+
+/**
+ * A stage of a pipeline: a bounded queue and the worker threads that process its elements.<br>
+ * The elements are passed to the handler in batches of at most the batch size (as many as are
+ * waiting), so a stage that writes to the database can store them together. If the queue is full,
+ * {@link #offer(Object)} rejects an element and {@link #put(Object)} waits for space, so a slow
+ * stage slows down the stages in front of it instead of letting the queues grow.<br>
+ * The stage counts the processed, failed and rejected elements and the time spent in the
+ * handler.
+ *
+ * @param <T> The type of the elements.
+ */
+public class Stage<T> implements AutoCloseable {
+
+  /** The time (in milliseconds) {@link #close()} waits for the queue to be processed. */
+  static final long CLOSE_TIMEOUT = 5000;
+
+  /**
+   * Processes the elements of a stage.
+   *
+   * @param <T> The type of the elements.
+   */
+  @FunctionalInterface
+  public interface Handler<T> {
+    /**
+     * Processes a batch of elements.
+     *
+     * @param batch The elements (at least one).
+     * @throws Exception if the batch couldn't be processed. The elements are counted as failed.
+     */
+    public void handle(List<T> batch) throws Exception;
+  }
+
+  private final String name;
+  private final BlockingQueue<T> queue;
+  private final int maxBatch;
+  private final Handler<T> handler;
+  private final ExecutorService workers;
+  private volatile boolean closed;
+
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final AtomicInteger maxQueueSize = new AtomicInteger();
+
+  /**
+   * Constructs a stage and starts its workers.
+   *
+   * @param name The name of the stage (and its threads).
+   * @param threads The number of worker threads.
+   * @param capacity The capacity of the queue.
+   * @param maxBatch The maximum number of elements that are passed to the handler at once.
+   * @param handler Processes the elements.
+   * @throws IllegalArgumentException if <code>threads</code>, <code>capacity</code> or
+   *         <code>maxBatch</code> <= 0
+   */
+  public Stage(String name, int threads, int capacity, int maxBatch, Handler<T> handler) {
+    if (threads <= 0 || capacity <= 0 || maxBatch <= 0)
+      throw new IllegalArgumentException(
+          "The number of threads, the capacity and the batch size must be positive.");
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<T>(capacity);
+    this.maxBatch = maxBatch;
+    this.handler = handler;
+    AtomicInteger n = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    for (int i = 0; i < threads; i++)
+      workers.execute(this::work);
+  }
+
+  /**
+   * Adds an element if there is space in the queue.
+   *
+   * @param e The element.
+   * @return whether the element has been added.
+   */
+  public boolean offer(T e) {
+    if (!closed && queue.offer(e)) {
+      maxQueueSize.accumulateAndGet(queue.size(), Math::max);
+      return true;
+    }
+    rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Adds an element and waits for space in the queue if necessary.
+   *
+   * @param e The element.
+   * @throws InterruptedException if the thread has been interrupted while waiting.
+   */
+  public void put(T e) throws InterruptedException {
+    queue.put(e);
+    maxQueueSize.accumulateAndGet(queue.size(), Math::max);
+  }
+
+  /**
+   * Stops accepting elements with {@link #offer(Object)}, processes the queued ones (for at most
+   * {@value #CLOSE_TIMEOUT} milliseconds) and stops the workers.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+        workers.shutdownNow();
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void work() {
+    List<T> batch = new ArrayList<T>(maxBatch);
+    try {
+      while (!closed || !queue.isEmpty()) {
+        T first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null)
+          continue;
+        batch.add(first);
+        queue.drainTo(batch, maxBatch - 1);
+        long start = System.nanoTime();
+        try {
+          handler.handle(batch);
+          processed.addAndGet(batch.size());
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          failed.addAndGet(batch.size());
+          Core.instance.printError("[" + name + "] Couldn't process " + batch.size()
+              + " element(s).", e, false);
+        }
+        busyNanos.addAndGet(System.nanoTime() - start);
+        batches.incrementAndGet();
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // Closed.
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** @return the number of elements in the queue. */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /** @return the number of elements that can be added before the queue is full. */
+  public int getRemainingCapacity() {
+    return closed ? 0 : queue.remainingCapacity();
+  }
+
+  /** @return the largest number of elements that have been in the queue. */
+  public int getMaxQueueSize() {
+    return maxQueueSize.get();
+  }
+
+  /** @return the number of successfully processed elements. */
+  public long getProcessed() {
+    return processed.get();
+  }
+
+  /** @return the number of elements whose processing failed. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** @return the number of elements that {@link #offer(Object)} rejected. */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /** @return the average time (in microseconds) the handler needed per element. */
+  public double getAverageMicros() {
+    long n = processed.get() + failed.get();
+    return n == 0 ? 0 : busyNanos.get() / 1000.0 / n;
+  }
+
+  /** @return the average number of elements per batch. */
+  public double getAverageBatch() {
+    long b = batches.get();
+    return b == 0 ? 0 : (double) (processed.get() + failed.get()) / b;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: queued %d (max %d), processed %d, failed %d, rejected %d, "
+        + "%.1f us/element, %.1f elements/batch", name, getQueueSize(), getMaxQueueSize(),
+        getProcessed(), getFailed(), getRejected(), getAverageMicros(), getAverageBatch());
+  }
+}
@@ -0,0 +1,304 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.Core;
+import persons.Contact;
+import coversations.Conversation;
+import database.Database;
+import exceptions.DBException;
+import exceptions.FormatException;
+import exchange.InternalMessage;
+
+/**
+ * Synchronizes the histories of the Conversations with the other participants (anti-entropy), so
+ * a participant that was offline gets the Messages it missed.<br>
+ * The history is divided into a tree of time buckets: a bucket of level 0 is
+ * {@value #LEAF_SECONDS} seconds long and a bucket of level <i>n</i> + 1 consists of
+ * {@value #FANOUT} buckets of level <i>n</i>. Both participants summarize their buckets by the
+ * number of Messages and the sum of their digests (see {@link Database#getSyncBuckets}) and
+ * compare them from the root down:
+ * <ol>
+ * <li><code>/sync &lt;level&gt; &lt;first index&gt; &lt;count:sum&gt;...</code> sends the
+ * summaries of consecutive buckets. The receiver compares them with its own; for every bucket that
+ * differs it either answers with the summaries of the bucket's children or, if it has at most
+ * {@value #MAX_DIGESTS} Messages in the bucket (or the bucket is a leaf), with its digests.</li>
+ * <li><code>/sync-have &lt;level&gt; &lt;index&gt; &lt;reply&gt; &lt;lo&gt; &lt;hi&gt;
+ * &lt;digest&gt;...</code> sends the digests (between lo and hi) of the Messages in a bucket. The
+ * receiver sends the Messages the other one doesn't have and, if it misses Messages itself and
+ * <code>reply</code> is <code>1</code>, answers with its own digests.</li>
+ * </ol>
+ * Equal buckets aren't looked into, so the traffic grows with the difference of the histories
+ * and not with their size. The missing Messages are sent like new ones (so the receiver drops
+ * duplicates and puts them in order), at most {@value #MAX_TRANSFER} per bucket and request; the
+ * rest follows with the next synchronization.<br>
+ * A Conversation is synchronized with every participant in the interval of the settings and when
+ * the {@link Outbox} reaches a participant again after failed deliveries. Only a history stored in
+ * the {@link Database} is synchronized; with the message log the requests of the others are
+ * ignored, too. The requests are handled by a separate thread, so the server isn't blocked by the
+ * answers.
+ */
+public class SyncManager implements AutoCloseable {
+
+  /** The command that sends the summaries of buckets. */
+  public static final String SYNC_COMMAND = "/sync";
+  /** The command that sends the digests of a bucket. */
+  public static final String HAVE_COMMAND = "/sync-have";
+
+  /** The length of a bucket of level 0 in seconds. */
+  static final long LEAF_SECONDS = 60;
+  /** The number of children of a bucket. */
+  static final int FANOUT = 16;
+  /** The level of the root bucket; it covers about 500 years from 1970. */
+  static final int ROOT_LEVEL = 7;
+  /** The maximum number of digests per request. */
+  static final int MAX_DIGESTS = 200;
+  /** The maximum number of Messages that are sent per bucket and request. */
+  static final int MAX_TRANSFER = 256;
+
+  /** Sends the requests and answers. */
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Sync");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+
+  /**
+   * Starts the regular synchronization (if it is enabled in the settings). The history is only
+   * synchronized if it is stored in the database, not in the message log.
+   */
+  public void start() {
+    long interval = Core.instance.getSettings().getSyncInterval();
+    if (interval > 0 && Core.instance.getMessageStore() == getDatabase())
+      scheduler.scheduleWithFixedDelay(this::syncAll, interval, interval, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Stops the synchronization.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Synchronizes all Conversations with a Contact that has become reachable again.
+   *
+   * @param contactUuid The UUID of the Contact.
+   */
+  public void reconnected(String contactUuid) {
+    if (Core.instance.getMessageStore() != getDatabase())
+      return;
+    scheduler.execute(() -> {
+      try {
+        for (Conversation conv : getDatabase().getConversations())
+          for (Contact c : getDatabase().getParticipants(conv.getUuid()))
+            if (c.getUuid().equals(contactUuid))
+              sync(conv.getUuid(), c);
+      } catch (DBException e) {
+        Core.instance.printError("[Sync] Couldn't read the Conversations.", e, false);
+      }
+    });
+  }
+
+  /**
+   * Handles a request of another participant (see {@link #isSyncRequest(InternalMessage)}) on
+   * the thread of the synchronization. Requests are ignored if the history is stored in the
+   * message log: the database then only has the user's own Messages, so every bucket would
+   * differ and the whole history would be sent.
+   *
+   * @param request The request.
+   */
+  public void handle(InternalMessage request) {
+    if (Core.instance.getMessageStore() != getDatabase()) {
+      Core.instance.getUserInterface().printDebugMessage(
+          "Ignored a sync request, the history is stored in the message log.");
+      return;
+    }
+    scheduler.execute(() -> {
+      try {
+        Contact peer =
+            MessageManager.findParticipant(request.getUuidConversation(),
+                request.getUuidSender());
+        if (peer == null) {
+          Core.instance.getUserInterface().printDebugMessage(
+              "Ignored request of a Contact that isn't a participant.");
+          return;
+        }
+        String[] args = request.getContent().split(" ");
+        if (args[0].equals(HAVE_COMMAND))
+          handleHave(request.getUuidConversation(), peer, args);
+        else
+          handleSummaries(request.getUuidConversation(), peer, args);
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        Core.instance.getUserInterface().printDebugMessage(
+            "Ignored invalid request: \"" + request.getContent() + "\"");
+      } catch (DBException e) {
+        Core.instance.printError("[Sync] Couldn't answer a request.", e, false);
+      }
+    });
+  }
+
+  /**
+   * @param m An incoming Message.
+   * @return whether the Message is a request of the synchronization.
+   */
+  public static boolean isSyncRequest(InternalMessage m) {
+    return m.isCommand()
+        && (m.getContent().startsWith(SYNC_COMMAND + " ") || m.getContent().startsWith(
+            HAVE_COMMAND + " "));
+  }
+
+  /**
+   * Synchronizes all Conversations with all their participants.
+   */
+  void syncAll() {
+    try {
+      String user = Core.instance.getUser().getUuid();
+      for (Conversation conv : getDatabase().getConversations())
+        for (Contact c : getDatabase().getParticipants(conv.getUuid()))
+          if (!c.getUuid().equals(user))
+            sync(conv.getUuid(), c);
+    } catch (DBException e) {
+      Core.instance.printError("[Sync] Couldn't read the Conversations.", e, false);
+    }
+  }
+
+  /**
+   * Starts the synchronization of a Conversation with a participant: sends the summary of the
+   * root bucket.
+   */
+  private void sync(String convUuid, Contact peer) throws DBException {
+    send(convUuid, peer, SYNC_COMMAND + " " + ROOT_LEVEL + " 0 "
+        + summaries(convUuid, ROOT_LEVEL + 1, 0, 1));
+  }
+
+  /**
+   * Compares the summaries of the other participant with the own ones.
+   */
+  private void handleSummaries(String convUuid, Contact peer, String[] args) throws DBException {
+    int level = Integer.parseInt(args[1]);
+    long first = Long.parseLong(args[2]);
+    int n = args.length - 3;
+    if (level < 0 || level > ROOT_LEVEL || first < 0 || n < 1 || n > FANOUT)
+      throw new NumberFormatException("Invalid buckets.");
+    long size = bucketSeconds(level);
+    Map<Long, long[]> mine = getDatabase().getSyncBuckets(convUuid, size, first * size,
+        (first + n) * size);
+    for (int i = 0; i < n; i++) {
+      long index = first + i;
+      String[] theirs = args[3 + i].split(":");
+      long[] own = mine.getOrDefault(index, new long[2]);
+      if (own[0] == Long.parseLong(theirs[0], 16) && own[1] == Long.parseLong(theirs[1], 16))
+        continue;
+      if (level == 0 || own[0] <= MAX_DIGESTS)
+        sendHave(convUuid, peer, level, index, true, 0, Long.MAX_VALUE);
+      else
+        send(convUuid, peer, SYNC_COMMAND + " " + (level - 1) + " " + index * FANOUT + " "
+            + summaries(convUuid, level, index * FANOUT, FANOUT));
+    }
+  }
+
+  /**
+   * Sends the Messages the other participant misses and, if requested, the own digests.
+   */
+  private void handleHave(String convUuid, Contact peer, String[] args) throws DBException {
+    int level = Integer.parseInt(args[1]);
+    long index = Long.parseLong(args[2]);
+    boolean reply = args[3].equals("1");
+    long lo = Long.parseLong(args[4], 16), hi = Long.parseLong(args[5], 16);
+    if (level < 0 || level > ROOT_LEVEL || index < 0 || lo > hi)
+      throw new NumberFormatException("Invalid bucket.");
+    Set<Long> theirs = new HashSet<Long>();
+    for (int i = 6; i < args.length; i++)
+      theirs.add(Long.parseLong(args[i], 16));
+
+    long size = bucketSeconds(level);
+    MessageManager mm = Core.instance.getMessageManager();
+    for (InternalMessage m : getDatabase().getSyncMessages(convUuid, index * size,
+        (index + 1) * size, d -> d >= lo && d <= hi && !theirs.contains(d), MAX_TRANSFER))
+      mm.interpreteOutgoingMessage(m, peer);
+
+    if (reply) {
+      Set<Long> own = new HashSet<Long>();
+      for (long d : getDatabase().getSyncDigests(convUuid, index * size, (index + 1) * size))
+        own.add(d);
+      if (!own.containsAll(theirs))
+        sendHave(convUuid, peer, level, index, false, lo, hi);
+    }
+  }
+
+  /**
+   * Sends the own digests (between lo and hi) of a bucket. If there are more than
+   * {@value #MAX_DIGESTS}, they are split into several requests with smaller ranges.
+   */
+  private void sendHave(String convUuid, Contact peer, int level, long index, boolean reply,
+      long lo, long hi) throws DBException {
+    long size = bucketSeconds(level);
+    long[] all = getDatabase().getSyncDigests(convUuid, index * size, (index + 1) * size);
+    long[] own = Arrays.stream(all).filter(d -> d >= lo && d <= hi).distinct().toArray();
+    int from = 0;
+    do {
+      int to = Math.min(own.length, from + MAX_DIGESTS);
+      long chunkLo = from == 0 ? lo : own[from];
+      long chunkHi = to == own.length ? hi : own[to] - 1;
+      StringBuilder sb = new StringBuilder(HAVE_COMMAND);
+      sb.append(' ').append(level).append(' ').append(index).append(' ').append(reply ? 1 : 0)
+          .append(' ').append(Long.toHexString(chunkLo)).append(' ')
+          .append(Long.toHexString(chunkHi));
+      for (int i = from; i < to; i++)
+        sb.append(' ').append(Long.toHexString(own[i]));
+      send(convUuid, peer, sb.toString());
+      from = to;
+    } while (from < own.length);
+  }
+
+  /**
+   * @return the summaries of <code>n</code> buckets of the level below <code>parentLevel</code>
+   *         as <code>count:sum</code> (hex), separated by spaces.
+   */
+  private static String summaries(String convUuid, int parentLevel, long first, int n)
+      throws DBException {
+    long size = bucketSeconds(parentLevel - 1);
+    Map<Long, long[]> buckets =
+        getDatabase().getSyncBuckets(convUuid, size, first * size, (first + n) * size);
+    List<String> result = new ArrayList<String>(n);
+    for (long i = first; i < first + n; i++) {
+      long[] b = buckets.getOrDefault(i, new long[2]);
+      result.add(Long.toHexString(b[0]) + ":" + Long.toHexString(b[1]));
+    }
+    return String.join(" ", result);
+  }
+
+  /** @return the length of a bucket of the given level in seconds. */
+  static long bucketSeconds(int level) {
+    long size = LEAF_SECONDS;
+    for (int i = 0; i < level; i++)
+      size *= FANOUT;
+    return size;
+  }
+
+  private static void send(String convUuid, Contact peer, String content) {
+    try {
+      InternalMessage m =
+          new InternalMessage(content, convUuid, Core.instance.getUser().getUuid(), true);
+      Core.instance.getMessageManager().interpreteOutgoingMessage(m, peer);
+    } catch (FormatException e) {
+      Core.instance.printError("[Sync] Couldn't create a request.", e, false);
+    }
+  }
+
+  private static Database getDatabase() {
+    return Core.instance.getDatabase();
+  }
+}
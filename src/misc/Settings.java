@@ -11,11 +11,26 @@ import java.io.File;
  * <ul>
  * <li>its save location
  * <li>the save location of the database
+ * <li>the number of read-only database connections
+ * <li>the size from which stored messages are compressed
+ * <li>the message store (SQLite or log) and the location and segment size of the log
+ * <li>the retention of the message history (archive age, per-conversation limit, interval and
+ * vacuum size)
+ * <li>the interval of the history synchronization with the other participants
+ * <li>the number of cached Conversations
+ * <li>the queue size and the number of decryption threads of the incoming Messages
+ * <li>the time other participants' commands wait for the user's confirmation
  * <li>the delimiter (final)<br>
  * <li>the message length limit<br>
  * <li>the header length limit<br>
  * <li>the nickname length limit<br>
  * <li>the connection timeout<br>
+ * <li>the initial and maximal retry delay of unsent messages<br>
+ * <li>the linger time and size of the batches of outgoing messages<br>
+ * <li>the receive window of the flow control<br>
+ * <li>the maximum number of connections and the rate limit per source address of the server<br>
+ * <li>the time the server waits for a whole frame<br>
+ * <li>the mode of the server (single-threaded or a virtual thread per connection)<br>
  * <li>the session key length<br>
  * <li>the public and private key<br>
  * <li>the active UI<br>
@@ -32,6 +47,9 @@ public class Settings extends ConfiguarionFile {
    */
   private final char delimiter = '\u001D';
 
+  /** The maximum number of messages that are sent together (see {@link #setBatchSize(int)}). */
+  public static final int MAX_BATCH_SIZE = 64;
+
   /** The message length limit in characters. */
   @Data(defaultValue = "4096")
   private int msgLenLimit = 4096;
@@ -47,6 +65,12 @@ public class Settings extends ConfiguarionFile {
   /** The socket timeout time in milliseconds. */
   @Data(defaultValue = "1000")
   private int connectionTimeout = 1000;
+  /** The delay before the first retry of an unsent message in milliseconds. */
+  @Data(defaultValue = "2000")
+  private int retryDelay = 2000;
+  /** The maximal delay between two retries of an unsent message in milliseconds. */
+  @Data(defaultValue = "600000")
+  private int maxRetryDelay = 600000;
 
   /**
    * The boolean that determines if the program starts in terminal or GUI mode.
@@ -76,6 +100,76 @@ public class Settings extends ConfiguarionFile {
   @Data(defaultValue = "./data/messengerDB.sqlite", filePath = true)
   private String dbLocation;
 
+  /** The number of read-only connections to the database. */
+  @Data(defaultValue = "4")
+  private int dbReaders = 4;
+
+  /** The store of the message history: "sqlite" (the database) or "log". */
+  @Data(defaultValue = "sqlite")
+  private String messageStore = "sqlite";
+  /** The directory of the message log. */
+  @Data(defaultValue = "./data/messages", filePath = true)
+  private String messageLogLocation;
+  /** The size of a segment of the message log in megabytes. */
+  @Data(defaultValue = "64")
+  private int messageLogSegmentSize = 64;
+
+  /** The size in bytes from which the content of stored messages is compressed; 0 disables it. */
+  @Data(defaultValue = "128")
+  private int compressionThreshold = 128;
+
+  /** The age in days after which messages are archived; 0 disables it. */
+  @Data(defaultValue = "365")
+  private int archiveAfterDays = 365;
+  /** The number of messages per Conversation that are kept unarchived; 0 disables the limit. */
+  @Data(defaultValue = "0")
+  private int maxConversationMessages = 0;
+  /** The time between two runs of the retention in minutes. */
+  @Data(defaultValue = "60")
+  private int retentionInterval = 60;
+  /** The maximal number of database pages that are freed per retention run. */
+  @Data(defaultValue = "1024")
+  private int vacuumPages = 1024;
+  /** The time between two synchronizations of the history in minutes; 0 disables them. */
+  @Data(defaultValue = "60")
+  private int syncInterval = 60;
+  /** The maximal number of Conversations that are kept in memory. */
+  @Data(defaultValue = "256")
+  private int conversationCacheSize = 256;
+  /** The capacity of every queue of the incoming Messages. */
+  @Data(defaultValue = "1024")
+  private int incomingQueueSize = 1024;
+  /** The number of threads that decrypt incoming Messages; 0 uses one per processor. */
+  @Data(defaultValue = "0")
+  private int decryptThreads = 0;
+  /** The time (in seconds) a command of another participant waits for the user's answer. */
+  @Data(defaultValue = "120")
+  private int commandTimeout = 120;
+  /** The time (in milliseconds) outgoing messages wait for more messages to be batched with. */
+  @Data(defaultValue = "10")
+  private int batchLinger = 10;
+  /** The maximum number of messages that are sent to a recipient together. */
+  @Data(defaultValue = "32")
+  private int batchSize = 32;
+  /** The maximum number of messages a peer may send without waiting for the processing. */
+  @Data(defaultValue = "64")
+  private int receiveWindow = 64;
+  /** The maximum number of connections the server handles at once. */
+  @Data(defaultValue = "64")
+  private int maxConnections = 64;
+  /** The number of connections per second the server accepts from one source address. */
+  @Data(defaultValue = "50")
+  private int rateLimit = 50;
+  /** The number of connections the server accepts from one source address at once. */
+  @Data(defaultValue = "100")
+  private int rateBurst = 100;
+  /** The time in milliseconds the server waits for the whole frame of a connection. */
+  @Data(defaultValue = "10000")
+  private int frameTimeout = 10000;
+  /** How the server handles connections: "single" (one after the other) or "virtual". */
+  @Data(defaultValue = "single")
+  private String serverMode = "single";
+
   /**
    * Constructs a new {@code Settings } object and loads its values from the {@code messenger.conf}
    * file.
@@ -189,6 +283,43 @@ public class Settings extends ConfiguarionFile {
         this.validateInt(conectionTimeout, 1000, Integer.MAX_VALUE, this.connectionTimeout);
   }
 
+  /**
+   * Gets the delay before the first retry of an unsent message in milliseconds. Every further
+   * retry doubles the delay (up to {@link #getMaxRetryDelay()}).
+   */
+  public int getRetryDelay() {
+    return retryDelay;
+  }
+
+  /**
+   * Sets the delay before the first retry of an unsent message.
+   * 
+   * @param retryDelay the delay in milliseconds. <br>
+   *        The minimum delay is {@code 100} milliseconds and the default is {@code 2000}.
+   */
+  public void setRetryDelay(int retryDelay) {
+    this.retryDelay = this.validateInt(retryDelay, 100, Integer.MAX_VALUE, this.retryDelay);
+  }
+
+  /**
+   * Gets the maximal delay between two retries of an unsent message in milliseconds.
+   */
+  public int getMaxRetryDelay() {
+    return maxRetryDelay;
+  }
+
+  /**
+   * Sets the maximal delay between two retries of an unsent message.
+   * 
+   * @param maxRetryDelay the delay in milliseconds. <br>
+   *        The minimum delay is {@code 1000} milliseconds and the default is {@code 600000} (10
+   *        minutes).
+   */
+  public void setMaxRetryDelay(int maxRetryDelay) {
+    this.maxRetryDelay =
+        this.validateInt(maxRetryDelay, 1000, Integer.MAX_VALUE, this.maxRetryDelay);
+  }
+
   /**
    * Get the mode of the user interface.
    * 
@@ -311,4 +442,431 @@ public class Settings extends ConfiguarionFile {
     dbLocation = newLocation;
   }
 
+  /**
+   * Gets the number of read-only connections to the database. Reading the history, contacts and
+   * Conversations uses them, so reads can run in parallel to each other and to writes.
+   */
+  public int getDbReaders() {
+    return dbReaders;
+  }
+
+  /**
+   * Sets the number of read-only connections to the database. (Will be used after restart.)<br>
+   * The minimum is {@code 1}, the maximum {@code 64} and the default {@code 4}.
+   * 
+   * @param dbReaders the number of connections.
+   */
+  public void setDbReaders(int dbReaders) {
+    this.dbReaders = this.validateInt(dbReaders, 1, 64, this.dbReaders);
+  }
+
+  /**
+   * Gets the store of the message history: {@code "sqlite"} if the Messages are stored in the
+   * database, {@code "log"} if they are appended to the message log. With the log, the search and
+   * the conversation overview aren't available.
+   */
+  public String getMessageStore() {
+    return messageStore;
+  }
+
+  /**
+   * Sets the store of the message history. (Will be used after restart; the Messages of the other
+   * store aren't moved.)<br>
+   * The default is {@code "sqlite"}.
+   * 
+   * @param messageStore {@code "sqlite"} or {@code "log"}.
+   * @throws IllegalArgumentException If the store is unknown.
+   */
+  public void setMessageStore(String messageStore) {
+    if (!"sqlite".equalsIgnoreCase(messageStore) && !"log".equalsIgnoreCase(messageStore))
+      throw new IllegalArgumentException("Unknown message store: " + messageStore
+          + " (Possible values: sqlite, log)");
+    this.messageStore = messageStore.toLowerCase();
+  }
+
+  /**
+   * Gets the directory of the message log.
+   */
+  public String getMessageLogLocation() {
+    return messageLogLocation;
+  }
+
+  /**
+   * Sets the directory of the message log. It will be created if it doesn't exist. (Will be used
+   * after restart.)
+   * 
+   * @param messageLogLocation the path of the directory.
+   * @throws IllegalArgumentException If the string is empty.
+   */
+  public void setMessageLogLocation(String messageLogLocation) {
+    if (messageLogLocation == null || messageLogLocation.isEmpty())
+      throw new IllegalArgumentException(
+          "No location specified in Settings.setMessageLogLocation(String).");
+    this.messageLogLocation = messageLogLocation;
+  }
+
+  /**
+   * Gets the size of a segment of the message log in megabytes.
+   */
+  public int getMessageLogSegmentSize() {
+    return messageLogSegmentSize;
+  }
+
+  /**
+   * Sets the size of new segments of the message log. (Will be used after restart.)<br>
+   * The minimum is {@code 1}, the maximum {@code 1024} and the default {@code 64}.
+   * 
+   * @param messageLogSegmentSize the size in megabytes.
+   */
+  public void setMessageLogSegmentSize(int messageLogSegmentSize) {
+    this.messageLogSegmentSize =
+        this.validateInt(messageLogSegmentSize, 1, 1024, this.messageLogSegmentSize);
+  }
+
+  /**
+   * Gets the size in bytes from which the content of stored messages is compressed. {@code 0}
+   * means that contents aren't compressed.
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * Sets the size in bytes from which the content of stored messages is compressed. (Will be used
+   * after restart.)<br>
+   * The minimum is {@code 0} (never) and the default {@code 128}.
+   * 
+   * @param compressionThreshold the size in bytes.
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold =
+        this.validateInt(compressionThreshold, 0, Integer.MAX_VALUE, this.compressionThreshold);
+  }
+
+  /**
+   * Gets the age in days after which messages are moved to the archive. {@code 0} means that
+   * messages aren't archived because of their age.
+   */
+  public int getArchiveAfterDays() {
+    return archiveAfterDays;
+  }
+
+  /**
+   * Sets the age in days after which messages are moved to the archive.<br>
+   * The minimum is {@code 0} (never) and the default {@code 365}.
+   * 
+   * @param archiveAfterDays the age in days.
+   */
+  public void setArchiveAfterDays(int archiveAfterDays) {
+    this.archiveAfterDays =
+        this.validateInt(archiveAfterDays, 0, Integer.MAX_VALUE, this.archiveAfterDays);
+  }
+
+  /**
+   * Gets the number of messages per Conversation that are kept unarchived. {@code 0} means that
+   * there is no limit.
+   */
+  public int getMaxConversationMessages() {
+    return maxConversationMessages;
+  }
+
+  /**
+   * Sets the number of messages per Conversation that are kept unarchived; older messages are
+   * moved to the archive.<br>
+   * The minimum is {@code 0} (no limit) and the default {@code 0}.
+   * 
+   * @param maxConversationMessages the number of messages.
+   */
+  public void setMaxConversationMessages(int maxConversationMessages) {
+    this.maxConversationMessages =
+        this.validateInt(maxConversationMessages, 0, Integer.MAX_VALUE,
+            this.maxConversationMessages);
+  }
+
+  /**
+   * Gets the time between two runs of the retention (archiving and vacuum) in minutes.
+   */
+  public int getRetentionInterval() {
+    return retentionInterval;
+  }
+
+  /**
+   * Sets the time between two runs of the retention. (Will be used after restart.)<br>
+   * The minimum is {@code 1} minute and the default {@code 60}.
+   * 
+   * @param retentionInterval the time in minutes.
+   */
+  public void setRetentionInterval(int retentionInterval) {
+    this.retentionInterval =
+        this.validateInt(retentionInterval, 1, Integer.MAX_VALUE, this.retentionInterval);
+  }
+
+  /**
+   * Gets the maximal number of database pages that are given back to the file system per
+   * retention run.
+   */
+  public int getVacuumPages() {
+    return vacuumPages;
+  }
+
+  /**
+   * Sets the maximal number of database pages that are given back to the file system per
+   * retention run.<br>
+   * The minimum is {@code 1} and the default {@code 1024}.
+   * 
+   * @param vacuumPages the number of pages.
+   */
+  public void setVacuumPages(int vacuumPages) {
+    this.vacuumPages = this.validateInt(vacuumPages, 1, Integer.MAX_VALUE, this.vacuumPages);
+  }
+
+  /**
+   * Gets the time between two synchronizations of the Conversations' histories with the other
+   * participants in minutes. {@code 0} means that the histories are only synchronized when a
+   * participant becomes reachable again.
+   */
+  public int getSyncInterval() {
+    return syncInterval;
+  }
+
+  /**
+   * Sets the time between two synchronizations of the histories. (Will be used after restart.)<br>
+   * {@code 0} disables the regular synchronization; the default is {@code 60}.
+   * 
+   * @param syncInterval the time in minutes.
+   */
+  public void setSyncInterval(int syncInterval) {
+    this.syncInterval = this.validateInt(syncInterval, 0, Integer.MAX_VALUE, this.syncInterval);
+  }
+
+  /**
+   * Gets the maximal number of Conversations that are kept in memory.
+   */
+  public int getConversationCacheSize() {
+    return conversationCacheSize;
+  }
+
+  /**
+   * Sets the maximal number of Conversations that are kept in memory. (Will be used after
+   * restart.)<br>
+   * The minimum is {@code 1} and the default {@code 256}.
+   * 
+   * @param conversationCacheSize the number of Conversations.
+   */
+  public void setConversationCacheSize(int conversationCacheSize) {
+    this.conversationCacheSize =
+        this.validateInt(conversationCacheSize, 1, Integer.MAX_VALUE, this.conversationCacheSize);
+  }
+
+  /**
+   * Gets the capacity of every queue of the incoming Messages. If the first queue is full, new
+   * Messages are refused and their senders try again later.
+   */
+  public int getIncomingQueueSize() {
+    return incomingQueueSize;
+  }
+
+  /**
+   * Sets the capacity of every queue of the incoming Messages. (Will be used after restart.)<br>
+   * The minimum is {@code 1} and the default {@code 1024}.
+   * 
+   * @param incomingQueueSize the number of Messages.
+   */
+  public void setIncomingQueueSize(int incomingQueueSize) {
+    this.incomingQueueSize =
+        this.validateInt(incomingQueueSize, 1, Integer.MAX_VALUE, this.incomingQueueSize);
+  }
+
+  /**
+   * Gets the number of threads that decrypt incoming Messages. {@code 0} means one thread per
+   * processor.
+   */
+  public int getDecryptThreads() {
+    return decryptThreads;
+  }
+
+  /**
+   * Sets the number of threads that decrypt incoming Messages. (Will be used after restart.)<br>
+   * {@code 0} (the default) uses one thread per processor.
+   * 
+   * @param decryptThreads the number of threads.
+   */
+  public void setDecryptThreads(int decryptThreads) {
+    this.decryptThreads = this.validateInt(decryptThreads, 0, 1024, this.decryptThreads);
+  }
+
+  /**
+   * Gets the time (in seconds) a command of another participant waits for the user's answer
+   * before it expires.
+   */
+  public int getCommandTimeout() {
+    return commandTimeout;
+  }
+
+  /**
+   * Sets the time a command of another participant waits for the user's answer.<br>
+   * The minimum is {@code 1} second and the default {@code 120}.
+   * 
+   * @param commandTimeout the time in seconds.
+   */
+  public void setCommandTimeout(int commandTimeout) {
+    this.commandTimeout =
+        this.validateInt(commandTimeout, 1, Integer.MAX_VALUE, this.commandTimeout);
+  }
+
+  /**
+   * Gets the time (in milliseconds) an outgoing message waits for more messages to the same
+   * recipient, so they are sent together. Only messages that follow shortly after a delivery wait;
+   * after a quiet period a message is sent at once.
+   */
+  public int getBatchLinger() {
+    return batchLinger;
+  }
+
+  /**
+   * Sets the time an outgoing message waits for more messages to the same recipient.<br>
+   * The default is {@code 10} milliseconds; {@code 0} sends the messages that are due at once
+   * without waiting.
+   * 
+   * @param batchLinger the time in milliseconds.
+   */
+  public void setBatchLinger(int batchLinger) {
+    this.batchLinger = this.validateInt(batchLinger, 0, 10000, this.batchLinger);
+  }
+
+  /**
+   * Gets the maximum number of messages that are sent to a recipient together.
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the maximum number of messages that are sent to a recipient together.<br>
+   * The default is {@code 32}; {@code 1} sends every message on its own (for recipients that don't
+   * understand batches).
+   * 
+   * @param batchSize the number of messages.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = this.validateInt(batchSize, 1, MAX_BATCH_SIZE, this.batchSize);
+  }
+
+  /**
+   * Gets the maximum window that is advertised to a peer: the number of messages it may send
+   * without waiting for the processing. The window is smaller if the queue of the incoming messages
+   * has less space.
+   */
+  public int getReceiveWindow() {
+    return receiveWindow;
+  }
+
+  /**
+   * Sets the maximum window that is advertised to a peer.<br>
+   * The minimum is {@code 1} and the default {@code 64}.
+   * 
+   * @param receiveWindow the number of messages.
+   */
+  public void setReceiveWindow(int receiveWindow) {
+    this.receiveWindow = this.validateInt(receiveWindow, 1, Integer.MAX_VALUE, this.receiveWindow);
+  }
+
+  /**
+   * Gets the maximum number of connections the server handles at once. Further connections are
+   * rejected. (Will be used after restart.)
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Sets the maximum number of connections the server handles at once. (Will be used after
+   * restart.)<br>
+   * The minimum is {@code 1} and the default {@code 64}.
+   * 
+   * @param maxConnections the number of connections.
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections =
+        this.validateInt(maxConnections, 1, Integer.MAX_VALUE, this.maxConnections);
+  }
+
+  /**
+   * Gets the number of connections per second the server accepts from one source address (in the
+   * long run). (Will be used after restart.)
+   */
+  public int getRateLimit() {
+    return rateLimit;
+  }
+
+  /**
+   * Sets the number of connections per second the server accepts from one source address. (Will
+   * be used after restart.)<br>
+   * The minimum is {@code 1} and the default {@code 50}.
+   * 
+   * @param rateLimit the number of connections per second.
+   */
+  public void setRateLimit(int rateLimit) {
+    this.rateLimit = this.validateInt(rateLimit, 1, Integer.MAX_VALUE, this.rateLimit);
+  }
+
+  /**
+   * Gets the number of connections the server accepts from one source address at once, before the
+   * rate limit applies. (Will be used after restart.)
+   */
+  public int getRateBurst() {
+    return rateBurst;
+  }
+
+  /**
+   * Sets the number of connections the server accepts from one source address at once. (Will be
+   * used after restart.)<br>
+   * The minimum is {@code 1} and the default {@code 100}.
+   * 
+   * @param rateBurst the number of connections.
+   */
+  public void setRateBurst(int rateBurst) {
+    this.rateBurst = this.validateInt(rateBurst, 1, Integer.MAX_VALUE, this.rateBurst);
+  }
+
+  /**
+   * Gets the time (in milliseconds) the server waits for the whole frame of a connection. A peer
+   * that sends slower is disconnected.
+   */
+  public int getFrameTimeout() {
+    return frameTimeout;
+  }
+
+  /**
+   * Sets the time the server waits for the whole frame of a connection.<br>
+   * The minimum is {@code 100} milliseconds and the default {@code 10000}.
+   * 
+   * @param frameTimeout the time in milliseconds.
+   */
+  public void setFrameTimeout(int frameTimeout) {
+    this.frameTimeout = this.validateInt(frameTimeout, 100, Integer.MAX_VALUE, this.frameTimeout);
+  }
+
+  /**
+   * Gets how the server handles the connections: {@code "single"} if one after the other on one
+   * thread, {@code "virtual"} if each on its own virtual thread.
+   */
+  public String getServerMode() {
+    return serverMode;
+  }
+
+  /**
+   * Sets how the server handles the connections. (Will be used after restart.)<br>
+   * The default is {@code "single"}.
+   * 
+   * @param serverMode {@code "single"} or {@code "virtual"}.
+   * @throws IllegalArgumentException If the mode is unknown.
+   */
+  public void setServerMode(String serverMode) {
+    if (!"single".equalsIgnoreCase(serverMode) && !"virtual".equalsIgnoreCase(serverMode))
+      throw new IllegalArgumentException("Unknown server mode: " + serverMode
+          + " (Possible values: single, virtual)");
+    this.serverMode = serverMode.toLowerCase();
+  }
+
 }
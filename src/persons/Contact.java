@@ -18,14 +18,37 @@ public class Contact {
   private String uuid;
   /** The public key of this user. */
   private String publicKey;
-  /** The address of the Contact. */
-  private InetSocketAddress address;
+  /** The host name or IP address of the Contact. */
+  private String host;
+  /** The port of the Contact's server. */
+  private int port;
+  /**
+   * The resolved address of the Contact. Will be created by the first call of
+   * {@link #getAddress()}, so loading a Contact never causes a DNS lookup.
+   */
+  private volatile InetSocketAddress address;
 
   public Contact(String nickname, String uuid, String publicKey, InetSocketAddress address) {
+    this(nickname, uuid, publicKey, address.getHostString(), address.getPort());
+    if (!address.isUnresolved())
+      this.address = address;
+  }
+
+  /**
+   * Constructs a new Contact. The address will be resolved when it's needed.
+   * 
+   * @param nickname The nickname of the Contact.
+   * @param uuid The UUID of the Contact.
+   * @param publicKey The public key of the Contact.
+   * @param host The host name or IP address of the Contact.
+   * @param port The port of the Contact's server.
+   */
+  public Contact(String nickname, String uuid, String publicKey, String host, int port) {
 
     setNickname(nickname);
     this.uuid = uuid;
-    this.address = address;
+    this.host = host;
+    this.port = port;
     this.publicKey = publicKey;
   }
   
@@ -61,17 +84,41 @@ public class Contact {
   }
 
   /**
+   * Gets the address of the Contact. It is resolved on the first call and cached afterwards. If
+   * the host couldn't be resolved, the next call will try it again.
+   * 
    * @return the address
    */
   public InetSocketAddress getAddress() {
-    return address;
+    InetSocketAddress a = address;
+    if (a == null || a.isUnresolved()) {
+      a = new InetSocketAddress(host, port);
+      address = a;
+    }
+    return a;
   }
 
   /**
    * @param address the address to set
    */
   public void setAddress(InetSocketAddress address) {
-    this.address = address;
+    this.host = address.getHostString();
+    this.port = address.getPort();
+    this.address = address.isUnresolved() ? null : address;
+  }
+
+  /**
+   * @return the host name or IP address of the Contact (without resolving it).
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return the port of the Contact's server.
+   */
+  public int getPort() {
+    return port;
   }
 
   @Override
@@ -82,4 +129,9 @@ public class Contact {
       return ((Contact) obj).uuid.equals(uuid);
     return false;
   }
+
+  @Override
+  public int hashCode() {
+    return uuid.hashCode();
+  }
 }
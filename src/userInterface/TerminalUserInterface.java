@@ -12,6 +12,9 @@ public class TerminalUserInterface implements UserInterface {
 
   private Core parent;
 
+  /** The user's input. Is never closed, so every dialog can read from it. */
+  private final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
   public TerminalUserInterface(Core parent) {
     this.parent = parent;
 
@@ -110,7 +113,7 @@ public class TerminalUserInterface implements UserInterface {
     System.out.print(TextColor.BLUE + "<ALERT>" + TextColor.LIGHT_BLUE + " " + message.trim()
         + '\n' + TextColor.LIGHT_GRAY + "         (Press Enter to continue.)" + TextColor.RESET);
     try {
-      new BufferedReader(new InputStreamReader(System.in)).readLine();
+      in.readLine();
     } catch (IOException e) {
       this.printError(e);
     }
@@ -129,8 +132,10 @@ public class TerminalUserInterface implements UserInterface {
     System.out.print(TextColor.BLUE + "<CONFIRM>" + TextColor.LIGHT_BLUE + " " + message.trim()
         + ' ' + TextColor.LIGHT_GRAY + ((defaultChoise) ? "(Y/n)" : "(y/N)") + TextColor.LIGHT_BLUE
         + ": " + TextColor.RESET);
-    try (BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
-      String choise = r.readLine();
+    try {
+      String choise = in.readLine();
+      if (choise == null)
+        return defaultChoise;
       return (choise.equalsIgnoreCase("y") || choise.equalsIgnoreCase("yes")) ? true
           : (choise.equalsIgnoreCase("n") || choise.equalsIgnoreCase("no")) ? false
               : defaultChoise;
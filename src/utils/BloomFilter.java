@@ -0,0 +1,135 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scalable Bloom filter of 64 bit hashes.<br>
+ * A Bloom filter answers whether it <i>might</i> contain a key: if {@link #mightContain(long)}
+ * returns <code>false</code> the key has never been added; if it returns <code>true</code> the key
+ * has been added or (with the false positive rate) not. The keys have to be hashes already (e.g.
+ * a part of a SHA-256 digest); the filter derives its bit positions from them by double
+ * hashing.<br>
+ * A plain Bloom filter has to be sized for the number of keys up front and its false positive rate
+ * rises once it gets fuller. This filter starts with a slice for the expected number of keys and
+ * adds a slice of twice the size (and half the false positive rate) whenever the newest slice is
+ * full, so the false positive rate stays below twice the given rate however many keys are
+ * added.<br>
+ * This class isn't thread safe.
+ */
+public class BloomFilter {
+  /** The slices of the filter; keys are only added to the last one. */
+  private final List<Slice> slices = new ArrayList<Slice>();
+  /** The number of added keys. */
+  private long size;
+
+  /**
+   * Constructs an empty filter.
+   *
+   * @param expectedKeys The number of keys the first slice is sized for.
+   * @param falsePositiveRate The false positive rate of the first slice.
+   * @throws IllegalArgumentException if <code>expectedKeys</code> <= 0 or the rate isn't between 0
+   *         and 1
+   */
+  public BloomFilter(int expectedKeys, double falsePositiveRate) {
+    if (expectedKeys <= 0)
+      throw new IllegalArgumentException("The number of expected keys must be positive.");
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+      throw new IllegalArgumentException("The false positive rate must be between 0 and 1.");
+    slices.add(new Slice(expectedKeys, falsePositiveRate));
+  }
+
+  /**
+   * Adds a key.
+   *
+   * @param key The key (a hash).
+   */
+  public void add(long key) {
+    Slice last = slices.get(slices.size() - 1);
+    if (last.size >= last.capacity) {
+      last =
+          new Slice((int) Math.min(Integer.MAX_VALUE / 2, 2L * last.capacity),
+              last.falsePositiveRate / 2);
+      slices.add(last);
+    }
+    last.add(key);
+    size++;
+  }
+
+  /**
+   * @param key The key (a hash).
+   * @return <code>false</code> if the key has never been added; <code>true</code> if it might have
+   *         been added.
+   */
+  public boolean mightContain(long key) {
+    for (int i = slices.size() - 1; i >= 0; i--)
+      if (slices.get(i).mightContain(key))
+        return true;
+    return false;
+  }
+
+  /**
+   * @return the number of added keys.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return the size of the bit sets in bytes.
+   */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (Slice s : slices)
+      bytes += s.bits.length * 8L;
+    return bytes;
+  }
+
+  /** A plain Bloom filter with a fixed capacity. */
+  private static class Slice {
+    /** The bits. */
+    private final long[] bits;
+    /** The number of bits. */
+    private final long bitCount;
+    /** The number of bits that are set per key. */
+    private final int hashCount;
+    /** The number of keys the slice is sized for. */
+    private final int capacity;
+    /** The false positive rate at the capacity. */
+    private final double falsePositiveRate;
+    /** The number of keys added to this slice. */
+    private int size;
+
+    Slice(int capacity, double falsePositiveRate) {
+      this.capacity = capacity;
+      this.falsePositiveRate = falsePositiveRate;
+      // m = -n ln p / (ln 2)^2, k = m / n ln 2
+      long m =
+          (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+      bits = new long[(int) Math.max(1, (m + 63) / 64)];
+      bitCount = bits.length * 64L;
+      hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+    }
+
+    void add(long key) {
+      long h1 = key;
+      long h2 = Long.rotateLeft(key, 32) | 1;
+      for (int i = 0; i < hashCount; i++) {
+        long bit = Math.floorMod(h1 + i * h2, bitCount);
+        bits[(int) (bit >>> 6)] |= 1L << bit;
+      }
+      size++;
+    }
+
+    boolean mightContain(long key) {
+      long h1 = key;
+      long h2 = Long.rotateLeft(key, 32) | 1;
+      for (int i = 0; i < hashCount; i++) {
+        long bit = Math.floorMod(h1 + i * h2, bitCount);
+        if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -26,20 +26,20 @@ public final class Formats {
    * Format of the Message's header:<br>
    * <code>delimiter</code> + time stamp in hex + <code>delimiter</code> + UUID of the Conversation
    * + <code>delimiter</code> + UUID of the sender + <code>delimiter</code> 'is command'-boolean as
-   * number (0/1)<br>
+   * number (0/1) + optional: <code>delimiter</code> + sequence number in hex<br>
    * <br>
    * Regular expression:<br>
    * <code>DELIMITER_CHAR
       + "([0-9a-f]+)" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
-      + "([01])"</code>
+      + "([01])(?:" + DELIMITER_CHAR + "([0-9a-f]{1,16}))?"</code>
    */
   public static final Pattern MESSAGE_FORMAT_HEADER = Pattern.compile(DELIMITER_CHAR
       + "([0-9a-f]+)" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
-      + "([01])");
+      + "([01])(?:" + DELIMITER_CHAR + "([0-9a-f]{1,16}))?");
 
   /**
    * Format of a whole <i> not encrypted</i> Message:<br>
@@ -51,7 +51,8 @@ public final class Formats {
       + "([0-9a-f]+)" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
       + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})" + DELIMITER_CHAR
-      + "([01])" + DELIMITER_CHAR + "([^" + DELIMITER_CHAR + "]+)" </code>
+      + "([01])(?:" + DELIMITER_CHAR + "([0-9a-f]{1,16}))?" + DELIMITER_CHAR
+      + "([^" + DELIMITER_CHAR + "]+)" </code>
    */
   public static final Pattern MESSAGE_FORMAT = Pattern.compile(MESSAGE_FORMAT_HEADER.toString()
       + DELIMITER_CHAR + MESSAGE_FORMAT_CONTENT.toString());
@@ -13,6 +13,8 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -25,8 +27,10 @@ import javax.crypto.spec.SecretKeySpec;
 import main.Core;
 import persons.Contact;
 import exceptions.FormatException;
+import exchange.BatchMessage;
 import exchange.EncryptedMessage;
 import exchange.InternalMessage;
+import exchange.Message;
 
 public class HybridCoder {
 
@@ -87,7 +91,10 @@ public class HybridCoder {
     return keyToString(kg.generateKey());
   }
 
-  public static EncryptedMessage encodeMessage(InternalMessage m, Contact forContact)
+  /**
+   * Encrypts a Message (an {@link InternalMessage} or a {@link BatchMessage}) for a Contact.
+   */
+  public static EncryptedMessage encodeMessage(Message m, Contact forContact)
       throws InvalidKeyException {
 
     String session = generateSecretKey();
@@ -112,6 +119,28 @@ public class HybridCoder {
   public static InternalMessage decodeMessage(EncryptedMessage m) throws InvalidKeyException,
       FormatException {
 
+    return new InternalMessage(decodeFormatted(m));
+
+  }
+
+  /**
+   * Decrypts a Message that is either a single {@link InternalMessage} or a
+   * {@link BatchMessage}.
+   * 
+   * @return the Messages in the order they were sent.
+   */
+  public static List<InternalMessage> decodeMessages(EncryptedMessage m)
+      throws InvalidKeyException, FormatException {
+
+    String formatted = decodeFormatted(m);
+    if (BatchMessage.isBatch(formatted))
+      return new BatchMessage(formatted).getMessages();
+    return Collections.singletonList(new InternalMessage(formatted));
+
+  }
+
+  private static String decodeFormatted(EncryptedMessage m) throws InvalidKeyException {
+
     String formattedIM = "";
 
     try {
@@ -124,7 +153,7 @@ public class HybridCoder {
       throw new InvalidKeyException("Invalid key.", e);
     }
 
-    return new InternalMessage(formattedIM);
+    return formattedIM;
 
   }
 
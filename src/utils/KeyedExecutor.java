@@ -0,0 +1,232 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Core;
+
+/**
+ * Executes tasks in the order they were submitted per key (e.g. per Conversation), while the tasks
+ * of different keys run in parallel on a shared pool of threads.<br>
+ * Every key has a queue; at most one thread works on a key at a time. A thread runs at most
+ * {@value #QUANTUM} tasks of a key and then puts the key to the back of the pool's queue, so a
+ * busy key can't keep the threads from the other keys. The number of waiting tasks of all keys is
+ * bounded: {@link #execute(String, Runnable)} waits if it is reached.<br>
+ * The queue of a key is removed as soon as it is empty, so there is no memory kept for idle
+ * keys.
+ */
+public class KeyedExecutor implements AutoCloseable {
+
+  /** The maximum number of tasks of a key a thread runs before it turns to the other keys. */
+  public static final int QUANTUM = 16;
+
+  /** The tasks of a key. */
+  private class KeyQueue implements Runnable {
+    final String key;
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    /** Whether the key is in the pool's queue or a thread works on it. */
+    boolean scheduled;
+    /** The largest number of waiting tasks since the queue has been created. */
+    int maxDepth;
+
+    KeyQueue(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < QUANTUM; i++) {
+        Runnable task = next(this);
+        if (task == null)
+          return;
+        try {
+          task.run();
+        } catch (Throwable t) {
+          failed.incrementAndGet();
+          Core.instance.printError("[" + name + "] Task of \"" + key + "\" failed.", t, false);
+        } finally {
+          completed.incrementAndGet();
+          permits.release();
+        }
+      }
+      reschedule(this);
+    }
+  }
+
+  private final String name;
+  private final ExecutorService pool;
+  private final Semaphore permits;
+  /** The queues of the keys with waiting or running tasks. All changes use compute(). */
+  private final ConcurrentHashMap<String, KeyQueue> queues =
+      new ConcurrentHashMap<String, KeyQueue>();
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * Constructs an executor.
+   *
+   * @param name The name of the executor (and its threads).
+   * @param threads The number of threads.
+   * @param capacity The maximum number of waiting tasks of all keys.
+   * @throws IllegalArgumentException if <code>threads</code> or <code>capacity</code> <= 0
+   */
+  public KeyedExecutor(String name, int threads, int capacity) {
+    if (threads <= 0 || capacity <= 0)
+      throw new IllegalArgumentException(
+          "The number of threads and the capacity must be positive.");
+    this.name = name;
+    this.permits = new Semaphore(capacity);
+    AtomicInteger n = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Submits a task. It runs after the tasks that have been submitted with the same key before.
+   * Waits if the maximum number of waiting tasks is reached.
+   *
+   * @param key The key.
+   * @param task The task.
+   * @throws InterruptedException if the thread has been interrupted while waiting.
+   */
+  public void execute(String key, Runnable task) throws InterruptedException {
+    permits.acquire();
+    submitted.incrementAndGet();
+    KeyQueue[] schedule = new KeyQueue[1];
+    queues.compute(key, (k, q) -> {
+      if (q == null)
+        q = new KeyQueue(k);
+      q.tasks.add(task);
+      q.maxDepth = Math.max(q.maxDepth, q.tasks.size());
+      if (!q.scheduled) {
+        q.scheduled = true;
+        schedule[0] = q;
+      }
+      return q;
+    });
+    if (schedule[0] != null)
+      pool.execute(schedule[0]);
+  }
+
+  /**
+   * Takes the next task of a key. If there is none, the key's queue is removed.
+   */
+  private Runnable next(KeyQueue queue) {
+    Runnable[] task = new Runnable[1];
+    queues.compute(queue.key, (k, q) -> {
+      task[0] = q.tasks.poll();
+      if (task[0] != null)
+        return q;
+      q.scheduled = false;
+      return null;
+    });
+    return task[0];
+  }
+
+  /**
+   * Puts a key to the back of the pool's queue after its quantum or removes its queue if it is
+   * empty.
+   */
+  private void reschedule(KeyQueue queue) {
+    boolean[] more = new boolean[1];
+    queues.compute(queue.key, (k, q) -> {
+      if (q.tasks.isEmpty()) {
+        q.scheduled = false;
+        return null;
+      }
+      more[0] = true;
+      return q;
+    });
+    if (more[0])
+      pool.execute(queue);
+  }
+
+  /**
+   * Runs the waiting tasks (for at most the given time) and stops the threads.
+   *
+   * @param timeout The maximum time to wait in milliseconds.
+   */
+  public void close(long timeout) {
+    long end = System.currentTimeMillis() + timeout;
+    try {
+      while (!queues.isEmpty() && System.currentTimeMillis() < end)
+        Thread.sleep(10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool.shutdownNow();
+  }
+
+  /**
+   * Stops the threads after the waiting tasks have been run (at most 5 seconds).
+   */
+  @Override
+  public void close() {
+    close(5000);
+  }
+
+  /**
+   * @param key The key.
+   * @return the number of waiting tasks of the key.
+   */
+  public int getQueueDepth(String key) {
+    int[] depth = new int[1];
+    queues.computeIfPresent(key, (k, q) -> {
+      depth[0] = q.tasks.size();
+      return q;
+    });
+    return depth[0];
+  }
+
+  /**
+   * @return the numbers of waiting tasks and their maximum (since the key had no waiting tasks)
+   *         as <code>{depth, max depth}</code> by the keys that have waiting or running tasks.
+   */
+  public Map<String, int[]> getQueueDepths() {
+    Map<String, int[]> depths = new HashMap<String, int[]>();
+    for (String key : queues.keySet())
+      queues.computeIfPresent(key, (k, q) -> {
+        depths.put(k, new int[] {q.tasks.size(), q.maxDepth});
+        return q;
+      });
+    return depths;
+  }
+
+  /** @return the number of keys that have waiting or running tasks. */
+  public int getActiveKeys() {
+    return queues.size();
+  }
+
+  /** @return the number of submitted tasks. */
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  /** @return the number of finished tasks (including the failed ones). */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /** @return the number of tasks that threw an exception. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: keys %d, submitted %d, completed %d, failed %d", name,
+        getActiveKeys(), getSubmitted(), getCompleted(), getFailed());
+  }
+}